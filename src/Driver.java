@@ -5,6 +5,7 @@ import imagecontroller.ControllerImpl;
 import imagecontroller.Features;
 import imagecontroller.ImageController;
 import imagecontroller.FileIOHandler;
+import imagemodel.BoundedHistory;
 import imagemodel.ImageModel;
 import imagemodel.ModelFacade;
 import imageview.ImageView;
@@ -21,6 +22,11 @@ public class Driver {
   private static final String ROOT_DIR = ""; // to modify the base directory
   private static final String IMG_DIR = ROOT_DIR + "res/"; // to modify the image directory
 
+  /**
+   * The undo history may use up to 1 / HISTORY_HEAP_FRACTION of the maximum heap size.
+   */
+  private static final int HISTORY_HEAP_FRACTION = 4;
+
   /**
    * The main() method to start the Image controller.
    *
@@ -28,7 +34,10 @@ public class Driver {
    * @throws IOException if FileReader fail
    */
   public static void main(String[] args) throws IOException {
-    ImageModel model = new ModelFacade();
+    // undo history beyond its share of the heap is spilled to disk instead of running out of memory
+    long historyBudget = Runtime.getRuntime().maxMemory() / HISTORY_HEAP_FRACTION;
+    ImageModel model = new ModelFacade(
+            new BoundedHistory(historyBudget, BoundedHistory.Overflow.SPILL));
     ImageController controller;
 
     // interactive mode
@@ -38,11 +47,16 @@ public class Driver {
 
     }
     // batch script mode
-    else if (args.length == 2 && args[0].equals("-script")) {
+    // optional -offheap flag keeps loaded images in memory mapped temp files
+    // optional -tiled flag computes effects on loaded images tile by tile as they are saved
+    else if ((args.length == 2 || (args.length == 3
+            && (args[2].equals("-offheap") || args[2].equals("-tiled"))))
+            && args[0].equals("-script")) {
       try {
         controller = new ControllerImpl(
                 new FileReader(ROOT_DIR + args[1]),
-                new FileIOHandler(IMG_DIR), model);
+                new FileIOHandler(IMG_DIR, args.length == 3 && args[2].equals("-offheap"),
+                        args.length == 3 && args[2].equals("-tiled")), model);
       } catch (IndexOutOfBoundsException | IOException e) {
         throw new IOException("File Reading Fail - Check File Directory.");
       }
@@ -2,20 +2,29 @@ package imagecontroller;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
+import imagemodel.BayerDither;
+import imagemodel.BlueNoiseDither;
 import imagemodel.Blur;
 import imagemodel.CheckerBoard;
 import imagemodel.Dither;
+import imagemodel.EffectTask;
+import imagemodel.Filter;
+import imagemodel.FusedFilter;
+import imagemodel.GaussianBlur;
 import imagemodel.Greyscale;
 import imagemodel.ImageModel;
 import imagemodel.Mosaic;
-import imagemodel.RGBArray;
 import imagemodel.Rainbow;
 import imagemodel.Sepia;
 import imagemodel.Sharpen;
+import imagemodel.Transform;
+import imagemodel.TransformChain;
 
-import static imagecontroller.ImageUtil.intArrayToBufferedImage;
+import static imagecontroller.ImageUtil.imageToBufferedImage;
 
 /**
  * A concrete class to control an image model based on text commands. Legal commands are detailed in
@@ -28,6 +37,20 @@ public class ControllerImpl implements ImageController, Features {
   private final IOHandler imgIO;
   private final ImageModel model;
 
+  /**
+   * Effects read from a script that have not been applied yet, so a run of them can be applied in
+   * one pass: color transforms, then at most one filter, then the color transforms after it.
+   */
+  private final List<Transform> pendingTransforms = new ArrayList<>();
+  private Filter pendingFilter;
+  private final List<Transform> pendingAfter = new ArrayList<>();
+
+  /**
+   * Whether the script has asked for consecutive filters to be composed into one even where that
+   * skips the clamping and truncating between them.
+   */
+  private boolean unclamped;
+
   /**
    * Sets up the controller with a source for text commands and the location for loading and
    * outputting images.
@@ -79,6 +102,11 @@ public class ControllerImpl implements ImageController, Features {
 
     Scanner scan = new Scanner(this.commandsSource);
     boolean isLoadFirst = false;
+    // drop transforms left queued by a script that failed part way
+    this.pendingTransforms.clear();
+    this.pendingFilter = null;
+    this.pendingAfter.clear();
+    this.unclamped = false;
 
     // read line by line and parse commands
     while (scan.hasNextLine()) {
@@ -93,6 +121,12 @@ public class ControllerImpl implements ImageController, Features {
         continue;
       }
 
+      // a run of color transforms and filters is applied together once another command comes
+      if (!(commands.length == 1 && (cmd.equals("greyscale") || cmd.equals("sepia")
+              || cmd.equals("blur") || cmd.equals("sharpen")))) {
+        this.flushEffects();
+      }
+
       // first load command check
       if (!isLoadFirst) {
         if (cmd.equals("load")) {
@@ -127,6 +161,7 @@ public class ControllerImpl implements ImageController, Features {
       }
 
     }
+    this.flushEffects();
 
     // only comments and spaces in script
     if (!isLoadFirst) {
@@ -146,16 +181,16 @@ public class ControllerImpl implements ImageController, Features {
   private void cmdProcessing(ImageModel model, String cmd) throws IllegalArgumentException {
     switch (cmd) {
       case "blur":
-        this.blur();
+        this.queueFilter(new Blur());
         break;
       case "sharpen":
-        this.sharpen();
+        this.queueFilter(new Sharpen());
         break;
       case "greyscale":
-        this.greyscale();
+        this.queueTransform(new Greyscale());
         break;
       case "sepia":
-        this.sepia();
+        this.queueTransform(new Sepia());
         break;
       case "dither":
         this.dither();
@@ -165,6 +200,64 @@ public class ControllerImpl implements ImageController, Features {
     }
   }
 
+  /**
+   * Queues a color transform read from the script, before or after the queued filter.
+   *
+   * @param transform the transform to apply
+   */
+  private void queueTransform(Transform transform) {
+    if (this.pendingFilter == null) {
+      this.pendingTransforms.add(transform);
+    } else {
+      this.pendingAfter.add(transform);
+    }
+  }
+
+  /**
+   * Queues a filter read from the script. A filter straight after the queued one is composed with
+   * it when that gives exactly the same image, or when the script has turned unclamped on.
+   * Otherwise the effects already queued are applied first if they include a filter.
+   *
+   * @param filter the filter to apply
+   */
+  private void queueFilter(Filter filter) {
+    if (this.pendingFilter != null && this.pendingAfter.isEmpty()
+            && (this.unclamped || Filter.composesExactly(this.pendingFilter, filter))) {
+      this.pendingFilter = Filter.compose(this.pendingFilter, filter);
+      return;
+    }
+    if (this.pendingFilter != null) {
+      this.flushEffects();
+    }
+    this.pendingFilter = filter;
+  }
+
+  /**
+   * Applies the effects read from the script since the last other command. Color transforms
+   * around a filter are applied together with it as a FusedFilter, and two or more color
+   * transforms on their own as a TransformChain, which give the same image in a single pass.
+   */
+  private void flushEffects() {
+    if (this.pendingFilter != null) {
+      if (this.pendingTransforms.isEmpty() && this.pendingAfter.isEmpty()) {
+        model.loadEffect(this.pendingFilter);
+      } else {
+        model.loadEffect(new FusedFilter(this.pendingTransforms, this.pendingFilter,
+                this.pendingAfter));
+      }
+    } else if (this.pendingTransforms.size() == 1) {
+      model.loadEffect(this.pendingTransforms.get(0));
+    } else if (!this.pendingTransforms.isEmpty()) {
+      model.loadEffect(new TransformChain(this.pendingTransforms));
+    } else {
+      return;
+    }
+    this.pendingTransforms.clear();
+    this.pendingFilter = null;
+    this.pendingAfter.clear();
+    model.applyEffect();
+  }
+
   /**
    * A helper to parse and execute commands with args.
    *
@@ -176,15 +269,61 @@ public class ControllerImpl implements ImageController, Features {
 
     switch (args[0].toLowerCase()) {
       case "mosaic":
-        if (args.length != 2) {
-          throw new IllegalArgumentException("Mosaic must have exactly 1 argument");
+        if (args.length != 2 && args.length != 3) {
+          throw new IllegalArgumentException("Mosaic must have 1 argument, optionally followed "
+                  + "by fast");
+        }
+        if (args.length == 3 && !args[2].equalsIgnoreCase("fast")) {
+          throw new IllegalArgumentException("Mosaic's seeds can only be followed by fast");
         }
         try {
-          this.mosaic(Integer.parseInt(args[1]));
+          this.mosaic(Integer.parseInt(args[1]), args.length == 3);
           break;
         } catch (IndexOutOfBoundsException | NumberFormatException e) {
           throw new IllegalArgumentException("Mosaic's Seed Must Be an Int.");
         }
+      case "blur":
+        if (args.length != 2) {
+          throw new IllegalArgumentException("Blur takes at most 1 argument");
+        }
+        try {
+          this.blur(Integer.parseInt(args[1]));
+          break;
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Blur's Radius Must Be an Int.");
+        }
+      case "bayer":
+        if (args.length != 4) {
+          throw new IllegalArgumentException(
+                  "Bayer Command Must Have String Format of [bayer *int *int *boolean].");
+        }
+        try {
+          this.bayerDither(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                  Boolean.parseBoolean(args[3]));
+          break;
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException(
+                  "Bayer Command Must Have String Format of [bayer *int *int *boolean].");
+        }
+      case "bluenoise":
+        if (args.length != 3) {
+          throw new IllegalArgumentException(
+                  "Bluenoise Command Must Have String Format of [bluenoise *int *boolean].");
+        }
+        try {
+          this.blueNoiseDither(Integer.parseInt(args[1]), Boolean.parseBoolean(args[2]));
+          break;
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException(
+                  "Bluenoise Command Must Have String Format of [bluenoise *int *boolean].");
+        }
+      case "unclamped":
+        if (args.length != 2 || !(args[1].equalsIgnoreCase("on")
+                || args[1].equalsIgnoreCase("off"))) {
+          throw new IllegalArgumentException("Unclamped must be followed by on or off");
+        }
+        this.unclamped = args[1].equalsIgnoreCase("on");
+        break;
       case "":
         // placeholder for future commands to satisfy java style
         break;
@@ -248,7 +387,7 @@ public class ControllerImpl implements ImageController, Features {
     if (filename == null) {
       throw new IllegalArgumentException("Illegal null arg");
     }
-    model.loadImage(new RGBArray(imgIO.input(filename)));
+    model.loadImage(imgIO.inputImage(filename));
   }
 
   /**
@@ -285,7 +424,7 @@ public class ControllerImpl implements ImageController, Features {
     if (filename == null) {
       throw new IllegalArgumentException("Illegal null arg");
     }
-    imgIO.output(model.outputImage(), model.getWidth(), model.getHeight(), filename);
+    imgIO.output(model.getImage(), filename);
   }
 
   /**
@@ -297,6 +436,18 @@ public class ControllerImpl implements ImageController, Features {
     model.applyEffect();
   }
 
+  /**
+   * Applies a blur of any strength to the image loaded in the controller's model.
+   *
+   * @param radius about the standard deviation of the blur in pixels
+   * @throws IllegalArgumentException if radius is negative
+   */
+  @Override
+  public void blur(int radius) {
+    model.loadEffect(new GaussianBlur(radius));
+    model.applyEffect();
+  }
+
   /**
    * Applies the sharpen effect to the image loaded in the controller's model.
    */
@@ -333,6 +484,34 @@ public class ControllerImpl implements ImageController, Features {
     model.applyEffect();
   }
 
+  /**
+   * Applies an ordered dither with a Bayer matrix to the image loaded in the controller's model.
+   *
+   * @param size   the width and height of the matrix: 2, 4, 8, or 16
+   * @param levels the number of levels from 0 to 255 to dither each channel to
+   * @param color  true to dither each channel on its own, false to dither to shades of grey
+   * @throws IllegalArgumentException if size is not 2, 4, 8, or 16, or levels is not between 2
+   *                                  and 256
+   */
+  @Override
+  public void bayerDither(int size, int levels, boolean color) {
+    model.loadEffect(new BayerDither(size, levels, color));
+    model.applyEffect();
+  }
+
+  /**
+   * Applies an ordered dither with a blue noise mask to the image loaded in the controller's model.
+   *
+   * @param levels the number of levels from 0 to 255 to dither each channel to
+   * @param color  true to dither each channel on its own, false to dither to shades of grey
+   * @throws IllegalArgumentException if levels is not between 2 and 256
+   */
+  @Override
+  public void blueNoiseDither(int levels, boolean color) {
+    model.loadEffect(new BlueNoiseDither(levels, color));
+    model.applyEffect();
+  }
+
   /**
    * Applies the Mosaic effect to the image loaded in the controller's model.
    *
@@ -340,10 +519,48 @@ public class ControllerImpl implements ImageController, Features {
    */
   @Override
   public void mosaic(int seeds) {
-    model.loadEffect(new Mosaic(seeds));
+    this.mosaic(seeds, false);
+  }
+
+  /**
+   * Starts applying the Mosaic effect to the image loaded in the controller's model in the
+   * background.
+   *
+   * @param seeds number of panes to generate in mosaic
+   * @return a handle to follow the progress of the effect or cancel it
+   */
+  @Override
+  public EffectTask mosaicAsync(int seeds) {
+    return this.mosaicAsync(seeds, false);
+  }
+
+  /**
+   * Applies the Mosaic effect to the image loaded in the controller's model, finding the nearest
+   * seed of each pixel by jump flooding if fast.
+   *
+   * @param seeds number of panes to generate in mosaic
+   * @param fast  true for the approximate jump flooding Mosaic
+   */
+  @Override
+  public void mosaic(int seeds, boolean fast) {
+    model.loadEffect(new Mosaic(seeds, fast));
     model.applyEffect();
   }
 
+  /**
+   * Starts applying the Mosaic effect to the image loaded in the controller's model in the
+   * background, finding the nearest seed of each pixel by jump flooding if fast.
+   *
+   * @param seeds number of panes to generate in mosaic
+   * @param fast  true for the approximate jump flooding Mosaic
+   * @return a handle to follow the progress of the effect or cancel it
+   */
+  @Override
+  public EffectTask mosaicAsync(int seeds, boolean fast) {
+    model.loadEffect(new Mosaic(seeds, fast));
+    return model.applyEffectAsync();
+  }
+
   /**
    * reverts the controller's model to the image prior to the most recent effect.
    *
@@ -371,7 +588,7 @@ public class ControllerImpl implements ImageController, Features {
    */
   @Override
   public BufferedImage outputImage() {
-    return intArrayToBufferedImage(model.outputImage(), model.getWidth(), model.getHeight());
+    return imageToBufferedImage(model.getImage());
   }
 
   /**
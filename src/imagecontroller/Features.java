@@ -3,6 +3,8 @@ package imagecontroller;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 
+import imagemodel.EffectTask;
+
 /**
  * The Features Interface expose the behaviors provided by the Controller to the View.
  */
@@ -44,6 +46,15 @@ public interface Features {
    */
   void blur();
 
+  /**
+   * Applies a blur of any strength to the image loaded in the controller's model. It takes the same
+   * time for every radius.
+   *
+   * @param radius about the standard deviation of the blur in pixels
+   * @throws IllegalArgumentException if radius is negative
+   */
+  void blur(int radius);
+
   /**
    * Applies the sharpen effect to the image loaded in the controller's model.
    */
@@ -64,6 +75,26 @@ public interface Features {
    */
   void dither();
 
+  /**
+   * Applies an ordered dither with a Bayer matrix to the image loaded in the controller's model.
+   *
+   * @param size   the width and height of the matrix: 2, 4, 8, or 16
+   * @param levels the number of levels from 0 to 255 to dither each channel to
+   * @param color  true to dither each channel on its own, false to dither to shades of grey
+   * @throws IllegalArgumentException if size is not 2, 4, 8, or 16, or levels is not between 2
+   *                                  and 256
+   */
+  void bayerDither(int size, int levels, boolean color);
+
+  /**
+   * Applies an ordered dither with a blue noise mask to the image loaded in the controller's model.
+   *
+   * @param levels the number of levels from 0 to 255 to dither each channel to
+   * @param color  true to dither each channel on its own, false to dither to shades of grey
+   * @throws IllegalArgumentException if levels is not between 2 and 256
+   */
+  void blueNoiseDither(int levels, boolean color);
+
   /**
    * Applies the Mosaic effect to the image loaded in the controller's model.
    *
@@ -71,6 +102,37 @@ public interface Features {
    */
   void mosaic(int seeds);
 
+  /**
+   * Starts applying the Mosaic effect to the image loaded in the controller's model in the
+   * background, since it can take a long time for many seeds. The model is only updated once the
+   * effect finishes, and not at all if the returned task is cancelled first.
+   *
+   * @param seeds number of panes to generate in mosaic
+   * @return a handle to follow the progress of the effect or cancel it
+   * @throws IllegalStateException if no image is loaded yet
+   */
+  EffectTask mosaicAsync(int seeds);
+
+  /**
+   * Applies the Mosaic effect to the image loaded in the controller's model, finding the nearest
+   * seed of each pixel by jump flooding if fast.
+   *
+   * @param seeds number of panes to generate in mosaic
+   * @param fast  true for the approximate jump flooding Mosaic
+   */
+  void mosaic(int seeds, boolean fast);
+
+  /**
+   * Starts applying the Mosaic effect to the image loaded in the controller's model in the
+   * background, finding the nearest seed of each pixel by jump flooding if fast.
+   *
+   * @param seeds number of panes to generate in mosaic
+   * @param fast  true for the approximate jump flooding Mosaic
+   * @return a handle to follow the progress of the effect or cancel it
+   * @throws IllegalStateException if no image is loaded yet
+   */
+  EffectTask mosaicAsync(int seeds, boolean fast);
+
   /**
    * reverts the controller's model to the image prior to the most recent effect.
    *
@@ -2,21 +2,51 @@ package imagecontroller;
 
 import java.io.IOException;
 
+import imagemodel.Image;
+import imagemodel.TiledImage;
+
 /**
  * A class that manages IO for images located in files. Used by an ImageController.
  */
 public class FileIOHandler implements IOHandler {
 
   private final String baseDirectory;
+  private final boolean offHeap;
+  private final boolean tiled;
 
   /**
    * Constructs with a specified base directory.
    */
   public FileIOHandler(String baseDirectory) {
+    this(baseDirectory, false);
+  }
+
+  /**
+   * Constructs with a specified base directory, optionally loading images off-heap.
+   *
+   * @param baseDirectory the directory file names are relative to
+   * @param offHeap       True to decode images into memory mapped temp files instead of the heap
+   */
+  public FileIOHandler(String baseDirectory, boolean offHeap) {
+    this(baseDirectory, offHeap, false);
+  }
+
+  /**
+   * Constructs with a specified base directory, optionally loading images off-heap, and optionally
+   * wrapping loaded images in a TiledImage so effects on them are only computed tile by tile as
+   * their output is read or saved.
+   *
+   * @param baseDirectory the directory file names are relative to
+   * @param offHeap       True to decode images into memory mapped temp files instead of the heap
+   * @param tiled         True to load images as lazily computed TiledImages
+   */
+  public FileIOHandler(String baseDirectory, boolean offHeap, boolean tiled) {
     if (baseDirectory == null) {
       throw new IllegalArgumentException("Arg cannot be null");
     }
     this.baseDirectory = baseDirectory;
+    this.offHeap = offHeap;
+    this.tiled = tiled;
   }
 
   /**
@@ -31,6 +61,21 @@ public class FileIOHandler implements IOHandler {
     return ImageUtil.readImage(this.baseDirectory + name);
   }
 
+  /**
+   * Gets an image from the named file, stored as packed pixels or off-heap if this handler was
+   * constructed for off-heap images, and tiled if it was constructed for tiled images.
+   *
+   * @param name source file name
+   * @return the image
+   * @throws IOException if any issue accessing the source file
+   */
+  @Override
+  public Image inputImage(String name) throws IOException {
+    Image img = this.offHeap ? ImageUtil.readMappedImage(this.baseDirectory + name)
+            : ImageUtil.readPackedImage(this.baseDirectory + name);
+    return this.tiled ? new TiledImage(img) : img;
+  }
+
   /**
    * Writes image data to the named output file.
    *
@@ -44,4 +89,16 @@ public class FileIOHandler implements IOHandler {
   public void output(int[][][] imgData, int width, int height, String name) throws IOException {
     ImageUtil.writeImage(imgData, width, height, this.baseDirectory + name);
   }
+
+  /**
+   * Writes an image to the named output file.
+   *
+   * @param img  the image to write
+   * @param name output file name
+   * @throws IOException if any issue accessing output file
+   */
+  @Override
+  public void output(Image img, String name) throws IOException {
+    ImageUtil.writeImage(img, this.baseDirectory + name);
+  }
 }
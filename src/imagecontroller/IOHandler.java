@@ -2,6 +2,9 @@ package imagecontroller;
 
 import java.io.IOException;
 
+import imagemodel.Image;
+import imagemodel.PackedRGBArray;
+
 /**
  * An interface for managing the location to load and output images. Allows IO redirection.
  */
@@ -15,6 +18,18 @@ public interface IOHandler {
    */
   int[][][] input(String name) throws IOException;
 
+  /**
+   * Gets an image from the named source. By default this reads the image data with input and packs
+   * it, and handlers that can decode straight into an Image override it.
+   *
+   * @param name source name
+   * @return the image
+   * @throws IOException if any issue accessing the source
+   */
+  default Image inputImage(String name) throws IOException {
+    return new PackedRGBArray(this.input(name));
+  }
+
   /**
    * Writes image data to the named output.
    *
@@ -25,4 +40,17 @@ public interface IOHandler {
    * @throws IOException if any issue accessing output
    */
   void output(int[][][] imgData, int width, int height, String name) throws IOException;
+
+  /**
+   * Writes an image to the named output. By default this copies the image into a 3D array and
+   * writes it with the other output method, and handlers that can write an Image directly
+   * override it.
+   *
+   * @param img  the image to write
+   * @param name output name
+   * @throws IOException if any issue accessing output
+   */
+  default void output(Image img, String name) throws IOException {
+    this.output(img.getDataClone(), img.getWidth(), img.getHeight(), name);
+  }
 }
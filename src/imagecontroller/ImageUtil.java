@@ -1,17 +1,31 @@
 package imagecontroller;
 
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Iterator;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import imagemodel.Image;
+import imagemodel.MappedRGBArray;
+import imagemodel.PackedRGBArray;
 
 /**
  * This class contains utility methods to read an image from file and write to a file.
  */
 public class ImageUtil {
+  /**
+   * The number of pixels decoded at a time when reading an image off-heap.
+   */
+  private static final int STRIPE_PIXELS = 1 << 22;
 
   /**
    * Read an image file and return the contents as an array.
@@ -45,6 +59,80 @@ public class ImageUtil {
     return result;
   }
 
+  /**
+   * Read an image file and return the contents as packed 0xRRGGBB pixels, without going through
+   * a 3D array.
+   *
+   * @param filename the path of the file. Look at the IOHandler documentation to see which file
+   *                 formats are supported.
+   * @return the image as a PackedRGBArray
+   * @throws IOException              if any problems reading file
+   * @throws IllegalArgumentException if null filename
+   */
+  public static PackedRGBArray readPackedImage(String filename) throws IOException,
+          IllegalArgumentException {
+    if (filename == null) {
+      throw new IllegalArgumentException("filename cannot be null");
+    }
+    BufferedImage input;
+    try (FileInputStream stream = new FileInputStream(filename)) {
+      input = ImageIO.read(stream);
+    }
+
+    int width = input.getWidth();
+    int height = input.getHeight();
+    return new PackedRGBArray(width, height,
+            input.getRGB(0, 0, width, height, null, 0, width));
+  }
+
+  /**
+   * Read an image file straight into an off-heap MappedRGBArray. The file is decoded a stripe of
+   * rows at a time, so the heap only ever holds one stripe no matter how large the image is. Most
+   * decoders have to skip over the earlier rows again for every stripe, which trades decoding time
+   * for the bounded heap.
+   *
+   * @param filename the path of the file. Look at the IOHandler documentation to see which file
+   *                 formats are supported.
+   * @return the image as a MappedRGBArray
+   * @throws IOException              if any problems reading file
+   * @throws IllegalArgumentException if null filename
+   */
+  public static MappedRGBArray readMappedImage(String filename) throws IOException,
+          IllegalArgumentException {
+    if (filename == null) {
+      throw new IllegalArgumentException("filename cannot be null");
+    }
+    try (ImageInputStream stream = ImageIO.createImageInputStream(new File(filename))) {
+      Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+      if (readers == null || !readers.hasNext()) {
+        throw new IOException("Unsupported image file: " + filename);
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(stream);
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        MappedRGBArray result = new MappedRGBArray(width, height);
+        int stripeRows = Math.max(1, Math.min(height, STRIPE_PIXELS / width));
+        int[] stripe = new int[stripeRows * width];
+        ImageReadParam param = reader.getDefaultReadParam();
+        for (int y = 0; y < height; y += stripeRows) {
+          int rows = Math.min(stripeRows, height - y);
+          param.setSourceRegion(new Rectangle(0, y, width, rows));
+          reader.read(0, param).getRGB(0, 0, width, rows, stripe, 0, width);
+          for (int i = 0; i < rows * width; ++i) {
+            stripe[i] &= 0xFFFFFF;
+          }
+          result.setPackedRows(y, rows, stripe);
+        }
+        result.freeze();
+        return result;
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
   /**
    * Convenience function to get the width of an image.
    *
@@ -98,6 +186,22 @@ public class ImageUtil {
     ImageIO.write(output, extension, new FileOutputStream(filename));
   }
 
+  /**
+   * Write an Image to a file in a given format.
+   *
+   * @param img      the image to write
+   * @param filename the full path of where the image must be stored. This should include the name
+   *                 and extension of the file
+   * @throws IOException if the file cannot be written to the provided path
+   */
+  public static void writeImage(Image img, String filename) throws IOException {
+    BufferedImage output = imageToBufferedImage(img);
+    String extension = filename.substring(filename.indexOf(".") + 1);
+    try (FileOutputStream stream = new FileOutputStream(filename)) {
+      ImageIO.write(output, extension, stream);
+    }
+  }
+
   /**
    * Convert a 3D array of integers into a BufferedImage.
    *
@@ -112,6 +216,7 @@ public class ImageUtil {
             height,
             BufferedImage.TYPE_INT_RGB);
 
+    int[] row = new int[width];
     for (int i = 0; i < height; i++) {
       for (int j = 0; j < width; j++) {
         int r = rgb[i][j][0];
@@ -121,11 +226,37 @@ public class ImageUtil {
         //color is stored in 1 integer, with the 4 bytes storing ARGB in that
         //order. Each of r,g,b are stored in 8 bits (hence between 0 and 255).
         // So we put them all in one integer by using bit-shifting << as below
-        int color = (r << 16) + (g << 8) + b;
-        output.setRGB(j, i, color);
+        row[j] = (r << 16) + (g << 8) + b;
       }
+      // a whole row at a time rather than a pixel at a time
+      output.setRGB(0, i, width, 1, row, 0, width);
     }
 
     return output;
   }
-}
\ No newline at end of file
+
+  /**
+   * Convert an Image into a BufferedImage. Pixels are copied over in bulk a stripe of rows at a
+   * time.
+   *
+   * @param img the image to convert
+   * @return a BufferedImage with the same pixels as img
+   */
+  public static BufferedImage imageToBufferedImage(Image img) {
+    int width = img.getWidth();
+    int height = img.getHeight();
+    BufferedImage output = new BufferedImage(
+            width,
+            height,
+            BufferedImage.TYPE_INT_RGB);
+
+    int stripeRows = Math.max(1, Math.min(height, STRIPE_PIXELS / width));
+    int[] stripe = new int[stripeRows * width];
+    for (int i = 0; i < height; i += stripeRows) {
+      int rows = Math.min(stripeRows, height - i);
+      img.getPackedRegion(0, i, width, rows, stripe);
+      output.setRGB(0, i, width, rows, stripe, 0, width);
+    }
+    return output;
+  }
+}
@@ -0,0 +1,54 @@
+package imagemodel;
+
+/**
+ * An OrderedDither class with a Bayer matrix, whose ranks are spread out as evenly as possible
+ * within each square of two by two, four by four, and so on, giving a regular crosshatch pattern.
+ */
+public class BayerDither extends OrderedDither {
+  /**
+   * The largest Bayer matrix size.
+   */
+  private static final int MAX_SIZE = 16;
+
+  /**
+   * Constructs a Bayer dither with a matrix of the given size.
+   *
+   * @param size   the width and height of the matrix: 2, 4, 8, or 16
+   * @param levels the number of evenly spaced levels from 0 to 255 to dither each channel to
+   * @param color  true to dither each channel to its own levels, false to turn pixels grey first
+   * @throws IllegalArgumentException if size is not 2, 4, 8, or 16, or levels is not between 2
+   *                                  and 256
+   */
+  public BayerDither(int size, int levels, boolean color) throws IllegalArgumentException {
+    super(matrix(size), levels, color);
+  }
+
+  /**
+   * Build the Bayer matrix of the given size, in which each two by two block of the matrix half
+   * its size is ranked 0, 2, 3, 1 clockwise from the top left.
+   *
+   * @param size the width and height of the matrix
+   * @return the ranks of the matrix
+   * @throws IllegalArgumentException if size is not 2, 4, 8, or 16
+   */
+  private static int[][] matrix(int size) throws IllegalArgumentException {
+    if (size < 2 || size > MAX_SIZE || Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("Bayer matrix size must be 2, 4, 8, or 16");
+    }
+    int[][] matrix = {{0}};
+    for (int half = 1; half < size; half *= 2) {
+      int[][] next = new int[2 * half][2 * half];
+      for (int row = 0; row < half; ++row) {
+        for (int col = 0; col < half; ++col) {
+          int rank = 4 * matrix[row][col];
+          next[row][col] = rank;
+          next[row][col + half] = rank + 2;
+          next[row + half][col] = rank + 3;
+          next[row + half][col + half] = rank + 1;
+        }
+      }
+      matrix = next;
+    }
+    return matrix;
+  }
+}
@@ -0,0 +1,156 @@
+package imagemodel;
+
+import java.util.Random;
+
+/**
+ * An OrderedDither class with a blue noise mask, whose ranks are spread out so that every set of
+ * the lowest ranks is as even as possible without forming a regular pattern. That hides the
+ * crosshatch that a Bayer matrix leaves in flat areas.
+ *
+ * <p>The mask is made once by the void-and-cluster method: points are added one at a time where
+ * they are furthest from the points already there, as measured by a Gaussian blur that wraps
+ * around the edges, so the mask tiles seamlessly. It is built from a fixed random seed, so it is
+ * the same every time.
+ */
+public class BlueNoiseDither extends OrderedDither {
+  /**
+   * The width and height of the mask.
+   */
+  private static final int SIZE = 64;
+
+  /**
+   * The standard deviation of the Gaussian that measures how close points are.
+   */
+  private static final double SIGMA = 1.5;
+
+  /**
+   * The fraction of cells in the first random pattern.
+   */
+  private static final int INITIAL_FRACTION = 10;
+
+  /**
+   * The random seed of the first pattern.
+   */
+  private static final long SEED = 0x5EED;
+
+  /**
+   * Constructs a blue noise dither.
+   *
+   * @param levels the number of evenly spaced levels from 0 to 255 to dither each channel to
+   * @param color  true to dither each channel to its own levels, false to turn pixels grey first
+   * @throws IllegalArgumentException if levels is not between 2 and 256
+   */
+  public BlueNoiseDither(int levels, boolean color) throws IllegalArgumentException {
+    super(Mask.RANKS, levels, color);
+  }
+
+  /**
+   * Holds the mask, so it is only made when the first blue noise dither is.
+   */
+  private static final class Mask {
+    private static final int[][] RANKS = voidAndCluster();
+  }
+
+  /**
+   * Make the mask by the void-and-cluster method. A sparse random pattern is first evened out by
+   * moving the point in the tightest cluster to the largest void until that moves it back. Its
+   * points are then ranked by taking the tightest cluster away one at a time, and the rest of the
+   * cells by filling the largest void one at a time.
+   *
+   * @return the ranks of the mask
+   */
+  private static int[][] voidAndCluster() {
+    int cells = SIZE * SIZE;
+    double[] gaussian = new double[cells];
+    for (int dy = 0; dy < SIZE; ++dy) {
+      for (int dx = 0; dx < SIZE; ++dx) {
+        // the distance wraps around the edges
+        int wrappedY = Math.min(dy, SIZE - dy);
+        int wrappedX = Math.min(dx, SIZE - dx);
+        gaussian[dy * SIZE + dx] =
+                Math.exp(-(wrappedX * wrappedX + wrappedY * wrappedY) / (2 * SIGMA * SIGMA));
+      }
+    }
+    boolean[] initial = new boolean[cells];
+    double[] initialEnergy = new double[cells];
+    Random random = new Random(SEED);
+    for (int placed = 0; placed < cells / INITIAL_FRACTION; ) {
+      int cell = random.nextInt(cells);
+      if (!initial[cell]) {
+        toggle(initial, initialEnergy, gaussian, cell);
+        ++placed;
+      }
+    }
+    // each move lowers the total closeness, so this ends; the limit is only a safeguard
+    for (int move = 0; move < cells; ++move) {
+      int cluster = extreme(initial, initialEnergy, true);
+      toggle(initial, initialEnergy, gaussian, cluster);
+      int vacancy = extreme(initial, initialEnergy, false);
+      toggle(initial, initialEnergy, gaussian, vacancy);
+      if (vacancy == cluster) {
+        break;
+      }
+    }
+    int ones = cells / INITIAL_FRACTION;
+    int[] ranks = new int[cells];
+    boolean[] pattern = initial.clone();
+    double[] energy = initialEnergy.clone();
+    for (int rank = ones - 1; rank >= 0; --rank) {
+      int cluster = extreme(pattern, energy, true);
+      toggle(pattern, energy, gaussian, cluster);
+      ranks[cluster] = rank;
+    }
+    for (int rank = ones; rank < cells; ++rank) {
+      int vacancy = extreme(initial, initialEnergy, false);
+      toggle(initial, initialEnergy, gaussian, vacancy);
+      ranks[vacancy] = rank;
+    }
+    int[][] mask = new int[SIZE][SIZE];
+    for (int row = 0; row < SIZE; ++row) {
+      System.arraycopy(ranks, row * SIZE, mask[row], 0, SIZE);
+    }
+    return mask;
+  }
+
+  /**
+   * Add a point to a cell of the pattern or take it away, updating how close every cell is to the
+   * points.
+   *
+   * @param pattern  which cells hold points
+   * @param energy   the sum of the Gaussian of the distance to every point, for each cell
+   * @param gaussian the Gaussian of each wrapped offset
+   * @param cell     the cell to change
+   */
+  private static void toggle(boolean[] pattern, double[] energy, double[] gaussian, int cell) {
+    pattern[cell] = !pattern[cell];
+    double sign = pattern[cell] ? 1 : -1;
+    int cellY = cell / SIZE;
+    int cellX = cell % SIZE;
+    for (int y = 0; y < SIZE; ++y) {
+      int offsetRow = ((y - cellY + SIZE) % SIZE) * SIZE;
+      for (int x = 0; x < SIZE; ++x) {
+        energy[y * SIZE + x] += sign * gaussian[offsetRow + (x - cellX + SIZE) % SIZE];
+      }
+    }
+  }
+
+  /**
+   * Return the point in the tightest cluster, or the empty cell in the largest void, taking the
+   * first cell of any tie.
+   *
+   * @param pattern which cells hold points
+   * @param energy  the sum of the Gaussian of the distance to every point, for each cell
+   * @param cluster true for the point with the most energy, false for the empty cell with the least
+   * @return the cell
+   */
+  private static int extreme(boolean[] pattern, double[] energy, boolean cluster) {
+    int best = -1;
+    for (int cell = 0; cell < pattern.length; ++cell) {
+      if (pattern[cell] == cluster && (best < 0
+              || (cluster ? energy[cell] > energy[best] : energy[cell] < energy[best]))) {
+        best = cell;
+      }
+    }
+    return best;
+  }
+}
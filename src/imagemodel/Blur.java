@@ -10,9 +10,20 @@ public class Blur extends Filter {
    * A Blur's kernel is pre-defined.
    */
   public Blur() {
+    this(0);
+  }
+
+  /**
+   * Constructs a Blur class that convolves on the given number of threads.
+   *
+   * @param parallelism the number of threads to use, 1 to stay on the calling thread, or 0 for one
+   *                    per core
+   * @throws IllegalArgumentException if parallelism is negative
+   */
+  public Blur(int parallelism) throws IllegalArgumentException {
     super(new double[][]{
             {0.0625, 0.125, 0.0625},
             {0.125, 0.25, 0.125},
-            {0.0625, 0.125, 0.0625}});
+            {0.0625, 0.125, 0.0625}}, parallelism);
   }
 }
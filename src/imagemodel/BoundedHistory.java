@@ -0,0 +1,422 @@
+package imagemodel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.TreeMap;
+
+/**
+ * A History that keeps images by reference like ReferenceHistory, but only up to a budget of bytes
+ * of pixel data. Once the budget is exceeded the oldest steps are either spilled to a temporary
+ * file, to be read back when they are undone or redone, or dropped for good, depending on its
+ * Overflow policy. Steps that can be undone are given up oldest first, before steps that can be
+ * redone, furthest first.
+ *
+ * <p>Spilled images are written as 3 bytes per pixel in row major order, one after another, and
+ * are restored as packed images. The space of a step that is read back or forgotten is reused by
+ * later spills, first fit, and the file is cut short whenever its end is free, so it never holds
+ * much more than the steps still spilled. The file is closed and deleted once the history is
+ * garbage collected.
+ */
+public class BoundedHistory implements History {
+  /**
+   * What to do with the oldest steps once the budget is exceeded.
+   */
+  public enum Overflow {
+    /**
+     * Write them to a temporary file and read them back when they are needed.
+     */
+    SPILL,
+    /**
+     * Forget them, so they can no longer be undone or redone.
+     */
+    DROP
+  }
+
+  /**
+   * The number of pixels written or read at a time.
+   */
+  private static final int STRIPE_PIXELS = 1 << 16;
+
+  /**
+   * The number of bytes a pixel takes in the spill file.
+   */
+  private static final int PIXEL_BYTES = 3;
+
+  private final long budget;
+  private final Overflow overflow;
+  private final Stack<Step> previousHistory;
+  private final Stack<Step> subsequentHistory;
+  private long heapBytes;
+  private FileChannel spillFile;
+  private long spillEnd;
+
+  /**
+   * The unused extents of the spill file below spillEnd, as length by offset. Neighboring extents
+   * are always merged, and none ends at spillEnd.
+   */
+  private final TreeMap<Long, Long> freeExtents;
+
+  /**
+   * Constructs an empty history.
+   *
+   * @param budget   the number of bytes of pixel data to keep before giving up old steps
+   * @param overflow whether old steps are spilled to disk or dropped
+   * @throws IllegalArgumentException if the budget is negative or overflow is null
+   */
+  public BoundedHistory(long budget, Overflow overflow) throws IllegalArgumentException {
+    if (overflow == null) {
+      throw new IllegalArgumentException("Illegal null arg");
+    }
+    if (budget < 0) {
+      throw new IllegalArgumentException("budget cannot be negative");
+    }
+    this.budget = budget;
+    this.overflow = overflow;
+    this.previousHistory = new Stack<>();
+    this.subsequentHistory = new Stack<>();
+    this.heapBytes = 0;
+    this.spillFile = null;
+    this.spillEnd = 0;
+    this.freeExtents = new TreeMap<>();
+  }
+
+  /**
+   * Records a step by keeping the image before it, then gives up old steps until the history fits
+   * its budget again. Steps that could be redone are dropped.
+   *
+   * @param previous the image before the step
+   * @param effect   the effect that produced current from previous, or null if a new image was
+   *                 loaded
+   * @param current  the image after the step
+   * @throws IllegalArgumentException if previous or current is null
+   * @throws IllegalStateException    if the step has to be spilled and the spill file can't be
+   *                                  written
+   */
+  @Override
+  public void record(Image previous, ImageEffect effect, Image current)
+          throws IllegalArgumentException, IllegalStateException {
+    if (previous == null || current == null) {
+      throw new IllegalArgumentException("Illegal null arg");
+    }
+    for (Step step : this.subsequentHistory) {
+      this.heapBytes -= step.heapBytes();
+      if (step.image == null) {
+        this.free(step.offset, step.spillBytes());
+      }
+    }
+    this.subsequentHistory.clear();
+    this.push(this.previousHistory, previous);
+  }
+
+  /**
+   * Steps back from the given current image, reading the image before the most recent step back
+   * from the spill file if it was spilled.
+   *
+   * @param current the current image of the model
+   * @return the image before the most recent step, or null if there is nothing to undo
+   * @throws IllegalStateException if the spill file can't be read or written
+   */
+  @Override
+  public Image undo(Image current) throws IllegalStateException {
+    return this.move(this.previousHistory, this.subsequentHistory, current);
+  }
+
+  /**
+   * Steps forward from the given current image, reading the image after the most recently undone
+   * step back from the spill file if it was spilled.
+   *
+   * @param current the current image of the model
+   * @return the image after the most recently undone step, or null if there is nothing to redo
+   * @throws IllegalStateException if the spill file can't be read or written
+   */
+  @Override
+  public Image redo(Image current) throws IllegalStateException {
+    return this.move(this.subsequentHistory, this.previousHistory, current);
+  }
+
+  /**
+   * Returns the estimated bytes of pixel values held in memory for each step, for steps that can be
+   * undone from oldest to newest followed by steps that can be redone from nearest to furthest.
+   * Spilled steps hold nothing in memory.
+   *
+   * @return the bytes held in memory for each step
+   */
+  @Override
+  public List<Long> getStepFootprints() {
+    List<Long> footprints = new ArrayList<>();
+    for (Step step : this.previousHistory) {
+      footprints.add(step.heapBytes());
+    }
+    for (int i = this.subsequentHistory.size() - 1; i >= 0; --i) {
+      footprints.add(this.subsequentHistory.get(i).heapBytes());
+    }
+    return footprints;
+  }
+
+  /**
+   * Returns the number of bytes of the spill file in use, up to the end of the last extent still
+   * holding a spilled step.
+   *
+   * @return the bytes spilled to disk
+   */
+  public long getSpilledBytes() {
+    return this.spillEnd;
+  }
+
+  /**
+   * Pops a step, restoring its image if it was spilled, and keeps the current image on the other
+   * stack.
+   *
+   * @param from    the stack to take the step from
+   * @param to      the stack to keep the current image on
+   * @param current the current image of the model
+   * @return the restored image, or null if from is empty
+   */
+  private Image move(Stack<Step> from, Stack<Step> to, Image current) {
+    if (from.empty()) {
+      return null;
+    }
+    Step step = from.peek();
+    Image restored = step.image != null ? step.image : this.readSpilled(step);
+    from.pop();
+    this.heapBytes -= step.heapBytes();
+    if (step.image == null) {
+      this.free(step.offset, step.spillBytes());
+    }
+    this.push(to, current);
+    return restored;
+  }
+
+  /**
+   * Keeps an image as a new step on top of a stack, then gives up old steps until the history fits
+   * its budget again.
+   *
+   * @param stack the stack to push onto
+   * @param img   the image to keep
+   */
+  private void push(Stack<Step> stack, Image img) {
+    Step step = new Step(img);
+    stack.push(step);
+    this.heapBytes += step.heapBytes();
+    while (this.heapBytes > this.budget) {
+      Stack<Step> oldest = this.oldestInMemory(this.previousHistory) >= 0
+              ? this.previousHistory : this.subsequentHistory;
+      int index = this.oldestInMemory(oldest);
+      if (index < 0) {
+        break;
+      }
+      Step victim = oldest.get(index);
+      this.heapBytes -= victim.heapBytes();
+      if (this.overflow == Overflow.DROP) {
+        // nothing is ever spilled under this policy, so the victim is always at the bottom
+        oldest.remove(index);
+      } else {
+        this.writeSpilled(victim);
+      }
+    }
+  }
+
+  /**
+   * Finds the step furthest from the current image whose image still takes up heap. Off-heap and
+   * lazily computed images take none, so they are never spilled or dropped: spilling them would
+   * only bring them onto the heap.
+   *
+   * @param stack the stack to search
+   * @return its index in the stack, or -1 if no step takes up heap
+   */
+  private int oldestInMemory(Stack<Step> stack) {
+    for (int i = 0; i < stack.size(); ++i) {
+      if (stack.get(i).heapBytes() > 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Finds room for a spilled image, in the first free extent that is big enough or else at the end
+   * of the spill file.
+   *
+   * @param length the number of bytes needed
+   * @return the offset to write them at
+   */
+  private long allocate(long length) {
+    for (Map.Entry<Long, Long> extent : this.freeExtents.entrySet()) {
+      if (extent.getValue() >= length) {
+        long offset = extent.getKey();
+        this.freeExtents.remove(offset);
+        if (extent.getValue() > length) {
+          this.freeExtents.put(offset + length, extent.getValue() - length);
+        }
+        return offset;
+      }
+    }
+    long offset = this.spillEnd;
+    this.spillEnd += length;
+    return offset;
+  }
+
+  /**
+   * Gives back the extent of a step that no longer lives in the spill file, merging it with the
+   * free extents around it and cutting the file short if it was at the end.
+   *
+   * @param offset where the extent starts
+   * @param length its number of bytes
+   * @throws IllegalStateException if the spill file can't be truncated
+   */
+  private void free(long offset, long length) throws IllegalStateException {
+    long start = offset;
+    long end = offset + length;
+    Map.Entry<Long, Long> before = this.freeExtents.floorEntry(start);
+    if (before != null && before.getKey() + before.getValue() == start) {
+      start = before.getKey();
+      this.freeExtents.remove(start);
+    }
+    Long after = this.freeExtents.get(end);
+    if (after != null) {
+      this.freeExtents.remove(end);
+      end += after;
+    }
+    if (end < this.spillEnd) {
+      this.freeExtents.put(start, end - start);
+      return;
+    }
+    this.spillEnd = start;
+    try {
+      this.spillFile.truncate(start);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not shrink history spill file", e);
+    }
+  }
+
+  /**
+   * Appends the image of a step to the spill file and lets go of it.
+   *
+   * @param step the step to spill
+   */
+  private void writeSpilled(Step step) {
+    Image img = step.image;
+    int w = img.getWidth();
+    int h = img.getHeight();
+    int stripeRows = Math.max(1, Math.min(h, STRIPE_PIXELS / w));
+    int[] pixels = new int[stripeRows * w];
+    ByteBuffer bytes = ByteBuffer.allocate(stripeRows * w * PIXEL_BYTES);
+    try {
+      if (this.spillFile == null) {
+        this.spillFile = SpillFiles.open(this, "history");
+      }
+      long offset = this.allocate(step.spillBytes());
+      long position = offset;
+      for (int y = 0; y < h; y += stripeRows) {
+        int rows = Math.min(stripeRows, h - y);
+        img.getPackedRegion(0, y, w, rows, pixels);
+        bytes.clear();
+        for (int i = 0; i < rows * w; ++i) {
+          bytes.put((byte) (pixels[i] >> 16)).put((byte) (pixels[i] >> 8)).put((byte) pixels[i]);
+        }
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+          position += this.spillFile.write(bytes, position);
+        }
+      }
+      step.spill(offset);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not spill history to disk", e);
+    }
+  }
+
+  /**
+   * Reads the image of a spilled step back from the spill file.
+   *
+   * @param step the spilled step
+   * @return its image, packed
+   */
+  private Image readSpilled(Step step) {
+    int w = step.width;
+    int h = step.height;
+    if ((long) w * h > Integer.MAX_VALUE) {
+      throw new IllegalStateException("spilled image is too large to reload onto the heap");
+    }
+    int stripeRows = Math.max(1, Math.min(h, STRIPE_PIXELS / w));
+    int[] pixels = new int[w * h];
+    ByteBuffer bytes = ByteBuffer.allocate(stripeRows * w * PIXEL_BYTES);
+    try {
+      long position = step.offset;
+      for (int y = 0; y < h; y += stripeRows) {
+        int rows = Math.min(stripeRows, h - y);
+        bytes.clear();
+        bytes.limit(rows * w * PIXEL_BYTES);
+        while (bytes.hasRemaining()) {
+          int read = this.spillFile.read(bytes, position);
+          if (read < 0) {
+            throw new IOException("history spill file is truncated");
+          }
+          position += read;
+        }
+        bytes.flip();
+        for (int i = y * w; i < (y + rows) * w; ++i) {
+          pixels[i] = ((bytes.get() & 0xFF) << 16) | ((bytes.get() & 0xFF) << 8)
+                  | (bytes.get() & 0xFF);
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not reload history from disk", e);
+    }
+    return new PackedRGBArray(w, h, pixels, true);
+  }
+
+  /**
+   * One step of the history: an image in memory, or where it was spilled.
+   */
+  private static final class Step {
+    private final int width;
+    private final int height;
+    private Image image;
+    private long offset;
+
+    /**
+     * Constructs a step holding an image in memory.
+     *
+     * @param image the image to keep
+     */
+    private Step(Image image) {
+      this.width = image.getWidth();
+      this.height = image.getHeight();
+      this.image = image;
+      this.offset = -1;
+    }
+
+    /**
+     * Lets go of the image once it has been written to the spill file.
+     *
+     * @param offset where the image starts in the spill file
+     */
+    private void spill(long offset) {
+      this.image = null;
+      this.offset = offset;
+    }
+
+    /**
+     * Returns the number of bytes the image of this step takes in the spill file.
+     *
+     * @return the bytes of the image spilled
+     */
+    private long spillBytes() {
+      return (long) this.width * this.height * PIXEL_BYTES;
+    }
+
+    /**
+     * Returns the estimated bytes of pixel values this step holds in memory.
+     *
+     * @return the bytes held in memory, 0 once spilled
+     */
+    private long heapBytes() {
+      return this.image == null ? 0 : ReferenceHistory.footprint(this.image);
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package imagemodel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A History that stores every step as the compressed difference between the images before and
+ * after it. The difference is the XOR of their packed pixels, which is zero wherever a step left a
+ * pixel alone, so it deflates to almost nothing for steps that change little or only a region.
+ * XOR is its own inverse, so the same difference takes the current image back on undo and forward
+ * again on redo. Steps that change the dimensions of the image keep a compressed copy of the
+ * other image instead, a keyframe.
+ *
+ * <p>Undo and redo cost a pass over the image to decompress, rather than the reference swap of
+ * ReferenceHistory. Restored images are packed, or off-heap if the current image is off-heap.
+ */
+public class DeltaHistory implements History {
+  /**
+   * The number of pixels compressed or restored at a time.
+   */
+  private static final int STRIPE_PIXELS = 1 << 16;
+
+  /**
+   * The number of bytes a pixel takes in a difference or keyframe.
+   */
+  private static final int PIXEL_BYTES = 3;
+
+  private final Stack<Step> previousHistory;
+  private final Stack<Step> subsequentHistory;
+
+  /**
+   * Constructs an empty history.
+   */
+  public DeltaHistory() {
+    this.previousHistory = new Stack<>();
+    this.subsequentHistory = new Stack<>();
+  }
+
+  /**
+   * Records a step as the compressed difference between previous and current, or as a compressed
+   * copy of previous if their dimensions differ. Steps that could be redone are dropped.
+   *
+   * @param previous the image before the step
+   * @param effect   the effect that produced current from previous, or null if a new image was
+   *                 loaded
+   * @param current  the image after the step
+   * @throws IllegalArgumentException if previous or current is null
+   */
+  @Override
+  public void record(Image previous, ImageEffect effect, Image current)
+          throws IllegalArgumentException {
+    if (previous == null || current == null) {
+      throw new IllegalArgumentException("Illegal null arg");
+    }
+    this.previousHistory.push(encode(previous, current));
+    this.subsequentHistory.clear();
+  }
+
+  /**
+   * Steps back from the given current image by applying the most recent step to it.
+   *
+   * @param current the current image of the model
+   * @return the image before the most recent step, or null if there is nothing to undo
+   */
+  @Override
+  public Image undo(Image current) {
+    return move(this.previousHistory, this.subsequentHistory, current);
+  }
+
+  /**
+   * Steps forward from the given current image by applying the most recently undone step to it.
+   *
+   * @param current the current image of the model
+   * @return the image after the most recently undone step, or null if there is nothing to redo
+   */
+  @Override
+  public Image redo(Image current) {
+    return move(this.subsequentHistory, this.previousHistory, current);
+  }
+
+  /**
+   * Returns the number of compressed bytes held for each step, for steps that can be undone from
+   * oldest to newest followed by steps that can be redone from nearest to furthest.
+   *
+   * @return the bytes held for each step
+   */
+  @Override
+  public List<Long> getStepFootprints() {
+    List<Long> footprints = new ArrayList<>();
+    for (Step step : this.previousHistory) {
+      footprints.add((long) step.data.length);
+    }
+    for (int i = this.subsequentHistory.size() - 1; i >= 0; --i) {
+      footprints.add((long) this.subsequentHistory.get(i).data.length);
+    }
+    return footprints;
+  }
+
+  /**
+   * Pops a step, applies it to the current image, and pushes the step that leads back onto the
+   * other stack. A difference leads back by itself; a keyframe is replaced by a keyframe of the
+   * current image. The stacks are only changed once both are done, so a step that fails to decode
+   * or encode is kept.
+   *
+   * @param from    the stack to take the step from
+   * @param to      the stack to put the reverse step on
+   * @param current the current image of the model
+   * @return the restored image, or null if from is empty
+   */
+  private static Image move(Stack<Step> from, Stack<Step> to, Image current) {
+    if (from.empty()) {
+      return null;
+    }
+    Step step = from.peek();
+    Image restored = decode(step, current);
+    Step back = step.keyframe ? encode(current, restored) : step;
+    from.pop();
+    to.push(back);
+    return restored;
+  }
+
+  /**
+   * Compresses the step from previous to current.
+   *
+   * @param previous the image to get back to
+   * @param current  the image to get back from
+   * @return a difference if the images have the same dimensions, otherwise a keyframe of previous
+   */
+  private static Step encode(Image previous, Image current) {
+    int w = previous.getWidth();
+    int h = previous.getHeight();
+    boolean keyframe = w != current.getWidth() || h != current.getHeight();
+    int stripeRows = Math.max(1, Math.min(h, STRIPE_PIXELS / w));
+    int[] pixels = new int[stripeRows * w];
+    int[] others = new int[stripeRows * w];
+    byte[] bytes = new byte[stripeRows * w * PIXEL_BYTES];
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try (DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater)) {
+      for (int y = 0; y < h; y += stripeRows) {
+        int rows = Math.min(stripeRows, h - y);
+        previous.getPackedRegion(0, y, w, rows, pixels);
+        if (!keyframe) {
+          current.getPackedRegion(0, y, w, rows, others);
+          for (int i = 0; i < rows * w; ++i) {
+            pixels[i] ^= others[i];
+          }
+        }
+        for (int i = 0; i < rows * w; ++i) {
+          bytes[i * PIXEL_BYTES] = (byte) (pixels[i] >> 16);
+          bytes[i * PIXEL_BYTES + 1] = (byte) (pixels[i] >> 8);
+          bytes[i * PIXEL_BYTES + 2] = (byte) pixels[i];
+        }
+        deflated.write(bytes, 0, rows * w * PIXEL_BYTES);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not compress history step", e);
+    } finally {
+      deflater.end();
+    }
+    return new Step(w, h, keyframe, out.toByteArray());
+  }
+
+  /**
+   * Applies a step to the current image.
+   *
+   * @param step    the step to apply
+   * @param current the current image, which a difference is XORed with
+   * @return the image on the other side of the step
+   */
+  private static Image decode(Step step, Image current) {
+    int w = step.width;
+    int h = step.height;
+    int stripeRows = Math.max(1, Math.min(h, STRIPE_PIXELS / w));
+    int[] pixels = new int[stripeRows * w];
+    int[] others = new int[stripeRows * w];
+    byte[] bytes = new byte[stripeRows * w * PIXEL_BYTES];
+    WritableImage offHeap = current instanceof MappedRGBArray ? new MappedRGBArray(w, h) : null;
+    int[] output = offHeap == null ? new int[w * h] : null;
+    try (DataInputStream in = new DataInputStream(
+            new InflaterInputStream(new ByteArrayInputStream(step.data)))) {
+      for (int y = 0; y < h; y += stripeRows) {
+        int rows = Math.min(stripeRows, h - y);
+        in.readFully(bytes, 0, rows * w * PIXEL_BYTES);
+        for (int i = 0; i < rows * w; ++i) {
+          pixels[i] = ((bytes[i * PIXEL_BYTES] & 0xFF) << 16)
+                  | ((bytes[i * PIXEL_BYTES + 1] & 0xFF) << 8)
+                  | (bytes[i * PIXEL_BYTES + 2] & 0xFF);
+        }
+        if (!step.keyframe) {
+          current.getPackedRegion(0, y, w, rows, others);
+          for (int i = 0; i < rows * w; ++i) {
+            pixels[i] ^= others[i];
+          }
+        }
+        if (offHeap != null) {
+          offHeap.setPackedRows(y, rows, pixels);
+        } else {
+          System.arraycopy(pixels, 0, output, y * w, rows * w);
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not decompress history step", e);
+    }
+    if (offHeap != null) {
+      offHeap.freeze();
+      return offHeap;
+    }
+    return new PackedRGBArray(w, h, output, true);
+  }
+
+  /**
+   * One compressed step of the history.
+   */
+  private static final class Step {
+    private final int width;
+    private final int height;
+    private final boolean keyframe;
+    private final byte[] data;
+
+    /**
+     * Constructs a step.
+     *
+     * @param width    width of the image the step leads to
+     * @param height   height of the image the step leads to
+     * @param keyframe true if data is a whole image rather than a difference
+     * @param data     the deflated pixels of the difference or keyframe
+     */
+    private Step(int width, int height, boolean keyframe, byte[] data) {
+      this.width = width;
+      this.height = height;
+      this.keyframe = keyframe;
+      this.data = data;
+    }
+  }
+}
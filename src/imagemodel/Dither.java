@@ -1,11 +1,73 @@
 package imagemodel;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ObjIntConsumer;
+
 import static java.lang.Math.round;
 
 /**
- * A Dither ImageEffect that compresses pixel values to black and white only. Object stores no data.
+ * A Dither ImageEffect that compresses pixel values to black and white only.
+ *
+ * <p>Error diffusion is sequential along each row, but a row only needs the error of the row above
+ * from pixels up to one to its right. So rows are dithered on several threads at once as a skewed
+ * wavefront: each row follows the row above it, staying at least LAG pixels behind it, which is
+ * far enough that no two threads add to the same value at once and no value is read before all
+ * of its error has been added. The errors added to a value don't depend on each other and int
+ * addition doesn't depend on order, so the output is exactly the same as dithering row by row.
  */
 public class Dither implements ImageEffect {
+  /**
+   * How many pixels a row must stay behind the row above, counting the one being dithered: the
+   * row above must be done up to one past the pixel, which adds error to the next pixel of this
+   * row that this row adds to too.
+   */
+  private static final int LAG = 3;
+
+  /**
+   * The number of pixels of a row that are dithered between reports of how far the row has got.
+   */
+  private static final int CHUNK = 256;
+
+  /**
+   * The number of threads to dither on, or 0 for one per core.
+   */
+  private final int parallelism;
+
+  /**
+   * Turns pixels grey before they are dithered.
+   */
+  private static final Greyscale GREYSCALE = new Greyscale();
+
+  /**
+   * Constructs a Dither that dithers on one thread per core.
+   */
+  public Dither() {
+    this(0);
+  }
+
+  /**
+   * Constructs a Dither that dithers on the given number of threads.
+   *
+   * @param parallelism the number of threads to use, 1 to stay on the calling thread, or 0 for one
+   *                    per core
+   * @throws IllegalArgumentException if parallelism is negative
+   */
+  public Dither(int parallelism) throws IllegalArgumentException {
+    if (parallelism < 0) {
+      throw new IllegalArgumentException("parallelism can't be negative");
+    }
+    this.parallelism = parallelism;
+  }
+
   /**
    * Apply this Dither ImageEffect to an Image.
    *
@@ -14,61 +76,358 @@ public class Dither implements ImageEffect {
    */
   @Override
   public Image apply(Image input) {
-    // greyscale first
-    // error will be handled by Greyscale() constructor
-    Image greyImg = new Greyscale().apply(input);
-    int[][][] output = greyImg.getDataClone();
-    int w = greyImg.getWidth();
-    int h = greyImg.getHeight();
+    return this.apply(input, ProgressMonitor.NONE);
+  }
+
+  /**
+   * Apply this Dither ImageEffect to an Image, reporting progress to the given monitor after each
+   * row and giving up if it is cancelled. Off-heap input produces off-heap output, streamed a row
+   * at a time.
+   *
+   * @param input   the given Image
+   * @param monitor receives progress and says when to stop
+   * @return an Image that has been dithered by this Dither object
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled
+   */
+  @Override
+  public Image apply(Image input, ProgressMonitor monitor) {
+    int w = input.getWidth();
+    int h = input.getHeight();
+    if (input instanceof MappedRGBArray) {
+      MappedRGBArray output = new MappedRGBArray(w, h);
+      this.applyInto(input, output, monitor);
+      output.freeze();
+      return output;
+    }
+    int[] output = new int[w * h];
+    int threads = Math.min(h, this.parallelism == 0
+            ? Runtime.getRuntime().availableProcessors() : this.parallelism);
+    if (threads < 2) {
+      stream(input, monitor, (row, y) -> System.arraycopy(row, 0, output, y * w, w));
+      return new PackedRGBArray(w, h, output, true);
+    }
+    // all three channels of a greyscale image are equal, so diffuse error in a single channel
+    int[] grey = new int[w * h];
+    input.getPackedRegion(0, 0, w, h, grey);
+    GREYSCALE.transformPixels(grey, 0, w * h);
+    for (int i = 0; i < w * h; ++i) {
+      grey[i] = PackedRGBArray.unpack(grey[i], 0);
+    }
+    this.diffuseWavefront(grey, output, w, h, threads, monitor);
+    monitor.step(1);
+    return new PackedRGBArray(w, h, output, true);
+  }
+
+  /**
+   * Dither an Image and write the output into the given WritableImage a row at a time. Only the
+   * error of the row being dithered and of the row below it is kept, so this takes memory for a
+   * few rows however large the image is. The output is the same as from apply.
+   *
+   * @param input  the given Image
+   * @param output the image to write into, with the same dimensions as input
+   * @throws IllegalArgumentException if either arg is null or their dimensions differ
+   */
+  public void applyInto(Image input, WritableImage output) throws IllegalArgumentException {
+    this.applyInto(input, output, ProgressMonitor.NONE);
+  }
+
+  /**
+   * Dither an Image and write the output into the given WritableImage a row at a time, reporting
+   * progress after each row.
+   *
+   * @param input   the given Image
+   * @param output  the image to write into, with the same dimensions as input
+   * @param monitor receives progress and says when to stop
+   * @throws IllegalArgumentException if any arg is null or the dimensions differ
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled, in which case
+   *                                                    output is only partly written
+   */
+  public void applyInto(Image input, WritableImage output, ProgressMonitor monitor)
+          throws IllegalArgumentException {
+    if (input == null || output == null || monitor == null) {
+      throw new IllegalArgumentException("Illegal null arg");
+    }
+    if (output.getWidth() != input.getWidth() || output.getHeight() != input.getHeight()) {
+      throw new IllegalArgumentException("input and output dimensions must match");
+    }
+    stream(input, monitor, (row, y) -> output.setPackedRows(y, 1, row));
+  }
+
+  /**
+   * Dither an Image a row at a time, reading each row of the input as it is needed, converting it
+   * to grey inline exactly as Greyscale does, and handing each row of output to the sink as soon as
+   * it is done.
+   *
+   * @param input   the given Image
+   * @param monitor receives progress before each row and says when to stop
+   * @param sink    takes each row of packed output pixels and its index, and must not keep the
+   *                array, which is reused for the next row
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled
+   */
+  private static void stream(Image input, ProgressMonitor monitor, ObjIntConsumer<int[]> sink) {
+    int w = input.getWidth();
+    int h = input.getHeight();
+    // the grey values of the row being dithered, and the error added to the row below so far
+    int[] current = new int[w];
+    int[] below = new int[w];
+    int[] row = new int[w];
     for (int y = 0; y < h; ++y) {
+      monitor.step((double) y / h);
+      input.getPackedRegion(0, y, w, 1, row);
+      GREYSCALE.transformPixels(row, 0, w);
       for (int x = 0; x < w; ++x) {
-        int oldPix = output[y][x][0];
-        int newPix = findClosestPaletteColor(oldPix);
-        int error = oldPix - newPix;
-        // update the current pixel
-        output[y][x][0] = newPix;
-        output[y][x][1] = newPix;
-        output[y][x][2] = newPix;
-        // update the right pixel if exists
-        if (x + 1 < w) {
-          addRGBVal(output, x + 1, y, error * 7 / 16);
+        current[x] = PackedRGBArray.unpack(row[x], 0) + below[x];
+      }
+      Arrays.fill(below, 0);
+      diffuse(current, 0, below, 0, row, 0, w, y + 1 < h, 0, w);
+      sink.accept(row, y);
+    }
+    monitor.step(1);
+  }
+
+  /**
+   * Dither every row on the given number of threads, each taking every threads-th row in turn and
+   * keeping it LAG pixels behind the row above. With a parallelism of 0 the rows are dithered on
+   * the common ForkJoinPool, and otherwise on a pool of their own. A row that has caught up with
+   * the row above parks its thread until that row has moved on, and tells the pool it is blocked
+   * so the pool can start another thread rather than leave a row without one.
+   *
+   * @param grey    the grey values, which the error is added to
+   * @param output  the array to write the packed output pixels into
+   * @param w       the width of the image
+   * @param h       the height of the image
+   * @param threads the number of threads, at least 2 and at most h
+   * @param monitor receives progress at the start of each row and says when to stop
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled
+   */
+  private void diffuseWavefront(int[] grey, int[] output, int w, int h, int threads,
+                                ProgressMonitor monitor) {
+    Wavefront wavefront = new Wavefront(grey, output, w, h, threads);
+    AtomicInteger rowsDone = new AtomicInteger();
+    List<ForkJoinTask<?>> stripes = new ArrayList<>();
+    for (int first = 0; first < threads; ++first) {
+      int firstRow = first;
+      stripes.add(ForkJoinTask.adapt(() -> {
+        wavefront.waiters.set(firstRow, Thread.currentThread());
+        try {
+          for (int y = firstRow; y < h; y += threads) {
+            monitor.step((double) rowsDone.get() / h);
+            if (!wavefront.diffuseBehind(y)) {
+              return;
+            }
+            rowsDone.incrementAndGet();
+          }
+        } catch (RuntimeException | Error e) {
+          wavefront.fail();
+          throw e;
+        }
+      }));
+    }
+    ForkJoinPool pool = this.parallelism == 0 ? ForkJoinPool.commonPool()
+            : new ForkJoinPool(threads);
+    try {
+      for (ForkJoinTask<?> stripe : stripes) {
+        pool.execute(stripe);
+      }
+      RuntimeException failure = null;
+      for (ForkJoinTask<?> stripe : stripes) {
+        try {
+          stripe.join();
+        } catch (RuntimeException e) {
+          failure = failure == null ? e : failure;
         }
-        // update the bottom left, bottom, and bottom right pixels if exist
-        if (y + 1 < h) {
-          addRGBVal(output, x, y + 1, error * 5 / 16);
-          if (x - 1 >= 0) {
-            addRGBVal(output, x - 1, y + 1, error * 3 / 16);
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    } finally {
+      if (pool != ForkJoinPool.commonPool()) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * The shared state of the rows being dithered as a wavefront.
+   */
+  private static final class Wavefront {
+    private final int[] grey;
+    private final int[] output;
+    private final int w;
+    private final int h;
+    private final int threads;
+
+    /**
+     * How many pixels of each row are done.
+     */
+    private final AtomicIntegerArray done;
+
+    /**
+     * The thread dithering each stripe of rows, to be unparked when the row above moves on.
+     */
+    private final AtomicReferenceArray<Thread> waiters;
+
+    /**
+     * Set when a thread fails, so the others stop rather than wait for it forever.
+     */
+    private final AtomicBoolean failed;
+
+    /**
+     * Constructs the state for dithering the given grey values.
+     *
+     * @param grey    the grey values, which the error is added to
+     * @param output  the array to write the packed output pixels into
+     * @param w       the width of the image
+     * @param h       the height of the image
+     * @param threads the number of stripes of rows
+     */
+    Wavefront(int[] grey, int[] output, int w, int h, int threads) {
+      this.grey = grey;
+      this.output = output;
+      this.w = w;
+      this.h = h;
+      this.threads = threads;
+      this.done = new AtomicIntegerArray(h);
+      this.waiters = new AtomicReferenceArray<>(threads);
+      this.failed = new AtomicBoolean();
+    }
+
+    /**
+     * Dither a row a chunk at a time, waiting before each chunk until the row above is far enough
+     * ahead of it, and waking the row below after each chunk.
+     *
+     * @param y the row to dither
+     * @return true if the row was dithered, false if another thread failed first
+     */
+    boolean diffuseBehind(int y) {
+      int x = 0;
+      while (x < this.w) {
+        int end = this.w;
+        if (y > 0) {
+          int above = this.awaitAbove(y, x);
+          if (above < 0) {
+            return false;
           }
-          if (x + 1 < w) {
-            addRGBVal(output, x + 1, y + 1, error / 16);
+          end = above == this.w ? this.w : above - LAG + 1;
+        }
+        end = Math.min(end, x + CHUNK);
+        diffuse(this.grey, y * this.w, this.grey, (y + 1) * this.w, this.output, y * this.w,
+                this.w, y + 1 < this.h, x, end);
+        this.done.set(y, end);
+        if (y + 1 < this.h) {
+          Thread below = this.waiters.get((y + 1) % this.threads);
+          if (below != null) {
+            LockSupport.unpark(below);
+          }
+        }
+        x = end;
+      }
+      return true;
+    }
+
+    /**
+     * Park until the row above is done far enough ahead of a pixel, or another thread fails.
+     *
+     * @param y the row that is waiting
+     * @param x the first pixel of the row still to dither
+     * @return how many pixels of the row above are done, or -1 if another thread failed
+     */
+    private int awaitAbove(int y, int x) {
+      ForkJoinPool.ManagedBlocker blocker = new ForkJoinPool.ManagedBlocker() {
+        @Override
+        public boolean block() {
+          if (!this.isReleasable()) {
+            LockSupport.park(this);
           }
+          return this.isReleasable();
+        }
+
+        @Override
+        public boolean isReleasable() {
+          int above = Wavefront.this.done.get(y - 1);
+          return above == Wavefront.this.w || above - LAG >= x || Wavefront.this.failed.get();
+        }
+      };
+      try {
+        ForkJoinPool.managedBlock(blocker);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        this.fail();
+        throw new IllegalStateException("interrupted while applying effect", e);
+      }
+      return this.failed.get() ? -1 : this.done.get(y - 1);
+    }
+
+    /**
+     * Mark the wavefront as failed and wake every thread so they all stop.
+     */
+    void fail() {
+      this.failed.set(true);
+      for (int i = 0; i < this.threads; ++i) {
+        Thread waiter = this.waiters.get(i);
+        if (waiter != null) {
+          LockSupport.unpark(waiter);
         }
       }
     }
-    return new RGBArray(output);
   }
 
   /**
-   * Return the closest palette color (either 0 or 255) to the pixel value.
+   * Dither part of a row, adding the error of each pixel to its right and lower neighbors.
    *
-   * @param oldPix the given pixel value
-   * @return 0 or 255, whichever is closer to oldPix
+   * @param grey     the array holding the grey values of the row, which the error is added to
+   * @param rowFrom  the index of the first value of the row in grey
+   * @param next     the array holding the values of the row below, which the error is added to
+   * @param nextFrom the index of the first value of the row below in next
+   * @param output   the array to write the packed output pixels into
+   * @param outFrom  the index of the first output pixel of the row
+   * @param w        the width of the image
+   * @param hasNext  whether there is a row below
+   * @param from     the first pixel of the row to dither
+   * @param to       one past the last pixel of the row to dither
    */
-  private int findClosestPaletteColor(int oldPix) {
-    return round(oldPix / 255) * 255;
+  private static void diffuse(int[] grey, int rowFrom, int[] next, int nextFrom, int[] output,
+                              int outFrom, int w, boolean hasNext, int from, int to) {
+    for (int x = from; x < to; ++x) {
+      int oldPix = grey[rowFrom + x];
+      int newPix = findClosestPaletteColor(oldPix);
+      int error = oldPix - newPix;
+      // update the current pixel
+      output[outFrom + x] = PackedRGBArray.pack(newPix, newPix, newPix);
+      // update the right pixel if exists
+      if (x + 1 < w) {
+        grey[rowFrom + x + 1] += error * 7 / 16;
+      }
+      // update the bottom left, bottom, and bottom right pixels if exist
+      if (hasNext) {
+        next[nextFrom + x] += error * 5 / 16;
+        if (x - 1 >= 0) {
+          next[nextFrom + x - 1] += error * 3 / 16;
+        }
+        if (x + 1 < w) {
+          next[nextFrom + x + 1] += error / 16;
+        }
+      }
+    }
   }
 
   /**
-   * Add the value to all three channels of the (x, y) pixel in the matrix.
+   * Dithering only depends on its input, so it is deterministic.
    *
-   * @param matrix the given matrix
-   * @param x      the given x coordinate
-   * @param y      the given y coordinate
-   * @param val    the value to be added
-   */
-  private void addRGBVal(int[][][] matrix, int x, int y, int val) {
-    matrix[y][x][0] += val;
-    matrix[y][x][1] += val;
-    matrix[y][x][2] += val;
+   * @return true
+   */
+  @Override
+  public boolean isDeterministic() {
+    return true;
+  }
+
+  /**
+   * Return the closest palette color (either 0 or 255) to the pixel value.
+   *
+   * @param oldPix the given pixel value
+   * @return 0 or 255, whichever is closer to oldPix
+   */
+  private static int findClosestPaletteColor(int oldPix) {
+    return round(oldPix / 255) * 255;
   }
 }
@@ -0,0 +1,17 @@
+package imagemodel;
+
+import java.util.concurrent.Future;
+
+/**
+ * A handle on an effect being applied in the background by an ImageModel. Besides the usual Future
+ * operations it reports how far along the effect is. Cancelling the task stops the effect at its
+ * next row and leaves the model as it was.
+ */
+public interface EffectTask extends Future<Image> {
+  /**
+   * Returns how much of the effect is done.
+   *
+   * @return the fraction of the work done so far, between 0 and 1
+   */
+  double getProgress();
+}
@@ -0,0 +1,267 @@
+package imagemodel;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Correlates one channel of an image with a kernel through the fast Fourier transform, which costs
+ * O(log N) per value rather than one multiply-add per kernel value. The output is cut into tiles
+ * that are each transformed with a border the width of the kernel (overlap-save), so the memory
+ * used only depends on the tile size and not on the image. Values outside the image count as
+ * zero, which gives the same sums as leaving out kernel values that do not overlap any pixels.
+ *
+ * <p>Two tiles are transformed at once, one as the real part and one as the imaginary part of the
+ * input, which works because the kernel is real.
+ *
+ * <p>The sums are only as exact as the transform, which is within a tiny fraction of the largest
+ * possible sum of the true value. Callers that need exact values must check values that close to a
+ * boundary they care about.
+ */
+final class FFTConvolver {
+  /**
+   * Tiles are at least this many kernel widths wide, so most of each transform is output rather
+   * than border.
+   */
+  private static final int TILE_KERNELS = 4;
+
+  /**
+   * The smallest tile side, in values.
+   */
+  private static final int MIN_TILE = 64;
+
+  private final double[][] kernel;
+  private final int kernW;
+  private final int kernH;
+
+  /**
+   * The transforms of the kernel, keyed by the transform width and height.
+   */
+  private final Map<Long, double[][]> spectra = new ConcurrentHashMap<>();
+
+  /**
+   * Constructs a convolver for the given kernel, which the caller must not change afterwards.
+   *
+   * @param kernel a rectangular kernel of finite values
+   */
+  FFTConvolver(double[][] kernel) {
+    this.kernel = kernel;
+    this.kernH = kernel.length;
+    this.kernW = kernel[0].length;
+  }
+
+  /**
+   * Correlate a rectangle of one channel with the kernel, so that the output at (col, row) is the
+   * sum of src(offX + col + kernX, offY + row + kernY) * kernel[kernY][kernX] over the whole
+   * kernel, with src zero outside its bounds.
+   *
+   * @param src  the channel values, srcW by srcH in row major order
+   * @param srcW the width of src
+   * @param srcH the height of src
+   * @param offX the column of src under the top left of the kernel for the first output column
+   * @param offY the row of src under the top left of the kernel for the first output row
+   * @param w    the width of the output
+   * @param h    the height of the output
+   * @param out  an array of at least w * h values to write the sums into in row major order
+   */
+  void correlate(int[] src, int srcW, int srcH, int offX, int offY, int w, int h, double[] out) {
+    int sizeX = transformSize(w, this.kernW);
+    int sizeY = transformSize(h, this.kernH);
+    int tileW = Math.min(w, sizeX - this.kernW + 1);
+    int tileH = Math.min(h, sizeY - this.kernH + 1);
+    double[][] spectrum = this.spectrum(sizeX, sizeY);
+    double[] re = new double[sizeX * sizeY];
+    double[] im = new double[sizeX * sizeY];
+    int tilesX = (w + tileW - 1) / tileW;
+    int numTiles = tilesX * ((h + tileH - 1) / tileH);
+    for (int tile = 0; tile < numTiles; tile += 2) {
+      int realX = (tile % tilesX) * tileW;
+      int realY = (tile / tilesX) * tileH;
+      this.fill(re, sizeX, sizeY, src, srcW, srcH, offX + realX, offY + realY);
+      int imagX = ((tile + 1) % tilesX) * tileW;
+      int imagY = ((tile + 1) / tilesX) * tileH;
+      boolean paired = tile + 1 < numTiles;
+      if (paired) {
+        this.fill(im, sizeX, sizeY, src, srcW, srcH, offX + imagX, offY + imagY);
+      } else {
+        Arrays.fill(im, 0.0);
+      }
+      transform2d(re, im, sizeX, sizeY, false);
+      // correlating with a real kernel is multiplying by the conjugate of its transform
+      double[] kernRe = spectrum[0];
+      double[] kernIm = spectrum[1];
+      for (int i = 0; i < re.length; ++i) {
+        double r = re[i] * kernRe[i] + im[i] * kernIm[i];
+        double j = im[i] * kernRe[i] - re[i] * kernIm[i];
+        re[i] = r;
+        im[i] = j;
+      }
+      transform2d(re, im, sizeX, sizeY, true);
+      double scale = 1.0 / ((double) sizeX * sizeY);
+      copyOut(re, sizeX, scale, out, w, h, realX, realY, tileW, tileH);
+      if (paired) {
+        copyOut(im, sizeX, scale, out, w, h, imagX, imagY, tileW, tileH);
+      }
+    }
+  }
+
+  /**
+   * Return the transform of the kernel for transforms of the given size, computing it the first
+   * time it is asked for.
+   *
+   * @param sizeX the width of the transform
+   * @param sizeY the height of the transform
+   * @return the real and imaginary parts of the transform
+   */
+  private double[][] spectrum(int sizeX, int sizeY) {
+    return this.spectra.computeIfAbsent(((long) sizeX << 32) | sizeY, key -> {
+      double[] re = new double[sizeX * sizeY];
+      double[] im = new double[sizeX * sizeY];
+      for (int kernY = 0; kernY < this.kernH; ++kernY) {
+        System.arraycopy(this.kernel[kernY], 0, re, kernY * sizeX, this.kernW);
+      }
+      transform2d(re, im, sizeX, sizeY, false);
+      return new double[][]{re, im};
+    });
+  }
+
+  /**
+   * Copy a tile of channel values and its border into the top left of a transform buffer, with
+   * zeros everywhere else.
+   *
+   * @param buffer the sizeX by sizeY transform buffer
+   * @param sizeX  the width of the transform
+   * @param sizeY  the height of the transform
+   * @param src    the channel values
+   * @param srcW   the width of src
+   * @param srcH   the height of src
+   * @param fromX  the column of src that goes in the first column of the buffer
+   * @param fromY  the row of src that goes in the first row of the buffer
+   */
+  private void fill(double[] buffer, int sizeX, int sizeY, int[] src, int srcW, int srcH,
+                    int fromX, int fromY) {
+    Arrays.fill(buffer, 0.0);
+    int colFrom = Math.max(0, -fromX);
+    int colTo = Math.min(sizeX, srcW - fromX);
+    for (int row = Math.max(0, -fromY); row < Math.min(sizeY, srcH - fromY); ++row) {
+      int offset = (fromY + row) * srcW + fromX;
+      for (int col = colFrom; col < colTo; ++col) {
+        buffer[row * sizeX + col] = src[offset + col];
+      }
+    }
+  }
+
+  /**
+   * Copy the part of a correlated tile that is not affected by wrapping around into the output.
+   *
+   * @param buffer the sizeX wide correlated tile
+   * @param sizeX  the width of the transform
+   * @param scale  the factor that undoes the scaling of the inverse transform
+   * @param out    the output
+   * @param w      the width of the output
+   * @param h      the height of the output
+   * @param tileX  the column of the output the tile starts at
+   * @param tileY  the row of the output the tile starts at
+   * @param tileW  the width of a whole tile
+   * @param tileH  the height of a whole tile
+   */
+  private static void copyOut(double[] buffer, int sizeX, double scale, double[] out, int w, int h,
+                              int tileX, int tileY, int tileW, int tileH) {
+    for (int row = 0; row < Math.min(tileH, h - tileY); ++row) {
+      for (int col = 0; col < Math.min(tileW, w - tileX); ++col) {
+        out[(tileY + row) * w + tileX + col] = buffer[row * sizeX + col] * scale;
+      }
+    }
+  }
+
+  /**
+   * Return the power of two transform size to use along a side of the output.
+   *
+   * @param length     the length of the output along the side
+   * @param kernLength the length of the kernel along the side
+   * @return the transform size
+   */
+  private static int transformSize(int length, int kernLength) {
+    int tile = Math.min(length, Math.max(MIN_TILE, TILE_KERNELS * kernLength));
+    return Math.max(2, Integer.highestOneBit(tile + kernLength - 2) << 1);
+  }
+
+  /**
+   * Transform a 2D complex array in place, rows first and then columns.
+   *
+   * @param re      the real parts, sizeX by sizeY in row major order
+   * @param im      the imaginary parts
+   * @param sizeX   the width, a power of two
+   * @param sizeY   the height, a power of two
+   * @param inverse true for the inverse transform, which is left unscaled
+   */
+  private static void transform2d(double[] re, double[] im, int sizeX, int sizeY,
+                                  boolean inverse) {
+    double[] rowRe = new double[sizeX];
+    double[] rowIm = new double[sizeX];
+    for (int row = 0; row < sizeY; ++row) {
+      System.arraycopy(re, row * sizeX, rowRe, 0, sizeX);
+      System.arraycopy(im, row * sizeX, rowIm, 0, sizeX);
+      transform(rowRe, rowIm, inverse);
+      System.arraycopy(rowRe, 0, re, row * sizeX, sizeX);
+      System.arraycopy(rowIm, 0, im, row * sizeX, sizeX);
+    }
+    double[] colRe = new double[sizeY];
+    double[] colIm = new double[sizeY];
+    for (int col = 0; col < sizeX; ++col) {
+      for (int row = 0; row < sizeY; ++row) {
+        colRe[row] = re[row * sizeX + col];
+        colIm[row] = im[row * sizeX + col];
+      }
+      transform(colRe, colIm, inverse);
+      for (int row = 0; row < sizeY; ++row) {
+        re[row * sizeX + col] = colRe[row];
+        im[row * sizeX + col] = colIm[row];
+      }
+    }
+  }
+
+  /**
+   * Transform a complex array in place with the iterative radix 2 algorithm.
+   *
+   * @param re      the real parts, a power of two long
+   * @param im      the imaginary parts
+   * @param inverse true for the inverse transform, which is left unscaled
+   */
+  private static void transform(double[] re, double[] im, boolean inverse) {
+    int n = re.length;
+    // put the values in bit reversed order
+    for (int i = 1, j = 0; i < n; ++i) {
+      int bit = n >> 1;
+      for (; (j & bit) != 0; bit >>= 1) {
+        j ^= bit;
+      }
+      j ^= bit;
+      if (i < j) {
+        double t = re[i];
+        re[i] = re[j];
+        re[j] = t;
+        t = im[i];
+        im[i] = im[j];
+        im[j] = t;
+      }
+    }
+    for (int len = 2; len <= n; len <<= 1) {
+      double angle = (inverse ? 2 : -2) * Math.PI / len;
+      int half = len >> 1;
+      for (int k = 0; k < half; ++k) {
+        double wRe = Math.cos(angle * k);
+        double wIm = Math.sin(angle * k);
+        for (int i = k; i < n; i += len) {
+          int j = i + half;
+          double tRe = re[j] * wRe - im[j] * wIm;
+          double tIm = re[j] * wIm + im[j] * wRe;
+          re[j] = re[i] - tRe;
+          im[j] = im[i] - tIm;
+          re[i] += tRe;
+          im[i] += tIm;
+        }
+      }
+    }
+  }
+}
@@ -1,29 +1,143 @@
 package imagemodel;
 
+import java.util.Arrays;
+
 /**
  * Filter is an ImageEffect that can filter the pixel of an Image with pre-designed kernel.
  * Filtering modifies the value of a pixel depending on the values of its neighbors.
+ *
+ * <p>Kernels that are the outer product of a column and a row (separable kernels, like Blur) are
+ * applied as a horizontal pass followed by a vertical pass, which takes 2K rather than K * K
+ * multiply-adds per value for a K by K kernel. This is only done when every sum in both passes is
+ * exact in double precision, so it gives exactly the same values as applying the whole kernel.
+ * That holds for kernels whose values are fractions with power of two denominators, such as
+ * binomial approximations of a Gaussian.
+ *
+ * <p>When every kernel value is a whole number of 2^-b for some small b, as in Blur and Sharpen,
+ * the kernel is scaled by 2^b and applied with int arithmetic, and the sums are divided by 2^b
+ * rounding toward zero. Such sums are exact, just like the double sums for these kernels, so the
+ * results are exactly the same. Kernels with other values, such as 1/9, would have to be rounded
+ * to be scaled, which would change some outputs by one, so they keep using doubles. Kernels whose
+ * scaled sums could overflow an int keep using doubles too.
+ *
+ * <p>Other kernels with at least FFT_MIN_VALUES values are applied through the fast Fourier
+ * transform, whose cost hardly grows with the size of the kernel. The transform is only accurate to
+ * a tiny fraction of the largest possible sum, so any sum it puts close enough to a whole number
+ * for truncation to go either way is computed again directly. The output is therefore exactly the
+ * same as applying the kernel directly.
+ *
+ * <p>Bands of rows are convolved on several threads at once, one for each core unless a different
+ * parallelism is given. Each output value is computed the same way on whichever thread computes
+ * it, so the output does not depend on the parallelism.
  */
-public class Filter implements ImageEffect {
+public class Filter extends RegionEffect {
   /**
    * A 2D double array that can be applied to the pixel of an Image.
    * Kernel should always have odd width and length.
    */
   private final double[][] kernel;
 
+  /**
+   * The kernel as the outer product columnFactors x rowFactors, or null if it can't be applied in
+   * two exact passes.
+   */
+  private final double[] columnFactors;
+  private final double[] rowFactors;
+
+  /**
+   * The kernel, or its column and row factors if it is separable, scaled by 2^fixedBits to whole
+   * numbers, or null if it can't be applied with int arithmetic.
+   */
+  private final int[][] fixedKernel;
+  private final int[] fixedColumnFactors;
+  private final int[] fixedRowFactors;
+  private final int fixedBits;
+
+  /**
+   * Applies the kernel through the fast Fourier transform, or null if it is applied directly.
+   */
+  private final FFTConvolver fourier;
+
+  /**
+   * How close to a whole number a sum from the Fourier transform must be to be computed again.
+   */
+  private final double tolerance;
+
+  /**
+   * The number of threads to convolve on, or 0 for one per core.
+   */
+  private final int parallelism;
+
   /**
    * The number of channels this filter has.
    */
   private static final int NUM_CHANNELS = 3;
 
   /**
-   * The Default Constructor of a Filter that takes a 2D double array as the kernel.
+   * The number of output pixels whose neighborhoods are fetched from the input at a time.
+   */
+  private static final int BAND_PIXELS = 1 << 16;
+
+  /**
+   * The largest channel value a kernel is applied to.
+   */
+  private static final int MAX_VAL = 255;
+
+  /**
+   * Doubles hold every integer up to 2^53 exactly.
+   */
+  private static final double EXACT_LIMIT = 0x1p53;
+
+  /**
+   * Sums of scaled kernel values must stay below this to fit in an int.
+   */
+  private static final double FIXED_LIMIT = 0x1p31;
+
+  /**
+   * The most fraction bits a kernel value may have to be scaled to a whole number. Dividing by 2^31
+   * or more does not fit in an int shift.
+   */
+  private static final int MAX_FIXED_BITS = 30;
+
+  /**
+   * The number of values a kernel that is not separable must have to be applied through the
+   * Fourier transform, where that starts being faster than applying it directly.
+   */
+  static final int FFT_MIN_VALUES = 15 * 15;
+
+  /**
+   * The error of a sum from the Fourier transform that is allowed for, as a fraction of the largest
+   * possible sum. It is orders of magnitude more than the rounding error of either computation.
+   */
+  private static final double FFT_RELATIVE_ERROR = 1e-8;
+
+  /**
+   * The Default Constructor of a Filter that takes a 2D double array as the kernel. It convolves on
+   * one thread per core.
    *
    * @param kernel the given 2D double array
    * @throws IllegalArgumentException if kernel is empty or length is not odd
    *                                  or the dimension is not consistent
    */
   public Filter(double[][] kernel) throws IllegalArgumentException {
+    this(kernel, 0);
+  }
+
+  /**
+   * Constructs a Filter that takes a 2D double array as the kernel and convolves on the given
+   * number of threads.
+   *
+   * @param kernel      the given 2D double array
+   * @param parallelism the number of threads to use, 1 to stay on the calling thread, or 0 for one
+   *                    per core
+   * @throws IllegalArgumentException if kernel is empty or length is not odd or the dimension is
+   *                                  not consistent, or parallelism is negative
+   */
+  public Filter(double[][] kernel, int parallelism) throws IllegalArgumentException {
+    if (parallelism < 0) {
+      throw new IllegalArgumentException("parallelism can't be negative");
+    }
+    this.parallelism = parallelism;
     if (kernel == null) {
       throw new IllegalArgumentException("kernel can't be null");
     }
@@ -33,69 +147,685 @@ public class Filter implements ImageEffect {
     if (kernel.length % 2 == 0 || kernel[0].length % 2 == 0) {
       throw new IllegalArgumentException("kernel must have odd dimensions");
     }
-    this.kernel = kernel;
+    // copied so the factors always match the kernel
+    this.kernel = kernel.clone();
     if (!areKernelDimensionsConsistent()) {
       throw new IllegalArgumentException("kernel dimensions must be consistent");
     }
+    for (int kernY = 0; kernY < kernel.length; ++kernY) {
+      this.kernel[kernY] = kernel[kernY].clone();
+    }
+    double[][] factors = this.separate();
+    this.columnFactors = factors == null ? null : factors[0];
+    this.rowFactors = factors == null ? null : factors[1];
+    double total = 0;
+    for (double[] row : this.kernel) {
+      for (double value : row) {
+        total += Math.abs(value);
+      }
+    }
+    boolean large = this.getWidth() * this.getHeight() >= FFT_MIN_VALUES;
+    boolean finite = !Double.isInfinite(total) && !Double.isNaN(total);
+    this.fourier = factors == null && large && finite ? new FFTConvolver(this.kernel) : null;
+    this.tolerance = FFT_RELATIVE_ERROR * MAX_VAL * total;
+    if (factors != null) {
+      int columnBits = fractionBits(factors[0]);
+      int rowBits = fractionBits(factors[1]);
+      this.fixedBits = columnBits + rowBits;
+      boolean fits = fitsFixed(sumOfMagnitudes(factors[0]) * sumOfMagnitudes(factors[1]),
+              this.fixedBits);
+      this.fixedColumnFactors = fits ? toFixed(factors[0], columnBits) : null;
+      this.fixedRowFactors = fits ? toFixed(factors[1], rowBits) : null;
+      this.fixedKernel = null;
+    } else {
+      int bits = 0;
+      for (double[] row : this.kernel) {
+        bits = Math.max(bits, fractionBits(row));
+      }
+      this.fixedBits = bits;
+      this.fixedColumnFactors = null;
+      this.fixedRowFactors = null;
+      if (finite && fitsFixed(total, bits)) {
+        this.fixedKernel = new int[this.getHeight()][];
+        for (int kernY = 0; kernY < this.getHeight(); ++kernY) {
+          this.fixedKernel[kernY] = toFixed(this.kernel[kernY], bits);
+        }
+      } else {
+        this.fixedKernel = null;
+      }
+    }
   }
 
   /**
-   * Apply this Filter to an Image.
+   * Apply this Filter to an Image, reporting progress to the given monitor and giving up if it is
+   * cancelled.
    *
-   * @param input the given Image
+   * @param input   the given Image
+   * @param monitor receives progress and says when to stop
    * @return a new Image after applying this filter
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled
+   */
+  @Override
+  public Image apply(Image input, ProgressMonitor monitor) {
+    if (input instanceof PlanarRGBArray) {
+      return this.applyPlanar((PlanarRGBArray) input, monitor);
+    }
+    return super.apply(input, monitor);
+  }
+
+  /**
+   * Compute a rectangular region of the output of this Filter as packed pixels.
+   *
+   * @param input the given Image
+   * @param x     the left edge of the region
+   * @param y     the top edge of the region
+   * @param w     the width of the region
+   * @param h     the height of the region
+   * @param dst   an array of at least w * h pixels to write the region into
    */
   @Override
-  public Image apply(Image input) {
+  protected void computeRegion(Image input, int x, int y, int w, int h, int[] dst) {
+    int bandRows = Math.max(1, Math.min(h, BAND_PIXELS / w));
+    int[][] sums = new int[NUM_CHANNELS][bandRows * w];
+    for (int bandY = y; bandY < y + h; bandY += bandRows) {
+      int rows = Math.min(bandRows, y + h - bandY);
+      for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+        this.convolve(input, channel, x, bandY, w, rows, sums[channel]);
+      }
+      int offset = (bandY - y) * w;
+      for (int i = 0; i < rows * w; ++i) {
+        dst[offset + i] = PackedRGBArray.pack(sums[0][i], sums[1][i], sums[2][i]);
+      }
+    }
+  }
+
+  /**
+   * Apply this Filter to a planar Image one channel plane at a time, producing a planar Image.
+   * Gives the same values as the general path.
+   *
+   * @param input   the given planar Image
+   * @param monitor receives progress after each band of rows and says when to stop
+   * @return a new planar Image after applying this filter
+   */
+  private Image applyPlanar(PlanarRGBArray input, ProgressMonitor monitor) {
     int w = input.getWidth();
     int h = input.getHeight();
-    int[][][] output = new int[h][w][NUM_CHANNELS];
+    int bandRows = Math.max(1, Math.min(h, BAND_PIXELS / w));
+    int bandsPerChannel = (h + bandRows - 1) / bandRows;
+    byte[][] output = new byte[NUM_CHANNELS][w * h];
+    this.forEachBand(NUM_CHANNELS * bandsPerChannel, monitor, i -> {
+      int channel = i / bandsPerChannel;
+      int y = (i % bandsPerChannel) * bandRows;
+      int rows = Math.min(bandRows, h - y);
+      int[] sums = new int[rows * w];
+      this.convolve(input, channel, 0, y, w, rows, sums);
+      for (int j = 0; j < rows * w; ++j) {
+        output[channel][y * w + j] = (byte) PackedRGBArray.clamp(sums[j]);
+      }
+    });
+    return new PlanarRGBArray(w, h, output);
+  }
 
-    for (int y = 0; y < h; ++y) {
-      for (int x = 0; x < w; ++x) {
-        for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
-          output[y][x][channel] = this.applyKernel(input, x, y, channel);
+  /**
+   * Return the number of threads this Filter convolves on.
+   *
+   * @return the number of threads to use, or 0 for one per core
+   */
+  @Override
+  protected int getParallelism() {
+    return this.parallelism;
+  }
+
+  /**
+   * Return a Filter whose kernel is the two kernels of the given Filters convolved together, so
+   * that applying it is like applying first and then second without clamping or truncating the
+   * values in between. The composed kernel is as wide and tall as the two kernels put together,
+   * less one, and is applied in one pass through whichever fast path suits it.
+   *
+   * <p>Applying Filters one at a time clamps and truncates each intermediate Image, and a Filter
+   * only sums the pixels inside the image, so near the edges the second kernel never sees what the
+   * first would have computed outside the image. The composed Filter therefore only gives the same
+   * Image as applying the two in turn when composesExactly says so. Otherwise it is an unclamped
+   * approximation that is only to be used when that is asked for.
+   *
+   * @param first  the Filter applied first
+   * @param second the Filter applied to its output
+   * @return a Filter with the composed kernel and the parallelism of first
+   * @throws IllegalArgumentException if either Filter is null
+   */
+  public static Filter compose(Filter first, Filter second) throws IllegalArgumentException {
+    if (first == null || second == null) {
+      throw new IllegalArgumentException("filters can't be null");
+    }
+    double[][] kernel = new double[first.getHeight() + second.getHeight() - 1]
+            [first.getWidth() + second.getWidth() - 1];
+    for (int firstY = 0; firstY < first.getHeight(); ++firstY) {
+      for (int firstX = 0; firstX < first.getWidth(); ++firstX) {
+        for (int secondY = 0; secondY < second.getHeight(); ++secondY) {
+          for (int secondX = 0; secondX < second.getWidth(); ++secondX) {
+            kernel[firstY + secondY][firstX + secondX] +=
+                    first.kernel[firstY][firstX] * second.kernel[secondY][secondX];
+          }
         }
       }
     }
+    return new Filter(kernel, first.parallelism);
+  }
 
-    return new RGBArray(output);
+  /**
+   * Return whether the Filter from compose gives exactly the same Image as applying the two
+   * Filters one at a time, for every Image. That needs the first Filter never to clamp or
+   * truncate, or the second to leave its output unchanged, and the edges of the image to make no
+   * difference. Those hold when both kernels are finite and either the first kernel is all zeros,
+   * or one kernel is zero except for a single 1 at its center, or the first kernel is zero except
+   * for a single 1 and the second kernel is a single value. It does not hold for Blur and Sharpen,
+   * whose intermediate values are truncated.
+   *
+   * @param first  the Filter applied first
+   * @param second the Filter applied to its output
+   * @return true if the composed Filter is exact
+   * @throws IllegalArgumentException if either Filter is null
+   */
+  public static boolean composesExactly(Filter first, Filter second)
+          throws IllegalArgumentException {
+    if (first == null || second == null) {
+      throw new IllegalArgumentException("filters can't be null");
+    }
+    // an infinite value times the zeros of the other kernel would put NaN in the composed kernel
+    if (!first.isFinite() || !second.isFinite()) {
+      return false;
+    }
+    boolean single = second.getWidth() == 1 && second.getHeight() == 1;
+    return first.isZero() || first.isIdentity() || second.isIdentity()
+            || (single && first.onePosition() >= 0);
+  }
+
+  /**
+   * Return whether every value of the kernel is finite.
+   *
+   * @return true if no value is infinite or NaN
+   */
+  private boolean isFinite() {
+    for (double[] row : this.kernel) {
+      for (double value : row) {
+        if (Double.isInfinite(value) || Double.isNaN(value)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Return whether every value of the kernel is zero.
+   *
+   * @return true if the kernel is all zeros
+   */
+  private boolean isZero() {
+    for (double[] row : this.kernel) {
+      for (double value : row) {
+        if (value != 0) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Return whether the kernel is zero except for a 1 at its center, so that it leaves Images
+   * unchanged.
+   *
+   * @return true if the kernel is the identity
+   */
+  private boolean isIdentity() {
+    return this.onePosition() == this.getHeight() / 2 * this.getWidth() + this.getWidth() / 2;
+  }
+
+  /**
+   * Return where the kernel's only nonzero value is, if it is 1.
+   *
+   * @return the row major index of the 1, or -1 if the kernel is not zero except for a single 1
+   */
+  private int onePosition() {
+    int position = -1;
+    for (int kernY = 0; kernY < this.getHeight(); ++kernY) {
+      for (int kernX = 0; kernX < this.getWidth(); ++kernX) {
+        double value = this.kernel[kernY][kernX];
+        if (value == 1 && position < 0) {
+          position = kernY * this.getWidth() + kernX;
+        } else if (value != 0) {
+          return -1;
+        }
+      }
+    }
+    return position;
+  }
+
+  /**
+   * Convolve a rectangle of one channel of an Image with the kernel of this Filter, leaving the
+   * sums truncated but not clamped. The pixels any kernel placed over the rectangle can reach are
+   * fetched from the input in one go.
+   *
+   * @param input   the given Image
+   * @param channel the channel to convolve
+   * @param x       the left edge of the rectangle
+   * @param y       the top edge of the rectangle
+   * @param w       the width of the rectangle
+   * @param h       the height of the rectangle
+   * @param sums    an array of at least w * h values to write the sums into in row major order
+   */
+  private void convolve(Image input, int channel, int x, int y, int w, int h, int[] sums) {
+    int[] rect = this.neighborhood(input, x, y, w, h);
+    int[] src = new int[rect[2] * rect[3]];
+    input.getChannelRegion(rect[0], rect[1], rect[2], rect[3], channel, src);
+    this.convolve(src, rect[0], rect[1], rect[2], rect[3], x, y, w, h, sums);
+  }
+
+  /**
+   * Compute a rectangular region of the output of this Filter as packed pixels with Transforms
+   * fused in, so that the output is the same as applying the Transforms before, then this Filter,
+   * then the Transforms after, one at a time. The pixels of each band are put through the
+   * Transforms before as they are fetched, and each band of output is put through the Transforms
+   * after as soon as it is computed, so no intermediate Image is made.
+   *
+   * @param input  the given Image
+   * @param before the Transforms to apply to the input first, in order
+   * @param after  the Transforms to apply to the output of this Filter, in order
+   * @param x      the left edge of the region
+   * @param y      the top edge of the region
+   * @param w      the width of the region
+   * @param h      the height of the region
+   * @param dst    an array of at least w * h pixels to write the region into
+   */
+  void computeRegion(Image input, Transform[] before, Transform[] after, int x, int y, int w,
+                     int h, int[] dst) {
+    int bandRows = Math.max(1, Math.min(h, BAND_PIXELS / w));
+    int[][] sums = new int[NUM_CHANNELS][bandRows * w];
+    for (int bandY = y; bandY < y + h; bandY += bandRows) {
+      int rows = Math.min(bandRows, y + h - bandY);
+      int[] rect = this.neighborhood(input, x, bandY, w, rows);
+      int[] pixels = new int[rect[2] * rect[3]];
+      input.getPackedRegion(rect[0], rect[1], rect[2], rect[3], pixels);
+      for (Transform transform : before) {
+        transform.transformPixels(pixels, 0, pixels.length);
+      }
+      int[] src = new int[pixels.length];
+      for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+        for (int i = 0; i < pixels.length; ++i) {
+          src[i] = PackedRGBArray.unpack(pixels[i], channel);
+        }
+        this.convolve(src, rect[0], rect[1], rect[2], rect[3], x, bandY, w, rows, sums[channel]);
+      }
+      int offset = (bandY - y) * w;
+      for (int i = 0; i < rows * w; ++i) {
+        dst[offset + i] = PackedRGBArray.pack(sums[0][i], sums[1][i], sums[2][i]);
+      }
+      for (Transform transform : after) {
+        transform.transformPixels(dst, offset, offset + rows * w);
+      }
+    }
+  }
+
+  /**
+   * Return the neighborhood of a rectangle that any kernel placed over it can reach, clipped to
+   * the image.
+   *
+   * @param input the given Image
+   * @param x     the left edge of the rectangle
+   * @param y     the top edge of the rectangle
+   * @param w     the width of the rectangle
+   * @param h     the height of the rectangle
+   * @return the x, y, width, and height of the neighborhood
+   */
+  private int[] neighborhood(Image input, int x, int y, int w, int h) {
+    int srcX = Math.max(0, x - this.getWidth() / 2);
+    int srcY = Math.max(0, y - this.getHeight() / 2);
+    int srcW = Math.min(input.getWidth(), x + w + this.getWidth() / 2) - srcX;
+    int srcH = Math.min(input.getHeight(), y + h + this.getHeight() / 2) - srcY;
+    return new int[]{srcX, srcY, srcW, srcH};
+  }
+
+  /**
+   * Convolve a rectangle of one channel with the kernel of this Filter, leaving the sums truncated
+   * but not clamped, by whichever method gives exactly the right sums fastest.
+   *
+   * @param src  the values of one channel over the neighborhood of the rectangle
+   * @param srcX the left edge of the neighborhood within the image
+   * @param srcY the top edge of the neighborhood within the image
+   * @param srcW the width of the neighborhood
+   * @param srcH the height of the neighborhood
+   * @param x    the left edge of the rectangle
+   * @param y    the top edge of the rectangle
+   * @param w    the width of the rectangle
+   * @param h    the height of the rectangle
+   * @param sums an array of at least w * h values to write the truncated sums into
+   */
+  private void convolve(int[] src, int srcX, int srcY, int srcW, int srcH, int x, int y, int w,
+                        int h, int[] sums) {
+    if (this.fixedRowFactors != null) {
+      this.convolveSeparableFixed(src, srcX, srcY, srcW, srcH, x, y, w, h, sums);
+    } else if (this.rowFactors != null) {
+      this.convolveSeparable(src, srcX, srcY, srcW, srcH, x, y, w, h, sums);
+    } else if (this.fourier != null) {
+      this.convolveFourier(src, srcX, srcY, srcW, srcH, x, y, w, h, sums);
+    } else if (this.fixedKernel != null) {
+      this.convolveDirectFixed(src, srcX, srcY, srcW, srcH, x, y, w, h, sums);
+    } else {
+      this.convolveDirect(src, srcX, srcY, srcW, srcH, x, y, w, h, sums);
+    }
+  }
+
+  /**
+   * Convolve a rectangle with the whole kernel a row at a time. Each kernel value is multiplied
+   * onto the run of output columns it overlaps pixels for, so every sum gets the same terms in the
+   * same order as when the kernel is applied one pixel at a time, and kernel values that do not
+   * overlap any pixels are left out.
+   *
+   * @param src  the values of one channel over the neighborhood of the rectangle
+   * @param srcX the left edge of the neighborhood within the image
+   * @param srcY the top edge of the neighborhood within the image
+   * @param srcW the width of the neighborhood
+   * @param srcH the height of the neighborhood
+   * @param x    the left edge of the rectangle
+   * @param y    the top edge of the rectangle
+   * @param w    the width of the rectangle
+   * @param h    the height of the rectangle
+   * @param sums an array of at least w * h values to write the truncated sums into
+   */
+  private void convolveDirect(int[] src, int srcX, int srcY, int srcW, int srcH,
+                              int x, int y, int w, int h, int[] sums) {
+    double[] rowSums = new double[w];
+    for (int row = 0; row < h; ++row) {
+      Arrays.fill(rowSums, 0.0);
+      int cornerY = y + row - this.getHeight() / 2 - srcY;
+      for (int kernY = 0; kernY < this.getHeight(); ++kernY) {
+        int srcRow = cornerY + kernY;
+        if (srcRow < 0 || srcRow >= srcH) {
+          continue;
+        }
+        for (int kernX = 0; kernX < this.getWidth(); ++kernX) {
+          // source column of output column col is col + shift
+          int shift = x - this.getWidth() / 2 - srcX + kernX;
+          int from = Math.max(0, -shift);
+          int to = Math.min(w, srcW - shift);
+          accumulate(rowSums, from, src, srcRow * srcW + from + shift, to - from,
+                  this.kernel[kernY][kernX]);
+        }
+      }
+      for (int col = 0; col < w; ++col) {
+        sums[row * w + col] = (int) rowSums[col];
+      }
+    }
+  }
+
+  /**
+   * Convolve a rectangle with a separable kernel as a horizontal pass over every row of its
+   * neighborhood followed by a vertical pass. Kernel values that do not overlap any pixels are
+   * left out of both passes, just like convolveDirect leaves them out.
+   *
+   * @param src  the values of one channel over the neighborhood of the rectangle
+   * @param srcX the left edge of the neighborhood within the image
+   * @param srcY the top edge of the neighborhood within the image
+   * @param srcW the width of the neighborhood
+   * @param srcH the height of the neighborhood
+   * @param x    the left edge of the rectangle
+   * @param y    the top edge of the rectangle
+   * @param w    the width of the rectangle
+   * @param h    the height of the rectangle
+   * @param sums an array of at least w * h values to write the truncated sums into
+   */
+  private void convolveSeparable(int[] src, int srcX, int srcY, int srcW, int srcH,
+                                 int x, int y, int w, int h, int[] sums) {
+    double[] horizontal = new double[srcH * w];
+    for (int row = 0; row < srcH; ++row) {
+      for (int kernX = 0; kernX < this.rowFactors.length; ++kernX) {
+        int shift = x - this.getWidth() / 2 - srcX + kernX;
+        int from = Math.max(0, -shift);
+        int to = Math.min(w, srcW - shift);
+        accumulate(horizontal, row * w + from, src, row * srcW + from + shift, to - from,
+                this.rowFactors[kernX]);
+      }
+    }
+    double[] rowSums = new double[w];
+    for (int row = 0; row < h; ++row) {
+      Arrays.fill(rowSums, 0.0);
+      int cornerY = y + row - this.getHeight() / 2 - srcY;
+      for (int kernY = 0; kernY < this.columnFactors.length; ++kernY) {
+        int srcRow = cornerY + kernY;
+        if (srcRow >= 0 && srcRow < srcH) {
+          accumulate(rowSums, horizontal, srcRow * w, w, this.columnFactors[kernY]);
+        }
+      }
+      for (int col = 0; col < w; ++col) {
+        sums[row * w + col] = (int) rowSums[col];
+      }
+    }
+  }
+
+  /**
+   * Convolve a rectangle with the kernel scaled to whole numbers, in the same way as
+   * convolveDirect but with int arithmetic. Output rows whose kernel reaches past the top or bottom
+   * of the image skip the kernel rows that do, and the run of output columns each kernel value is
+   * added onto is cut short where it reaches past the left or right, so the loops over runs have
+   * no checks in them.
+   *
+   * @param src  the values of one channel over the neighborhood of the rectangle
+   * @param srcX the left edge of the neighborhood within the image
+   * @param srcY the top edge of the neighborhood within the image
+   * @param srcW the width of the neighborhood
+   * @param srcH the height of the neighborhood
+   * @param x    the left edge of the rectangle
+   * @param y    the top edge of the rectangle
+   * @param w    the width of the rectangle
+   * @param h    the height of the rectangle
+   * @param sums an array of at least w * h values to write the truncated sums into
+   */
+  private void convolveDirectFixed(int[] src, int srcX, int srcY, int srcW, int srcH,
+                                   int x, int y, int w, int h, int[] sums) {
+    int[] rowSums = new int[w];
+    for (int row = 0; row < h; ++row) {
+      Arrays.fill(rowSums, 0);
+      int cornerY = y + row - this.getHeight() / 2 - srcY;
+      for (int kernY = Math.max(0, -cornerY); kernY < Math.min(this.getHeight(), srcH - cornerY);
+           ++kernY) {
+        int srcRow = cornerY + kernY;
+        for (int kernX = 0; kernX < this.getWidth(); ++kernX) {
+          int shift = x - this.getWidth() / 2 - srcX + kernX;
+          int from = Math.max(0, -shift);
+          int to = Math.min(w, srcW - shift);
+          accumulate(rowSums, from, src, srcRow * srcW + from + shift, to - from,
+                  this.fixedKernel[kernY][kernX]);
+        }
+      }
+      for (int col = 0; col < w; ++col) {
+        sums[row * w + col] = truncate(rowSums[col], this.fixedBits);
+      }
+    }
+  }
+
+  /**
+   * Convolve a rectangle with a separable kernel whose factors are scaled to whole numbers, in the
+   * same way as convolveSeparable but with int arithmetic.
+   *
+   * @param src  the values of one channel over the neighborhood of the rectangle
+   * @param srcX the left edge of the neighborhood within the image
+   * @param srcY the top edge of the neighborhood within the image
+   * @param srcW the width of the neighborhood
+   * @param srcH the height of the neighborhood
+   * @param x    the left edge of the rectangle
+   * @param y    the top edge of the rectangle
+   * @param w    the width of the rectangle
+   * @param h    the height of the rectangle
+   * @param sums an array of at least w * h values to write the truncated sums into
+   */
+  private void convolveSeparableFixed(int[] src, int srcX, int srcY, int srcW, int srcH,
+                                      int x, int y, int w, int h, int[] sums) {
+    int[] horizontal = new int[srcH * w];
+    for (int row = 0; row < srcH; ++row) {
+      for (int kernX = 0; kernX < this.fixedRowFactors.length; ++kernX) {
+        int shift = x - this.getWidth() / 2 - srcX + kernX;
+        int from = Math.max(0, -shift);
+        int to = Math.min(w, srcW - shift);
+        accumulate(horizontal, row * w + from, src, row * srcW + from + shift, to - from,
+                this.fixedRowFactors[kernX]);
+      }
+    }
+    int[] rowSums = new int[w];
+    for (int row = 0; row < h; ++row) {
+      Arrays.fill(rowSums, 0);
+      int cornerY = y + row - this.getHeight() / 2 - srcY;
+      for (int kernY = Math.max(0, -cornerY);
+           kernY < Math.min(this.fixedColumnFactors.length, srcH - cornerY); ++kernY) {
+        accumulate(rowSums, 0, horizontal, (cornerY + kernY) * w, w,
+                this.fixedColumnFactors[kernY]);
+      }
+      for (int col = 0; col < w; ++col) {
+        sums[row * w + col] = truncate(rowSums[col], this.fixedBits);
+      }
+    }
+  }
+
+  /**
+   * Convolve a rectangle through the Fourier transform. Sums within the tolerance of a whole
+   * number other than 0, where the transform's error could change how they truncate, are computed
+   * again directly.
+   *
+   * @param src  the values of one channel over the neighborhood of the rectangle
+   * @param srcX the left edge of the neighborhood within the image
+   * @param srcY the top edge of the neighborhood within the image
+   * @param srcW the width of the neighborhood
+   * @param srcH the height of the neighborhood
+   * @param x    the left edge of the rectangle
+   * @param y    the top edge of the rectangle
+   * @param w    the width of the rectangle
+   * @param h    the height of the rectangle
+   * @param sums an array of at least w * h values to write the truncated sums into
+   */
+  private void convolveFourier(int[] src, int srcX, int srcY, int srcW, int srcH,
+                               int x, int y, int w, int h, int[] sums) {
+    double[] approx = new double[w * h];
+    this.fourier.correlate(src, srcW, srcH, x - this.getWidth() / 2 - srcX,
+            y - this.getHeight() / 2 - srcY, w, h, approx);
+    for (int row = 0; row < h; ++row) {
+      for (int col = 0; col < w; ++col) {
+        double sum = approx[row * w + col];
+        double nearest = Math.rint(sum);
+        if (nearest != 0 && Math.abs(sum - nearest) <= this.tolerance) {
+          sums[row * w + col] = this.applyKernel(src, srcX, srcY, srcW, srcH, x + col, y + row);
+        } else {
+          sums[row * w + col] = (int) sum;
+        }
+      }
+    }
   }
 
   /**
    * An apply helper method that is used to calculate a new pixel value
-   * with the given (x, y) and channel of an Image and
+   * with the given (x, y) of one channel of an Image and
    * the kernel of this Filter.
    * If some portions of the kernel do not overlap any pixels,
    * those pixels are not included in the computation.
    *
-   * @param input   the given Image
-   * @param x       the give  x coordinate
-   * @param y       the given y coordinate
-   * @param channel the given channel
+   * @param src  the values of one channel of the given Image over a rectangle that holds every
+   *             pixel the kernel can reach from (x, y), clipped to the image
+   * @param srcX the left edge of that rectangle within the image
+   * @param srcY the top edge of that rectangle within the image
+   * @param srcW the width of that rectangle
+   * @param srcH the height of that rectangle
+   * @param x    the give  x coordinate
+   * @param y    the given y coordinate
    * @return a new pixel value after applying the filter
    */
-  private int applyKernel(Image input, int x, int y, int channel) {
+  private int applyKernel(int[] src, int srcX, int srcY, int srcW, int srcH, int x, int y) {
     double sum = 0.0;
-    // calculate location on original image corresponding to top left corner of kernel
-    int imgCornerX = x - (this.getWidth() / 2);
-    int imgCornerY = y - (this.getHeight() / 2);
+    // calculate location in src corresponding to top left corner of kernel
+    int cornerX = x - (this.getWidth() / 2) - srcX;
+    int cornerY = y - (this.getHeight() / 2) - srcY;
 
     // for each value in the kernel
     for (int kernY = 0; kernY < this.getHeight(); ++kernY) {
+      int srcRow = cornerY + kernY;
+      if (srcRow < 0 || srcRow >= srcH) {
+        continue;
+      }
       for (int kernX = 0; kernX < this.getWidth(); ++kernX) {
-        // compute the equivalent location in the image
-        int imgX = imgCornerX + kernX;
-        int imgY = imgCornerY + kernY;
+        int srcCol = cornerX + kernX;
         // if that location is within the image bounds, multiply kernel and image val, and sum
-        if (input.isValidLocation(imgX, imgY)) {
-          sum += input.getVal(imgX, imgY, channel) * this.kernel[kernY][kernX];
+        if (srcCol >= 0 && srcCol < srcW) {
+          sum += src[srcRow * srcW + srcCol] * this.kernel[kernY][kernX];
         }
       }
     }
     return (int) sum;
   }
 
+  /**
+   * Add a run of channel values times a factor onto a run of sums. This is a plain loop over
+   * arrays with no branches, which the JIT compiles to vector instructions that handle several
+   * values at once.
+   *
+   * @param sums    the sums to add to
+   * @param sumFrom the first sum to add to
+   * @param src     the channel values
+   * @param srcFrom the channel value added to the first sum
+   * @param n       the length of the run, which may be 0 or less for an empty run
+   * @param factor  the factor to multiply the channel values by
+   */
+  private static void accumulate(double[] sums, int sumFrom, int[] src, int srcFrom, int n,
+                                 double factor) {
+    for (int i = 0; i < n; ++i) {
+      sums[sumFrom + i] += src[srcFrom + i] * factor;
+    }
+  }
+
+  /**
+   * Add a run of values times a whole number factor onto a run of int sums, in the same
+   * vectorizable form as the double accumulate.
+   *
+   * @param sums    the sums to add to
+   * @param sumFrom the first sum to add to
+   * @param src     the values
+   * @param srcFrom the value added to the first sum
+   * @param n       the length of the run, which may be 0 or less for an empty run
+   * @param factor  the factor to multiply the values by
+   */
+  private static void accumulate(int[] sums, int sumFrom, int[] src, int srcFrom, int n,
+                                 int factor) {
+    for (int i = 0; i < n; ++i) {
+      sums[sumFrom + i] += src[srcFrom + i] * factor;
+    }
+  }
+
+  /**
+   * Divide a sum of scaled values by 2^bits, rounding toward zero like casting a double to an int
+   * does.
+   *
+   * @param sum  the scaled sum
+   * @param bits the number of fraction bits the sum has
+   * @return the whole part of the sum
+   */
+  private static int truncate(int sum, int bits) {
+    // negative sums are moved up by just under one unit so the shift rounds them toward zero
+    return (sum + ((sum >> 31) & ((1 << bits) - 1))) >> bits;
+  }
+
+  /**
+   * Add a row of partial sums times a factor onto a row of sums, in the same vectorizable form as
+   * the other accumulate.
+   *
+   * @param sums    the w sums to add to
+   * @param src     the partial sums
+   * @param srcFrom the partial sum added to the first sum
+   * @param w       the number of sums
+   * @param factor  the factor to multiply the partial sums by
+   */
+  private static void accumulate(double[] sums, double[] src, int srcFrom, int w, double factor) {
+    for (int i = 0; i < w; ++i) {
+      sums[i] += src[srcFrom + i] * factor;
+    }
+  }
+
   /**
    * Return the width of this Filter's kernel.
    *
@@ -114,6 +844,131 @@ public class Filter implements ImageEffect {
     return this.kernel.length;
   }
 
+  /**
+   * Split the kernel into a column and a row whose outer product it is, taking the row through its
+   * largest value. The split is only used if every value it multiplies and every sum either pass or
+   * the whole kernel can build is a multiple of one power of two below 2^53 of that power, since
+   * then no step of either computation rounds and both give the exact sum.
+   *
+   * @return the column factors and row factors, or null if the kernel is not exactly separable
+   */
+  private double[][] separate() {
+    int pivotY = 0;
+    int pivotX = 0;
+    for (int kernY = 0; kernY < this.getHeight(); ++kernY) {
+      for (int kernX = 0; kernX < this.getWidth(); ++kernX) {
+        if (Math.abs(this.kernel[kernY][kernX]) > Math.abs(this.kernel[pivotY][pivotX])) {
+          pivotY = kernY;
+          pivotX = kernX;
+        }
+      }
+    }
+    double pivot = this.kernel[pivotY][pivotX];
+    if (pivot == 0 || Double.isInfinite(pivot) || Double.isNaN(pivot)) {
+      return null;
+    }
+    double[] column = new double[this.getHeight()];
+    double[] row = this.kernel[pivotY].clone();
+    for (int kernY = 0; kernY < this.getHeight(); ++kernY) {
+      column[kernY] = this.kernel[kernY][pivotX] / pivot;
+    }
+    int columnBits = 0;
+    int rowBits = 0;
+    double columnTotal = 0;
+    double rowTotal = 0;
+    for (double factor : column) {
+      columnBits = Math.max(columnBits, fractionBits(factor));
+      columnTotal += Math.abs(factor);
+    }
+    for (double factor : row) {
+      rowBits = Math.max(rowBits, fractionBits(factor));
+      rowTotal += Math.abs(factor);
+    }
+    // the largest sum either computation can reach, in units of the finest fraction involved
+    if (MAX_VAL * columnTotal * rowTotal * Math.scalb(1.0, columnBits + rowBits) >= EXACT_LIMIT) {
+      return null;
+    }
+    for (int kernY = 0; kernY < this.getHeight(); ++kernY) {
+      for (int kernX = 0; kernX < this.getWidth(); ++kernX) {
+        if (column[kernY] * row[kernX] != this.kernel[kernY][kernX]) {
+          return null;
+        }
+      }
+    }
+    return new double[][]{column, row};
+  }
+
+  /**
+   * Return the number of binary digits after the point a value needs, so that the value times
+   * 2^result is a whole number.
+   *
+   * @param value a double
+   * @return the number of fraction bits of value, or more than any finite double has if it is NaN
+   */
+  private static int fractionBits(double value) {
+    int bits = 0;
+    // no finite double has more than 1074, so NaN stops one past that
+    while (bits <= -Double.MIN_EXPONENT + 52
+            && Math.scalb(value, bits) != Math.rint(Math.scalb(value, bits))) {
+      ++bits;
+    }
+    return bits;
+  }
+
+  /**
+   * Return the most fraction bits any of the values has.
+   *
+   * @param values finite doubles
+   * @return the number of fraction bits that makes every value times 2^result a whole number
+   */
+  private static int fractionBits(double[] values) {
+    int bits = 0;
+    for (double value : values) {
+      bits = Math.max(bits, fractionBits(value));
+    }
+    return bits;
+  }
+
+  /**
+   * Return the sum of the magnitudes of the values.
+   *
+   * @param values the values
+   * @return the sum of their absolute values
+   */
+  private static double sumOfMagnitudes(double[] values) {
+    double total = 0;
+    for (double value : values) {
+      total += Math.abs(value);
+    }
+    return total;
+  }
+
+  /**
+   * Check whether a kernel can be applied with int arithmetic once scaled by 2^bits.
+   *
+   * @param total the sum of the magnitudes of the kernel values
+   * @param bits  the number of fraction bits of the kernel values
+   * @return true if no sum of scaled kernel values times channel values can overflow an int
+   */
+  private static boolean fitsFixed(double total, int bits) {
+    return bits <= MAX_FIXED_BITS && MAX_VAL * total * Math.scalb(1.0, bits) < FIXED_LIMIT;
+  }
+
+  /**
+   * Scale values by 2^bits to whole numbers.
+   *
+   * @param values the values, which must all become whole numbers that fit in an int
+   * @param bits   the number of fraction bits to scale away
+   * @return the scaled values
+   */
+  private static int[] toFixed(double[] values, int bits) {
+    int[] fixed = new int[values.length];
+    for (int i = 0; i < values.length; ++i) {
+      fixed[i] = (int) Math.scalb(values[i], bits);
+    }
+    return fixed;
+  }
+
   /**
    * Check whether the kernel dimension is consistent.
    *
@@ -0,0 +1,121 @@
+package imagemodel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An ImageEffect that applies Transforms, then a Filter, then more Transforms in a single pass over
+ * the Image. The pixels each band of the Filter reads are put through the Transforms before as
+ * they are fetched, and each band of output is put through the Transforms after as soon as it is
+ * convolved, so no intermediate Image is made and the Image is only read and written once. Every
+ * stage still clamps its output between 0 and 255, so the result is exactly the same as applying
+ * the effects one at a time.
+ */
+public class FusedFilter extends RegionEffect {
+  /**
+   * The Transforms applied before the Filter, in order.
+   */
+  private final Transform[] before;
+
+  /**
+   * The Filter.
+   */
+  private final Filter filter;
+
+  /**
+   * The Transforms applied after the Filter, in order.
+   */
+  private final Transform[] after;
+
+  /**
+   * Constructs an effect that applies the given Transforms, Filter, and Transforms in turn.
+   *
+   * @param before the Transforms to apply first, in order, which may be empty
+   * @param filter the Filter to apply to their output
+   * @param after  the Transforms to apply to the output of the Filter, in order, which may be empty
+   * @throws IllegalArgumentException if any argument is null or either list holds null
+   */
+  public FusedFilter(List<Transform> before, Filter filter, List<Transform> after)
+          throws IllegalArgumentException {
+    if (before == null || filter == null || after == null) {
+      throw new IllegalArgumentException("arguments can't be null");
+    }
+    if (before.contains(null) || after.contains(null)) {
+      throw new IllegalArgumentException("Transforms can't be null");
+    }
+    this.before = before.toArray(new Transform[0]);
+    this.filter = filter;
+    this.after = after.toArray(new Transform[0]);
+  }
+
+  /**
+   * Return the Transforms applied before the Filter.
+   *
+   * @return a copy of the list of Transforms, in order
+   */
+  public List<Transform> getBefore() {
+    return new ArrayList<>(Arrays.asList(this.before));
+  }
+
+  /**
+   * Return the Filter.
+   *
+   * @return the Filter
+   */
+  public Filter getFilter() {
+    return this.filter;
+  }
+
+  /**
+   * Return the Transforms applied after the Filter.
+   *
+   * @return a copy of the list of Transforms, in order
+   */
+  public List<Transform> getAfter() {
+    return new ArrayList<>(Arrays.asList(this.after));
+  }
+
+  /**
+   * Apply every stage to an Image, reporting progress to the given monitor and giving up if it is
+   * cancelled. Planar input produces planar output, with each band written straight into its
+   * planes.
+   *
+   * @param input   the given Image
+   * @param monitor receives progress and says when to stop
+   * @return a new Image after applying every stage
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled
+   */
+  @Override
+  public Image apply(Image input, ProgressMonitor monitor) {
+    if (input instanceof PlanarRGBArray) {
+      return this.applyToPlanes(input, monitor);
+    }
+    return super.apply(input, monitor);
+  }
+
+  /**
+   * Return the number of threads the Filter convolves on.
+   *
+   * @return the number of threads to use, or 0 for one per core
+   */
+  @Override
+  protected int getParallelism() {
+    return this.filter.getParallelism();
+  }
+
+  /**
+   * Compute a rectangular region of the output as packed pixels.
+   *
+   * @param input the given Image
+   * @param x     the left edge of the region
+   * @param y     the top edge of the region
+   * @param w     the width of the region
+   * @param h     the height of the region
+   * @param dst   an array of at least w * h pixels to write the region into
+   */
+  @Override
+  protected void computeRegion(Image input, int x, int y, int w, int h, int[] dst) {
+    this.filter.computeRegion(input, this.before, this.after, x, y, w, h, dst);
+  }
+}
@@ -0,0 +1,264 @@
+package imagemodel;
+
+/**
+ * A blur of any strength that approximates a Gaussian blur by averaging each pixel over a square
+ * window three times in a row. Three box blurs of radius r add up to a bell shaped blur with a
+ * standard deviation of about r, and each box blur is done as a horizontal then a vertical pass
+ * of running sums, so the cost per pixel is the same for every radius.
+ *
+ * <p>Windows that reach past the edge of the image average only the pixels inside it, so edges
+ * don't darken. The averages of every pass are kept with 8 bits of fraction, rounding half up,
+ * and the final values are rounded to the nearest whole number with Math.round. Every value is
+ * computed with integer arithmetic from the same pixels however the output is split into regions,
+ * so tiled and banded outputs are exactly the same as computing the whole image at once.
+ */
+public class GaussianBlur extends RegionEffect {
+  /**
+   * The number of box blurs that make up the blur.
+   */
+  private static final int PASSES = 3;
+
+  /**
+   * The number of fraction bits kept between passes.
+   */
+  private static final int FRACTION_BITS = 8;
+
+  /**
+   * Bands of the output are at least this many times as tall as the distance read around them.
+   */
+  private static final int BAND_READS = 8;
+
+  /**
+   * The number of channels this effect has.
+   */
+  private static final int NUM_CHANNELS = 3;
+
+  /**
+   * The radius of each box blur.
+   */
+  private final int radius;
+
+  /**
+   * Constructs a blur with about the given standard deviation.
+   *
+   * @param radius the radius of each of the three box blurs, which is about the standard deviation
+   *               of the blur, or 0 to leave images unchanged
+   * @throws IllegalArgumentException if radius is negative
+   */
+  public GaussianBlur(int radius) throws IllegalArgumentException {
+    if (radius < 0) {
+      throw new IllegalArgumentException("radius can't be negative");
+    }
+    this.radius = radius;
+  }
+
+  /**
+   * Return the radius of each box blur.
+   *
+   * @return the radius
+   */
+  public int getRadius() {
+    return this.radius;
+  }
+
+  /**
+   * Apply this blur to an Image, reporting progress to the given monitor and giving up if it is
+   * cancelled. Planar input produces planar output, with each band written straight into its
+   * planes.
+   *
+   * @param input   the given Image
+   * @param monitor receives progress and says when to stop
+   * @return a new Image after applying this blur
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled
+   */
+  @Override
+  public Image apply(Image input, ProgressMonitor monitor) {
+    if (input instanceof PlanarRGBArray) {
+      return this.applyToPlanes(input, monitor);
+    }
+    return super.apply(input, monitor);
+  }
+
+  /**
+   * Return the number of rows in each band of the output, which is at least several times the
+   * distance each output pixel reads from, so most of the rows read for a band are in it.
+   *
+   * @param w the width of the output
+   * @param h the height of the output
+   * @return the number of rows in a band, between 1 and h
+   */
+  @Override
+  protected int getBandRows(int w, int h) {
+    return (int) Math.min(h, Math.max(super.getBandRows(w, h),
+            (long) BAND_READS * PASSES * this.radius));
+  }
+
+  /**
+   * Compute a rectangular region of the output of this blur as packed pixels. Each pass is
+   * computed over the region grown by the radius of every pass still to come, clipped to the
+   * image.
+   *
+   * @param input the given Image
+   * @param x     the left edge of the region
+   * @param y     the top edge of the region
+   * @param w     the width of the region
+   * @param h     the height of the region
+   * @param dst   an array of at least w * h pixels to write the region into
+   */
+  @Override
+  protected void computeRegion(Image input, int x, int y, int w, int h, int[] dst) {
+    int[] rect = this.grow(input, x, y, w, h, PASSES);
+    int[] pixels = new int[rect[2] * rect[3]];
+    input.getPackedRegion(rect[0], rect[1], rect[2], rect[3], pixels);
+    int[][] channels = new int[NUM_CHANNELS][pixels.length];
+    for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+      for (int i = 0; i < pixels.length; ++i) {
+        channels[channel][i] = PackedRGBArray.unpack(pixels[i], channel) << FRACTION_BITS;
+      }
+    }
+    for (int pass = PASSES - 1; pass >= 0; --pass) {
+      int[] target = this.grow(input, x, y, w, h, pass);
+      for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+        channels[channel] = this.boxBlur(channels[channel], rect, target);
+      }
+      rect = target;
+    }
+    for (int i = 0; i < w * h; ++i) {
+      dst[i] = PackedRGBArray.pack(unscale(channels[0][i]), unscale(channels[1][i]),
+              unscale(channels[2][i]));
+    }
+  }
+
+  /**
+   * Box blur the values over one rectangle into a rectangle inside it that is at least the radius
+   * smaller on every side that is not at the edge of the image.
+   *
+   * @param src    the values over the source rectangle in row major order
+   * @param rect   the x, y, width, and height of the source rectangle
+   * @param target the x, y, width, and height of the rectangle to blur into
+   * @return the blurred values over the target rectangle
+   */
+  private int[] boxBlur(int[] src, int[] rect, int[] target) {
+    // blur the rows of the source rectangle that the vertical pass needs across the target columns
+    int[] horizontal = new int[rect[3] * target[2]];
+    for (int row = 0; row < rect[3]; ++row) {
+      this.boxLine(src, row * rect[2], rect[2], horizontal, row * target[2],
+              target[0] - rect[0], target[2]);
+    }
+    return this.boxColumns(horizontal, target[2], rect[3], target[1] - rect[1], target[3]);
+  }
+
+  /**
+   * Average a line of values over windows that reach the radius to either side, keeping a running
+   * sum as the window slides. Windows are cut off at the ends of the line, which are either edges
+   * of the image or at least the radius past the outputs.
+   *
+   * @param src       the values
+   * @param srcFrom   the index of the first value of the line
+   * @param srcLength the number of values in the line
+   * @param dst       the array to write averages into
+   * @param dstFrom   the index of the first average
+   * @param from      the position in the line of the first average
+   * @param length    the number of averages
+   */
+  private void boxLine(int[] src, int srcFrom, int srcLength, int[] dst, int dstFrom, int from,
+                       int length) {
+    // a window wider than the line reaches the same values as one as wide as it
+    int radius = Math.min(this.radius, srcLength);
+    int start = Math.max(0, from - radius);
+    int end = Math.min(srcLength, from + radius + 1);
+    long sum = 0;
+    for (int i = start; i < end; ++i) {
+      sum += src[srcFrom + i];
+    }
+    for (int i = 0; i < length; ++i) {
+      int count = end - start;
+      dst[dstFrom + i] = (int) ((sum + count / 2) / count);
+      int center = from + i + 1;
+      if (center + radius < srcLength) {
+        sum += src[srcFrom + center + radius];
+        ++end;
+      }
+      if (center - radius - 1 >= 0) {
+        sum -= src[srcFrom + center - radius - 1];
+        ++start;
+      }
+    }
+  }
+
+  /**
+   * Average every column of a rectangle of values over windows that reach the radius up and
+   * down, like boxLine does for one line. The window of every column slides down a row at a time
+   * together, so the values are read row by row.
+   *
+   * @param src    the values, w wide and srcH tall in row major order
+   * @param w      the number of columns
+   * @param srcH   the number of rows of values
+   * @param from   the row of the first averages
+   * @param length the number of rows of averages
+   * @return the averages, w wide and length tall in row major order
+   */
+  private int[] boxColumns(int[] src, int w, int srcH, int from, int length) {
+    int radius = Math.min(this.radius, srcH);
+    int start = Math.max(0, from - radius);
+    int end = Math.min(srcH, from + radius + 1);
+    long[] sums = new long[w];
+    for (int row = start; row < end; ++row) {
+      for (int col = 0; col < w; ++col) {
+        sums[col] += src[row * w + col];
+      }
+    }
+    int[] output = new int[w * length];
+    for (int i = 0; i < length; ++i) {
+      int count = end - start;
+      for (int col = 0; col < w; ++col) {
+        output[i * w + col] = (int) ((sums[col] + count / 2) / count);
+      }
+      int center = from + i + 1;
+      if (center + radius < srcH) {
+        for (int col = 0; col < w; ++col) {
+          sums[col] += src[(center + radius) * w + col];
+        }
+        ++end;
+      }
+      if (center - radius - 1 >= 0) {
+        for (int col = 0; col < w; ++col) {
+          sums[col] -= src[(center - radius - 1) * w + col];
+        }
+        ++start;
+      }
+    }
+    return output;
+  }
+
+  /**
+   * Return a rectangle grown by the radius of the given number of passes on every side, clipped to
+   * the image.
+   *
+   * @param input  the image to clip to
+   * @param x      the left edge of the rectangle
+   * @param y      the top edge of the rectangle
+   * @param w      the width of the rectangle
+   * @param h      the height of the rectangle
+   * @param passes the number of passes to grow by
+   * @return the x, y, width, and height of the grown rectangle
+   */
+  private int[] grow(Image input, int x, int y, int w, int h, int passes) {
+    long margin = (long) this.radius * passes;
+    int left = (int) Math.max(0, x - margin);
+    int top = (int) Math.max(0, y - margin);
+    int right = (int) Math.min(input.getWidth(), x + w + margin);
+    int bottom = (int) Math.min(input.getHeight(), y + h + margin);
+    return new int[]{left, top, right - left, bottom - top};
+  }
+
+  /**
+   * Round a value with fraction bits to the nearest whole number.
+   *
+   * @param value the value with FRACTION_BITS bits of fraction
+   * @return the nearest whole number
+   */
+  private static int unscale(int value) {
+    return (int) Math.round(value / (double) (1 << FRACTION_BITS));
+  }
+}
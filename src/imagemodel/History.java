@@ -0,0 +1,60 @@
+package imagemodel;
+
+import java.util.List;
+
+/**
+ * A strategy for keeping the undo and redo history of an ImageModel. The model holds the current
+ * image itself; a History holds whatever it needs to get back to the states before and after it.
+ * Every step records the image before the step, the effect that was applied (if any) and the image
+ * after the step, so implementations are free to keep images, differences between images, or
+ * enough to recompute them.
+ */
+public interface History {
+  /**
+   * Records a step from one image to the next. Steps that could be redone are dropped.
+   *
+   * @param previous the image before the step
+   * @param effect   the effect that produced current from previous, or null if a new image was
+   *                 loaded
+   * @param current  the image after the step
+   * @throws IllegalArgumentException if previous or current is null
+   */
+  void record(Image previous, ImageEffect effect, Image current) throws IllegalArgumentException;
+
+  /**
+   * Steps back from the given current image.
+   *
+   * @param current the current image of the model
+   * @return the image before the most recent step, or null if there is nothing to undo
+   */
+  Image undo(Image current);
+
+  /**
+   * Steps forward again from the given current image after some undo.
+   *
+   * @param current the current image of the model
+   * @return the image after the most recently undone step, or null if there is nothing to redo
+   */
+  Image redo(Image current);
+
+  /**
+   * Returns the number of bytes of pixel data held for each step, for steps that can be undone
+   * from oldest to newest followed by steps that can be redone from nearest to furthest.
+   *
+   * @return the bytes held for each step
+   */
+  List<Long> getStepFootprints();
+
+  /**
+   * Returns the number of bytes of pixel data held by the whole history.
+   *
+   * @return the sum of the footprints of every step
+   */
+  default long getFootprint() {
+    long total = 0;
+    for (long bytes : this.getStepFootprints()) {
+      total += bytes;
+    }
+    return total;
+  }
+}
@@ -1,7 +1,9 @@
 package imagemodel;
 
 /**
- * An interface for an image including all methods an Image class should support.
+ * An interface for an image including all methods an Image class should support. Images are
+ * immutable: the value at a location never changes once the image has been handed out, so an image
+ * can be shared freely instead of copied.
  */
 public interface Image {
   /**
@@ -15,6 +17,67 @@ public interface Image {
    */
   int getVal(int x, int y, int channel) throws IllegalArgumentException;
 
+  /**
+   * Return the pixel value located at the given (x, y) and channel within this Image without
+   * checking that the location is in bounds. Only for callers that have already validated the
+   * location, for example through isValidLocation or by clipping a loop to the image dimensions.
+   * The result for an out of bounds location is unspecified.
+   *
+   * @param x       the given x coordinate, already known to be in bounds
+   * @param y       the given y coordinate, already known to be in bounds
+   * @param channel the given channel, already known to be in bounds
+   * @return the pixel value of the given chanel at given (x, y)
+   */
+  default int getValUnchecked(int x, int y, int channel) {
+    return this.getVal(x, y, channel);
+  }
+
+  /**
+   * Copy a rectangle of this Image into the given array as packed 0xRRGGBB pixels in row major
+   * order. Bounds are checked once for the whole rectangle.
+   *
+   * @param x   the left edge of the rectangle
+   * @param y   the top edge of the rectangle
+   * @param w   the width of the rectangle
+   * @param h   the height of the rectangle
+   * @param dst an array of at least w * h pixels to copy the rectangle into
+   * @throws IllegalArgumentException if the rectangle is not inside this Image or dst is too small
+   */
+  default void getPackedRegion(int x, int y, int w, int h, int[] dst)
+          throws IllegalArgumentException {
+    Regions.check(this, x, y, w, h, dst);
+    for (int row = 0; row < h; ++row) {
+      for (int col = 0; col < w; ++col) {
+        dst[row * w + col] = (this.getValUnchecked(x + col, y + row, 0) << 16)
+                | (this.getValUnchecked(x + col, y + row, 1) << 8)
+                | this.getValUnchecked(x + col, y + row, 2);
+      }
+    }
+  }
+
+  /**
+   * Copy a rectangle of one channel of this Image into the given array in row major order. Bounds
+   * are checked once for the whole rectangle.
+   *
+   * @param x       the left edge of the rectangle
+   * @param y       the top edge of the rectangle
+   * @param w       the width of the rectangle
+   * @param h       the height of the rectangle
+   * @param channel the channel to copy
+   * @param dst     an array of at least w * h values to copy the rectangle into
+   * @throws IllegalArgumentException if the rectangle is not inside this Image, the channel is not
+   *                                  valid, or dst is too small
+   */
+  default void getChannelRegion(int x, int y, int w, int h, int channel, int[] dst)
+          throws IllegalArgumentException {
+    Regions.check(this, x, y, w, h, channel, dst);
+    for (int row = 0; row < h; ++row) {
+      for (int col = 0; col < w; ++col) {
+        dst[row * w + col] = this.getValUnchecked(x + col, y + row, channel);
+      }
+    }
+  }
+
   /**
    * Return a copy of this Image in int[][][] 3 channel RGB value format.
    *
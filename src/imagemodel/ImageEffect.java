@@ -12,4 +12,32 @@ public interface ImageEffect {
    * @return an Image output after applying this ImageEffect
    */
   Image apply(Image input);
+
+  /**
+   * Apply this ImageEffect on an Image, reporting progress to the given monitor and giving up if it
+   * is cancelled. Effects that don't check for cancellation while they run only check before and
+   * after.
+   *
+   * @param input   the given Image
+   * @param monitor receives progress and says when to stop
+   * @return an Image output after applying this ImageEffect
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled
+   */
+  default Image apply(Image input, ProgressMonitor monitor) {
+    monitor.step(0);
+    Image output = this.apply(input);
+    monitor.step(1);
+    return output;
+  }
+
+  /**
+   * Whether applying this ImageEffect to the same Image always gives the same result, so that its
+   * output can be recomputed instead of stored. Effects that don't say otherwise are assumed not
+   * to be.
+   *
+   * @return true if apply is a pure function of its input; false otherwise
+   */
+  default boolean isDeterministic() {
+    return false;
+  }
 }
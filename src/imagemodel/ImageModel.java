@@ -8,7 +8,9 @@ package imagemodel;
  */
 public interface ImageModel {
   /**
-   * Sets the image to be the currently worked upon image.
+   * Sets the image to be the currently worked upon image. The model keeps a reference to the image
+   * rather than a copy, both as the current image and later in its undo history, so the image must
+   * be immutable: its pixels may never change once it has been loaded.
    *
    * @param img an image to work on
    */
@@ -28,6 +30,15 @@ public interface ImageModel {
    */
   void applyEffect();
 
+  /**
+   * Starts applying the stored effect to the currently stored image in the background. The stored
+   * image is only updated once the effect finishes, and not at all if the returned task is
+   * cancelled first.
+   *
+   * @return a handle to follow the progress of the effect, cancel it, or wait for its result
+   */
+  EffectTask applyEffectAsync();
+
   /**
    * Retrieves a copy of the image data of the currently stored image.
    *
@@ -35,6 +46,13 @@ public interface ImageModel {
    */
   int[][][] outputImage();
 
+  /**
+   * Retrieves the currently stored image. Images are immutable, so this is not a copy.
+   *
+   * @return the currently stored image
+   */
+  Image getImage();
+
   /**
    * Retrieves a copy of the pixel width of the currently stored image.
    *
@@ -0,0 +1,302 @@
+package imagemodel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A class that stores an image off the Java heap, in a temporary file that is memory mapped. Pixels
+ * are kept as interleaved R, G, B bytes in row major order, so the heap cost of an image stays the
+ * same no matter how many pixels it has. A single mapping is limited to 2 GB, so large images are
+ * split into several mapped chunks of whole rows.
+ *
+ * <p>A MappedRGBArray starts out black and is filled once through setPackedRows by whatever
+ * produces it, which then freezes it. After that it is immutable like every other Image, and
+ * setPackedRows throws. The temporary file is
+ * removed as soon as it is mapped where the platform allows, and otherwise when the JVM exits.
+ */
+public class MappedRGBArray implements WritableImage {
+  /**
+   * The largest number of bytes to map in a single chunk.
+   */
+  private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+  /**
+   * The number of channels this MappedRGBArray has.
+   */
+  private static final int NUM_CHANNELS = 3;
+
+  private final MappedByteBuffer[] chunks;
+  private final int rowsPerChunk;
+  private final int width;
+  private final int height;
+
+  /**
+   * Set once this image has been filled, after which it can't be written to.
+   */
+  private volatile boolean frozen;
+
+  /**
+   * Constructs a black image of the given size backed by a new temporary file.
+   *
+   * @param width  width of the image in pixels
+   * @param height height of the image in pixels
+   * @throws IllegalArgumentException if either dimension is not positive
+   * @throws IllegalStateException    if the temporary file can't be created or mapped
+   */
+  public MappedRGBArray(int width, int height)
+          throws IllegalArgumentException, IllegalStateException {
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("data must have nonzero dimensions");
+    }
+    if ((long) width * NUM_CHANNELS > MAX_CHUNK_BYTES) {
+      throw new IllegalArgumentException("image is too wide to map");
+    }
+    this.width = width;
+    this.height = height;
+    long rowBytes = (long) width * NUM_CHANNELS;
+    this.rowsPerChunk = (int) Math.min(height, MAX_CHUNK_BYTES / rowBytes);
+    this.chunks = new MappedByteBuffer[(height + this.rowsPerChunk - 1) / this.rowsPerChunk];
+    try {
+      File file = File.createTempFile("image", ".rgb");
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(rowBytes * height);
+        FileChannel channel = raf.getChannel();
+        for (int i = 0; i < this.chunks.length; ++i) {
+          long start = (long) i * this.rowsPerChunk * rowBytes;
+          long size = Math.min(this.rowsPerChunk, height - i * this.rowsPerChunk) * rowBytes;
+          this.chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        }
+      }
+      // mappings stay valid after the file is unlinked on platforms that allow it
+      if (!file.delete()) {
+        file.deleteOnExit();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not create off-heap image storage", e);
+    }
+  }
+
+  /**
+   * Constructs an off-heap copy of any other Image.
+   *
+   * @param img the image to copy
+   * @throws IllegalArgumentException if img is null
+   * @throws IllegalStateException    if the temporary file can't be created or mapped
+   */
+  public MappedRGBArray(Image img) throws IllegalArgumentException, IllegalStateException {
+    this(validateNotNull(img).getWidth(), img.getHeight());
+    int[] row = new int[this.width];
+    for (int y = 0; y < this.height; ++y) {
+      img.getPackedRegion(0, y, this.width, 1, row);
+      this.setPackedRows(y, 1, row);
+    }
+    this.freeze();
+  }
+
+  /**
+   * Overwrite whole rows of this Image with packed 0xRRGGBB pixels.
+   *
+   * @param y       the first row to write
+   * @param numRows the number of rows to write
+   * @param pixels  numRows * width packed pixels in row major order
+   * @throws IllegalArgumentException if the rows are out of bounds or pixels is too short
+   * @throws IllegalStateException    if this Image has been frozen
+   */
+  @Override
+  public void setPackedRows(int y, int numRows, int[] pixels)
+          throws IllegalArgumentException, IllegalStateException {
+    if (this.frozen) {
+      throw new IllegalStateException("image has already been filled");
+    }
+    if (pixels == null || y < 0 || numRows < 0 || y + numRows > this.height
+            || pixels.length < numRows * this.width) {
+      throw new IllegalArgumentException("rows out of bounds");
+    }
+    for (int row = 0; row < numRows; ++row) {
+      MappedByteBuffer chunk = this.chunks[(y + row) / this.rowsPerChunk];
+      int offset = ((y + row) % this.rowsPerChunk) * this.width * NUM_CHANNELS;
+      for (int x = 0; x < this.width; ++x) {
+        int pixel = pixels[row * this.width + x];
+        chunk.put(offset++, (byte) (pixel >> 16));
+        chunk.put(offset++, (byte) (pixel >> 8));
+        chunk.put(offset++, (byte) pixel);
+      }
+    }
+  }
+
+  /**
+   * Stop this Image from being written to again, once it has been filled.
+   */
+  @Override
+  public void freeze() {
+    this.frozen = true;
+  }
+
+  /**
+   * Return the pixel value located at the given (x, y) and channel within this Image.
+   *
+   * @param x       the given x coordinate
+   * @param y       the given y coordinate
+   * @param channel the given channel
+   * @return the pixel value of the given chanel at given (x, y)
+   * @throws IllegalArgumentException if given location is not in bounds
+   */
+  @Override
+  public int getVal(int x, int y, int channel) throws IllegalArgumentException {
+    if (!this.isValidLocation(x, y) || channel < 0 || channel >= NUM_CHANNELS) {
+      throw new IllegalArgumentException("location out of bounds");
+    }
+    int offset = ((y % this.rowsPerChunk) * this.width + x) * NUM_CHANNELS + channel;
+    return this.chunks[y / this.rowsPerChunk].get(offset) & 0xFF;
+  }
+
+  /**
+   * Return the pixel value located at the given (x, y) and channel within this Image without
+   * checking that the location is in bounds.
+   *
+   * @param x       the given x coordinate, already known to be in bounds
+   * @param y       the given y coordinate, already known to be in bounds
+   * @param channel the given channel, already known to be in bounds
+   * @return the pixel value of the given chanel at given (x, y)
+   */
+  @Override
+  public int getValUnchecked(int x, int y, int channel) {
+    int offset = ((y % this.rowsPerChunk) * this.width + x) * NUM_CHANNELS + channel;
+    return this.chunks[y / this.rowsPerChunk].get(offset) & 0xFF;
+  }
+
+  /**
+   * Copy a rectangle of this Image into the given array as packed 0xRRGGBB pixels in row major
+   * order. Each row is read from the mapping in a single bulk transfer.
+   *
+   * @param x   the left edge of the rectangle
+   * @param y   the top edge of the rectangle
+   * @param w   the width of the rectangle
+   * @param h   the height of the rectangle
+   * @param dst an array of at least w * h pixels to copy the rectangle into
+   * @throws IllegalArgumentException if the rectangle is not inside this Image or dst is too small
+   */
+  @Override
+  public void getPackedRegion(int x, int y, int w, int h, int[] dst)
+          throws IllegalArgumentException {
+    Regions.check(this, x, y, w, h, dst);
+    byte[] bytes = new byte[w * NUM_CHANNELS];
+    for (int row = 0; row < h; ++row) {
+      this.readRow(x, y + row, bytes);
+      for (int col = 0; col < w; ++col) {
+        dst[row * w + col] = ((bytes[col * NUM_CHANNELS] & 0xFF) << 16)
+                | ((bytes[col * NUM_CHANNELS + 1] & 0xFF) << 8)
+                | (bytes[col * NUM_CHANNELS + 2] & 0xFF);
+      }
+    }
+  }
+
+  /**
+   * Copy a rectangle of one channel of this Image into the given array in row major order. Each
+   * row is read from the mapping in a single bulk transfer.
+   *
+   * @param x       the left edge of the rectangle
+   * @param y       the top edge of the rectangle
+   * @param w       the width of the rectangle
+   * @param h       the height of the rectangle
+   * @param channel the channel to copy
+   * @param dst     an array of at least w * h values to copy the rectangle into
+   * @throws IllegalArgumentException if the rectangle is not inside this Image, the channel is not
+   *                                  valid, or dst is too small
+   */
+  @Override
+  public void getChannelRegion(int x, int y, int w, int h, int channel, int[] dst)
+          throws IllegalArgumentException {
+    Regions.check(this, x, y, w, h, channel, dst);
+    byte[] bytes = new byte[w * NUM_CHANNELS];
+    for (int row = 0; row < h; ++row) {
+      this.readRow(x, y + row, bytes);
+      for (int col = 0; col < w; ++col) {
+        dst[row * w + col] = bytes[col * NUM_CHANNELS + channel] & 0xFF;
+      }
+    }
+  }
+
+  /**
+   * Return a copy of this Image in int[][][] 3 channel RGB value format. This brings the whole
+   * image onto the heap, so it should be avoided for images that were made off-heap for their size.
+   *
+   * @return an int[][][] representation of this Image
+   */
+  @Override
+  public int[][][] getDataClone() {
+    int[][][] output = new int[this.height][this.width][NUM_CHANNELS];
+    for (int y = 0; y < this.height; ++y) {
+      for (int x = 0; x < this.width; ++x) {
+        for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+          output[y][x][channel] = this.getVal(x, y, channel);
+        }
+      }
+    }
+    return output;
+  }
+
+  /**
+   * Return the width of this Image.
+   *
+   * @return width
+   */
+  @Override
+  public int getWidth() {
+    return this.width;
+  }
+
+  /**
+   * Return the height of this Image.
+   *
+   * @return height
+   */
+  @Override
+  public int getHeight() {
+    return this.height;
+  }
+
+  /**
+   * A helper method that checks if the given (x, y) is inside of this Image.
+   *
+   * @param x the given x coordinate
+   * @param y the given y coordinate
+   * @return true if (x, y) is a valid location inside of this Image; false otherwise
+   */
+  @Override
+  public boolean isValidLocation(int x, int y) {
+    return x >= 0 && x < this.width && y >= 0 && y < this.height;
+  }
+
+  /**
+   * Read the interleaved bytes of part of a row. A duplicate of the mapping is used so concurrent
+   * readers don't share a buffer position.
+   *
+   * @param x     the first column to read
+   * @param y     the row to read
+   * @param bytes the array to fill, three bytes per pixel
+   */
+  private void readRow(int x, int y, byte[] bytes) {
+    ByteBuffer chunk = this.chunks[y / this.rowsPerChunk].duplicate();
+    chunk.position(((y % this.rowsPerChunk) * this.width + x) * NUM_CHANNELS);
+    chunk.get(bytes);
+  }
+
+  /**
+   * Checks a constructor argument before it is used to chain to another constructor.
+   *
+   * @param img the argument to check
+   * @return img
+   * @throws IllegalArgumentException if img is null
+   */
+  private static Image validateNotNull(Image img) throws IllegalArgumentException {
+    if (img == null) {
+      throw new IllegalArgumentException("argument cannot be null");
+    }
+    return img;
+  }
+}
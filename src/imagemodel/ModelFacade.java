@@ -1,6 +1,7 @@
 package imagemodel;
 
-import java.util.Stack;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.FutureTask;
 
 /**
  * A unified way of accessing the parts of the image model. This interface allows an image and an
@@ -13,36 +14,52 @@ public class ModelFacade implements ImageModel {
   private Image img;
   private ImageEffect effect;
 
-  private Stack<int[][][]> previousHistory;
-  private Stack<int[][][]> subsequentHistory;
+  private final History history;
 
   /**
-   * Constructs a model with out anything stored yet.
+   * Constructs a model with out anything stored yet, keeping its undo history by reference.
    */
   public ModelFacade() {
+    this(new ReferenceHistory());
+  }
+
+  /**
+   * Constructs a model with out anything stored yet that keeps its undo history in the given
+   * History.
+   *
+   * @param history the strategy for keeping undo and redo states
+   * @throws IllegalArgumentException if history is null
+   */
+  public ModelFacade(History history) throws IllegalArgumentException {
+    if (history == null) {
+      throw new IllegalArgumentException("Illegal null arg");
+    }
     this.img = null;
     this.effect = null;
-    this.previousHistory = new Stack<>();
-    this.subsequentHistory = new Stack<>();
+    this.history = history;
   }
 
   /**
-   * Sets the image to be the currently worked upon image.
+   * Sets the image to be the currently worked upon image. The image is kept by reference, so it
+   * must not change afterwards, and a WritableImage is frozen so it can't be.
    *
    * @param img an image to work on
    */
   @Override
-  public void loadImage(Image img) {
+  public synchronized void loadImage(Image img) {
     if (img == null) {
       throw new IllegalArgumentException("Illegal null arg");
     }
 
-    // put old img on the undo stack
+    // record the step from the old img, which also clears the redo history
     if (this.img != null) {
-      this.previousHistory.push(this.img.getDataClone());
+      this.history.record(this.img, null, img);
+    }
+
+    // an image being kept by the model and its history can't be written to any more
+    if (img instanceof WritableImage) {
+      ((WritableImage) img).freeze();
     }
-    // clear redo stack
-    this.subsequentHistory.clear();
 
     // set new img
     this.img = img;
@@ -55,7 +72,7 @@ public class ModelFacade implements ImageModel {
    * @param effect an effect to be used on images stored in the model
    */
   @Override
-  public void loadEffect(ImageEffect effect) {
+  public synchronized void loadEffect(ImageEffect effect) {
     if (effect == null) {
       throw new IllegalArgumentException("Illegal null arg");
     }
@@ -69,17 +86,35 @@ public class ModelFacade implements ImageModel {
    * @throws IllegalStateException if no img or effect already loaded
    */
   @Override
-  public void applyEffect() throws IllegalStateException {
+  public synchronized void applyEffect() throws IllegalStateException {
     if (this.img == null || this.effect == null) {
       throw new IllegalStateException("Image and effect must be loaded before applying effect");
     }
-    // put old img on the undo stack
-    this.previousHistory.push(this.img.getDataClone());
-    // clear redo stack
-    this.subsequentHistory.clear();
+    // update image, then record the step, which also clears the redo history
+    Image previous = this.img;
+    this.img = this.effect.apply(previous);
+    this.history.record(previous, this.effect, this.img);
+  }
 
-    // update image
-    this.img = this.effect.apply(this.img);
+  /**
+   * Starts applying the stored effect to the currently stored image on a background thread. When
+   * the effect finishes, the stored image is updated and the step is recorded in the history just
+   * like applyEffect. If the task is cancelled first, or the stored image is changed in the
+   * meantime, the model is left as it is.
+   *
+   * @return a handle to follow the progress of the effect, cancel it, or wait for its result
+   * @throws IllegalStateException if no img or effect already loaded
+   */
+  @Override
+  public synchronized EffectTask applyEffectAsync() throws IllegalStateException {
+    if (this.img == null || this.effect == null) {
+      throw new IllegalStateException("Image and effect must be loaded before applying effect");
+    }
+    EffectFuture task = new EffectFuture(this.img, this.effect);
+    Thread worker = new Thread(task, "image-effect");
+    worker.setDaemon(true);
+    worker.start();
+    return task;
   }
 
   /**
@@ -89,13 +124,27 @@ public class ModelFacade implements ImageModel {
    * @throws IllegalStateException if no img already loaded
    */
   @Override
-  public int[][][] outputImage() throws IllegalStateException {
+  public synchronized int[][][] outputImage() throws IllegalStateException {
     if (this.img == null) {
       throw new IllegalStateException("Image must be loaded before outputing");
     }
     return this.img.getDataClone();
   }
 
+  /**
+   * Retrieves the currently stored image. Images are immutable, so no copy is made.
+   *
+   * @return the currently stored image
+   * @throws IllegalStateException if no img already loaded
+   */
+  @Override
+  public synchronized Image getImage() throws IllegalStateException {
+    if (this.img == null) {
+      throw new IllegalStateException("Image must be loaded before outputing");
+    }
+    return this.img;
+  }
+
   /**
    * Retrieves a copy of the pixel width of the currently stored image.
    *
@@ -103,7 +152,7 @@ public class ModelFacade implements ImageModel {
    * @throws IllegalStateException if no img already loaded
    */
   @Override
-  public int getWidth() throws IllegalStateException {
+  public synchronized int getWidth() throws IllegalStateException {
     if (this.img == null) {
       throw new IllegalStateException("Image must be loaded before outputing");
     }
@@ -117,7 +166,7 @@ public class ModelFacade implements ImageModel {
    * @throws IllegalStateException if no img already loaded
    */
   @Override
-  public int getHeight() throws IllegalStateException {
+  public synchronized int getHeight() throws IllegalStateException {
     if (this.img == null) {
       throw new IllegalStateException("Image must be loaded before outputing");
     }
@@ -131,15 +180,13 @@ public class ModelFacade implements ImageModel {
    * @return True if success, false if no previous state to revert to
    */
   @Override
-  public boolean undo() {
-    if (this.previousHistory.empty()) {
+  public synchronized boolean undo() {
+    // restore most recent image from the undo history
+    Image previous = this.history.undo(this.img);
+    if (previous == null) {
       return false;
     }
-    // push current state on redo stack
-    this.subsequentHistory.push(this.img.getDataClone());
-
-    // restore most recent image from undo stack
-    this.img = new RGBArray(this.previousHistory.pop());
+    this.img = previous;
 
     return true;
   }
@@ -152,16 +199,107 @@ public class ModelFacade implements ImageModel {
    * @return True if success, false if no subsequent state to restore.
    */
   @Override
-  public boolean redo() {
-    if (this.subsequentHistory.empty()) {
+  public synchronized boolean redo() {
+    // restore most recent image from the redo history
+    Image next = this.history.redo(this.img);
+    if (next == null) {
       return false;
     }
-    // push current state on undo stack
-    this.previousHistory.push(this.img.getDataClone());
-
-    // restore most recent image from redo stack
-    this.img = new RGBArray(this.subsequentHistory.pop());
+    this.img = next;
 
     return true;
   }
+
+  /**
+   * An effect applied in the background. Its result only becomes the stored image if the task was
+   * not cancelled and the stored image is still the one the effect was applied to. Both checks and
+   * the update happen while holding the lock of the model, so cancel either stops the update or
+   * comes too late, never half way.
+   */
+  private final class EffectFuture extends FutureTask<Image>
+          implements EffectTask, ProgressMonitor {
+    private final Image previous;
+    private final ImageEffect effect;
+    private volatile double progress;
+
+    /**
+     * Constructs a task that applies effect to previous.
+     *
+     * @param previous the stored image when the task was started
+     * @param effect   the stored effect when the task was started
+     */
+    private EffectFuture(Image previous, ImageEffect effect) {
+      super(() -> null);
+      this.previous = previous;
+      this.effect = effect;
+      this.progress = 0;
+    }
+
+    /**
+     * Applies the effect, then updates the model with the result. This replaces the run of
+     * FutureTask, which has no callable to run, and completes the task itself.
+     */
+    @Override
+    public void run() {
+      Image next;
+      try {
+        next = this.effect.apply(this.previous, this);
+      } catch (CancellationException e) {
+        // cancel has normally completed this task already
+        if (!this.isCancelled()) {
+          this.setException(e);
+        }
+        return;
+      } catch (RuntimeException | Error e) {
+        this.setException(e);
+        return;
+      }
+      synchronized (ModelFacade.this) {
+        if (this.isCancelled()) {
+          return;
+        }
+        if (ModelFacade.this.img != this.previous) {
+          this.setException(new IllegalStateException(
+                  "The image was changed while the effect was being applied"));
+          return;
+        }
+        ModelFacade.this.img = next;
+        ModelFacade.this.history.record(this.previous, this.effect, next);
+        this.set(next);
+      }
+    }
+
+    /**
+     * Cancels the task unless its result has already been stored in the model.
+     *
+     * @param mayInterruptIfRunning ignored; effects stop at their next row once cancelled
+     * @return false if the task had already completed; true otherwise
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      synchronized (ModelFacade.this) {
+        return super.cancel(false);
+      }
+    }
+
+    /**
+     * Records how much of the effect is done.
+     *
+     * @param fraction the fraction of the work done so far, between 0 and 1
+     */
+    @Override
+    public void setProgress(double fraction) {
+      this.progress = fraction;
+    }
+
+    /**
+     * Returns how much of the effect is done, which is all of it once its result is stored.
+     *
+     * @return the fraction of the work done so far, between 0 and 1
+     */
+    @Override
+    public double getProgress() {
+      return this.isDone() && !this.isCancelled() ? 1 : this.progress;
+    }
+  }
 }
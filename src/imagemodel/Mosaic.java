@@ -1,134 +1,315 @@
 package imagemodel;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Random;
-import java.util.Set;
-
-import javafx.util.Pair;
+import java.util.stream.IntStream;
 
 /**
  * A Mosaic ImageEffect that gives an image a “stained glass window” effect. A Mosaic ImageEffect
  * takes and stores the number of seeds during construction. The seeds are randomly chosen set of
  * points in the Image during apply and each pixel in the image is paired to the seed that is
  * closest to it. The color of each pixel is then replaced with the average color of its cluster.
+ *
+ * <p>The nearest seed of each pixel is found through a grid of the seeds (see SeedGrid), which
+ * gives exactly the same seed as comparing the pixel with every seed, with ties going to the seed
+ * placed first. The work per pixel hardly grows with the number of seeds, so millions of seeds
+ * can be used.
+ *
+ * <p>A fast Mosaic finds the seeds by jump flooding instead: every pixel starts with only its own
+ * seed, if it is one, and then takes the nearest of the seeds its neighbors k pixels away have,
+ * for k halving from half the size of the image down to 1, plus one more pass with k = 1. Each
+ * pass is over every row at once on the threads of the common ForkJoinPool, and the cost does not
+ * depend on the number of seeds at all. A few pixels near the corners of clusters can end up with
+ * a seed that is nearly but not quite the nearest.
  */
 public class Mosaic implements ImageEffect {
   /**
    * The number of seeds this Mosaic has.
    */
   private final int numOfSeeds;
-  private static final int MAX_SEED = 15000;
+
+  /**
+   * The seed of the random number generator that places the seeds of this Mosaic, so applying it
+   * to the same Image always gives the same result.
+   */
+  private final long randomSeed;
+
+  /**
+   * Whether seeds are found by jump flooding rather than exactly.
+   */
+  private final boolean fast;
+  private static final int MAX_SEED = 5000000;
   private static final int MIN_SEED = 1;
 
   /**
    * The default constructor for a Mosaic ImageEffect object. The number of seeds is given and will
-   * be final. The actual seeds are randomized in apply() method.
+   * be final. The actual seeds are randomized in apply() method, from a random number generator
+   * seed picked here.
    *
    * @param numOfSeeds the given number of seeds for this Mosaic
    * @throws IllegalArgumentException if the number of seeds is not in the assigned range
    */
   public Mosaic(int numOfSeeds) throws IllegalArgumentException {
+    this(numOfSeeds, new Random().nextLong());
+  }
+
+  /**
+   * Constructs a Mosaic ImageEffect object whose seeds are placed by a random number generator with
+   * the given seed.
+   *
+   * @param numOfSeeds the given number of seeds for this Mosaic
+   * @param randomSeed the seed of the random number generator that places the seeds
+   * @throws IllegalArgumentException if the number of seeds is not in the assigned range
+   */
+  public Mosaic(int numOfSeeds, long randomSeed) throws IllegalArgumentException {
+    this(numOfSeeds, randomSeed, false);
+  }
+
+  /**
+   * Constructs a Mosaic ImageEffect object that finds the nearest seed of each pixel exactly, or by
+   * jump flooding if fast.
+   *
+   * @param numOfSeeds the given number of seeds for this Mosaic
+   * @param fast       true to find seeds by jump flooding, which takes the same time for any
+   *                   number of seeds but is not always exact
+   * @throws IllegalArgumentException if the number of seeds is not in the assigned range
+   */
+  public Mosaic(int numOfSeeds, boolean fast) throws IllegalArgumentException {
+    this(numOfSeeds, new Random().nextLong(), fast);
+  }
+
+  /**
+   * Constructs a Mosaic ImageEffect object whose seeds are placed by a random number generator with
+   * the given seed, and found exactly or by jump flooding if fast.
+   *
+   * @param numOfSeeds the given number of seeds for this Mosaic
+   * @param randomSeed the seed of the random number generator that places the seeds
+   * @param fast       true to find seeds by jump flooding, which takes the same time for any
+   *                   number of seeds but is not always exact
+   * @throws IllegalArgumentException if the number of seeds is not in the assigned range
+   */
+  public Mosaic(int numOfSeeds, long randomSeed, boolean fast) throws IllegalArgumentException {
     if (numOfSeeds < MIN_SEED || numOfSeeds > MAX_SEED) {
       throw new IllegalArgumentException(
               "Error: Seeds Must Stay Between " + MIN_SEED + " And " + MAX_SEED);
     }
     this.numOfSeeds = numOfSeeds;
+    this.randomSeed = randomSeed;
+    this.fast = fast;
+  }
+
+  /**
+   * Returns whether this Mosaic finds seeds by jump flooding rather than exactly.
+   *
+   * @return true if it is fast
+   */
+  public boolean isFast() {
+    return this.fast;
+  }
+
+  /**
+   * Returns the seed of the random number generator that places the seeds of this Mosaic.
+   *
+   * @return the random seed
+   */
+  public long getRandomSeed() {
+    return this.randomSeed;
+  }
+
+  /**
+   * A Mosaic always places its seeds in the same spots, so it is deterministic.
+   *
+   * @return true
+   */
+  @Override
+  public boolean isDeterministic() {
+    return true;
   }
 
   /**
    * Apply this Mosaic ImageEffect to an Image object. The number of seeds is the assigned
-   * this.numOfSeeds during Mosaic construction. Seeds are randomized Pair objects and repetition
-   * will be ignored. Larger this.seeds will take more time to process. n = num of pixels, m = num
-   * of seeds, time O(2n + 2m + nm).
+   * this.numOfSeeds during Mosaic construction. Seeds are placed randomly and repetition will be
+   * ignored. n = num of pixels, m = num of seeds, time O(n + m) for seeds spread evenly over the
+   * image.
    *
    * @param input the given Image object
    * @return an Image object that has been mosaiced
    */
   @Override
   public Image apply(Image input) {
-    // a seedsSet HashSet to store the randomized seeds
-    Set<Pair<Integer, Integer>> seedsSet = new HashSet<>();
+    return this.apply(input, ProgressMonitor.NONE);
+  }
+
+  /**
+   * Apply this Mosaic ImageEffect to an Image object, reporting progress to the given monitor after
+   * each row and giving up if it is cancelled.
+   *
+   * @param input   the given Image object
+   * @param monitor receives progress and says when to stop
+   * @return an Image object that has been mosaiced
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled
+   */
+  @Override
+  public Image apply(Image input, ProgressMonitor monitor) {
     int h = input.getHeight();
     int w = input.getWidth();
-    int[][][] output = input.getDataClone();
-    // get this.seeds number of random (x, y) pairs
+    // get this.seeds number of random (x, y) points, in the order they are first placed
     // repetition will be ignored
-    Random rand = new Random();
+    int[] seedX = new int[this.numOfSeeds];
+    int[] seedY = new int[this.numOfSeeds];
+    int count = 0;
+    BitSet taken = new BitSet(w * h);
+    Random rand = new Random(this.randomSeed);
     for (int i = 0; i < this.numOfSeeds; ++i) {
-      seedsSet.add(new Pair<>(rand.nextInt(w), rand.nextInt(h)));
+      int x = rand.nextInt(w);
+      int y = rand.nextInt(h);
+      if (!taken.get(y * w + x)) {
+        taken.set(y * w + x);
+        seedX[count] = x;
+        seedY[count] = y;
+        ++count;
+      }
     }
-    // initialize the seed clusters array lists
-    List<List<Integer[]>> clusters = new ArrayList<>();
-    for (int i = 0; i < seedsSet.size(); i++) {
-      clusters.add(new ArrayList<>());
+    // the output holds the cluster of each pixel until the averages are known
+    int[] output = new int[w * h];
+    if (this.fast) {
+      jumpFlood(seedX, seedY, count, w, h, output, monitor.part(0, 0.5));
+    } else {
+      SeedGrid grid = new SeedGrid(seedX, seedY, count, w, h);
+      for (int y = 0; y < h; ++y) {
+        monitor.step(0.5 * y / h);
+        for (int x = 0; x < w; ++x) {
+          output[y * w + x] = grid.nearest(x, y);
+        }
+      }
     }
-    // for each pixel calculate the distance (euclidean) to every seed
-    // and assign the pixel to the closest seed cluster
+    // sum up the colors of each cluster
+    long[][] sums = new long[3][count];
+    int[] sizes = new int[count];
+    int[] row = new int[w];
     for (int y = 0; y < h; ++y) {
+      monitor.step(0.5 + 0.5 * y / h);
+      input.getPackedRegion(0, y, w, 1, row);
       for (int x = 0; x < w; ++x) {
-        int clusterNum = 0;
-        int counter = 0;
-        double min = Double.MAX_VALUE;
-        for (Pair<Integer, Integer> seed : seedsSet) {
-          double dist = getDist(x, y, seed);
-          if (dist < min) {
-            min = dist;
-            clusterNum = counter;
-          }
-          counter++;
+        int cluster = output[y * w + x];
+        for (int channel = 0; channel < 3; ++channel) {
+          sums[channel][cluster] += PackedRGBArray.unpack(row[x], channel);
         }
-        clusters.get(clusterNum).add(new Integer[]{x, y});
+        ++sizes[cluster];
       }
     }
-    // for each seed cluster calculate the average RGB values
-    // and assign them to every pixel in this cluster
-    updateRGBWithClusters(output, clusters);
-    return new RGBArray(output);
+    // every seed is nearest to its own pixel, so no cluster is empty
+    int[] averages = new int[count];
+    for (int cluster = 0; cluster < count; ++cluster) {
+      averages[cluster] = PackedRGBArray.pack((int) (sums[0][cluster] / sizes[cluster]),
+              (int) (sums[1][cluster] / sizes[cluster]), (int) (sums[2][cluster] / sizes[cluster]));
+    }
+    for (int i = 0; i < w * h; ++i) {
+      output[i] = averages[output[i]];
+    }
+    monitor.step(1);
+    return new PackedRGBArray(w, h, output, true);
   }
 
   /**
-   * A private helper method that calculate the average RGB values within a cluster and update the
-   * RGB array with the average values.
+   * Label every pixel with a seed that is nearest or nearly nearest to it by jump flooding. Each
+   * pass reads the labels of the last pass and writes new ones, so the rows of a pass can be
+   * labeled in any order on any thread.
    *
-   * @param matrix   the given RGB array
-   * @param clusters the given pixel clusters
+   * @param seedX   the column of each seed
+   * @param seedY   the row of each seed
+   * @param count   the number of seeds
+   * @param w       the width of the image
+   * @param h       the height of the image
+   * @param labels  the array to write the seed of each pixel into, in row major order
+   * @param monitor receives progress after each pass and says when to stop
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled
    */
-  private void updateRGBWithClusters(int[][][] matrix, List<List<Integer[]>> clusters) {
-    for (List<Integer[]> group : clusters) {
-      int r = 0;
-      int g = 0;
-      int b = 0;
-      int size = group.size();
-      for (Integer[] point : group) {
-        r += matrix[point[1]][point[0]][0];
-        g += matrix[point[1]][point[0]][1];
-        b += matrix[point[1]][point[0]][2];
-      }
-      r /= size;
-      g /= size;
-      b /= size;
-      for (Integer[] point : group) {
-        matrix[point[1]][point[0]][0] = r;
-        matrix[point[1]][point[0]][1] = g;
-        matrix[point[1]][point[0]][2] = b;
+  private static void jumpFlood(int[] seedX, int[] seedY, int count, int w, int h, int[] labels,
+                                ProgressMonitor monitor) {
+    int[] current = new int[w * h];
+    Arrays.fill(current, -1);
+    int[] seedXY = new int[2 * count];
+    for (int seed = 0; seed < count; ++seed) {
+      current[seedY[seed] * w + seedX[seed]] = seed;
+      seedXY[2 * seed] = seedX[seed];
+      seedXY[2 * seed + 1] = seedY[seed];
+    }
+    int first = Math.max(1, Integer.highestOneBit(Math.max(w, h) - 1));
+    int passes = Integer.numberOfTrailingZeros(first) + 2;
+    int[] next = new int[w * h];
+    for (int pass = 0; pass < passes; ++pass) {
+      monitor.step((double) pass / passes);
+      // halving steps down to 1, then 1 once more to fix most of the pixels left wrong
+      int step = Math.max(1, first >> pass);
+      int[] from = current;
+      int[] to = next;
+      IntStream.range(0, h).parallel().forEach(y -> floodRow(seedXY, w, h, from, to, y, step));
+      next = current;
+      current = to;
+    }
+    System.arraycopy(current, 0, labels, 0, w * h);
+    monitor.step(1);
+  }
+
+  /**
+   * Label a row of pixels with the nearest of their own seed and the seeds of the pixels a step
+   * away in each of the eight directions, with ties going to the seed placed first.
+   *
+   * @param seedXY the column and row of each seed, one after the other
+   * @param w      the width of the image
+   * @param h      the height of the image
+   * @param from   the labels of the last pass, or -1 for no seed yet
+   * @param to     the array to write the new labels into
+   * @param y      the row to label
+   * @param step   how far away the neighbors are
+   */
+  private static void floodRow(int[] seedXY, int w, int h, int[] from, int[] to, int y,
+                               int step) {
+    for (int x = 0; x < w; ++x) {
+      int best = from[y * w + x];
+      // the distance to best is only worked out once there is another seed to compare it with
+      long bestDist = -1;
+      for (int ny = y - step; ny <= y + step; ny += step) {
+        if (ny < 0 || ny >= h) {
+          continue;
+        }
+        for (int nx = x - step; nx <= x + step; nx += step) {
+          if (nx < 0 || nx >= w) {
+            continue;
+          }
+          int seed = from[ny * w + nx];
+          if (seed < 0 || seed == best) {
+            continue;
+          }
+          if (bestDist < 0) {
+            bestDist = best < 0 ? Long.MAX_VALUE
+                    : distance(x, y, seedXY[2 * best], seedXY[2 * best + 1]);
+          }
+          long dist = distance(x, y, seedXY[2 * seed], seedXY[2 * seed + 1]);
+          if (dist < bestDist || (dist == bestDist && seed < best)) {
+            bestDist = dist;
+            best = seed;
+          }
+        }
       }
+      to[y * w + x] = best;
     }
   }
 
   /**
-   * A simple euclidean dist calculator that calculate the euclidean distance between two (x, y)
-   * points.
+   * Return the squared euclidean distance between two (x, y) points.
    *
-   * @param x the first point's x coordinate
-   * @param y the first point's y coordinate
-   * @param b the second point as a Pair object (x, y)
-   * @return the euclidean distance between two points
+   * @param x  the first point's x coordinate
+   * @param y  the first point's y coordinate
+   * @param x2 the second point's x coordinate
+   * @param y2 the second point's y coordinate
+   * @return the squared distance between the two points
    */
-  private double getDist(int x, int y, Pair<Integer, Integer> b) {
-    int i = x - b.getKey();
-    int j = y - b.getValue();
-    return Math.sqrt(i * i + j * j);
+  private static long distance(int x, int y, int x2, int y2) {
+    long dx = x - x2;
+    long dy = y - y2;
+    return dx * dx + dy * dy;
   }
 }
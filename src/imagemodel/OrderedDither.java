@@ -0,0 +1,221 @@
+package imagemodel;
+
+/**
+ * An ImageEffect that dithers with a threshold matrix tiled over the image, rather than by
+ * diffusing error like Dither. Each value is rounded down or up to one of a number of evenly
+ * spaced levels depending on how far it is between them and the rank of the matrix cell over its
+ * pixel, so areas of a flat color become a fine pattern of the two nearest levels in the right
+ * proportion.
+ *
+ * <p>Pixels can be turned grey first, like Dither does, or each channel can be dithered to its own
+ * levels for a color palette of levels^3 colors. Every pixel only depends on itself and its place
+ * in the matrix, so the output is computed band by band on one thread per core unless a different
+ * parallelism is given, with the same output either way. Only int arithmetic is used.
+ */
+public class OrderedDither extends RegionEffect {
+  /**
+   * The largest channel value.
+   */
+  private static final int MAX_VAL = 255;
+
+  /**
+   * Turns pixels grey before they are dithered.
+   */
+  private static final Greyscale GREYSCALE = new Greyscale();
+
+  /**
+   * The width and height of the threshold matrix.
+   */
+  private final int matrixW;
+  private final int matrixH;
+
+  /**
+   * For each cell of the matrix in row major order, the remainder a value must be past, in the
+   * units of scaledRemainder, to be rounded up: (2 * rank + 1) * MAX_VAL.
+   */
+  private final int[] limits;
+
+  /**
+   * The number of levels each channel is dithered to.
+   */
+  private final int levels;
+
+  /**
+   * Whether channels are dithered separately rather than the pixel being turned grey first.
+   */
+  private final boolean color;
+
+  /**
+   * The number of threads to dither on, or 0 for one per core.
+   */
+  private final int parallelism;
+
+  /**
+   * Constructs an ordered dither with the given threshold matrix that dithers on one thread per
+   * core.
+   *
+   * @param thresholds a rectangular matrix holding each rank from 0 to its number of cells - 1
+   *                   once, where lower ranks are rounded up first
+   * @param levels     the number of evenly spaced levels from 0 to 255 to dither each channel to
+   * @param color      true to dither each channel to its own levels, false to turn pixels grey
+   *                   first
+   * @throws IllegalArgumentException if thresholds is null, empty, not rectangular, or not a
+   *                                  permutation of its ranks, or levels is not between 2 and 256
+   */
+  public OrderedDither(int[][] thresholds, int levels, boolean color)
+          throws IllegalArgumentException {
+    this(thresholds, levels, color, 0);
+  }
+
+  /**
+   * Constructs an ordered dither with the given threshold matrix that dithers on the given number
+   * of threads.
+   *
+   * @param thresholds  a rectangular matrix holding each rank from 0 to its number of cells - 1
+   *                    once, where lower ranks are rounded up first
+   * @param levels      the number of evenly spaced levels from 0 to 255 to dither each channel to
+   * @param color       true to dither each channel to its own levels, false to turn pixels grey
+   *                    first
+   * @param parallelism the number of threads to use, 1 to stay on the calling thread, or 0 for one
+   *                    per core
+   * @throws IllegalArgumentException if thresholds is null, empty, not rectangular, or not a
+   *                                  permutation of its ranks, levels is not between 2 and 256,
+   *                                  or parallelism is negative
+   */
+  public OrderedDither(int[][] thresholds, int levels, boolean color, int parallelism)
+          throws IllegalArgumentException {
+    if (parallelism < 0) {
+      throw new IllegalArgumentException("parallelism can't be negative");
+    }
+    if (levels < 2 || levels > MAX_VAL + 1) {
+      throw new IllegalArgumentException("levels must be between 2 and 256");
+    }
+    if (thresholds == null || thresholds.length == 0 || thresholds[0] == null
+            || thresholds[0].length == 0) {
+      throw new IllegalArgumentException("thresholds must have nonzero dimensions");
+    }
+    this.matrixH = thresholds.length;
+    this.matrixW = thresholds[0].length;
+    int cells = this.matrixW * this.matrixH;
+    this.limits = new int[cells];
+    boolean[] seen = new boolean[cells];
+    for (int row = 0; row < this.matrixH; ++row) {
+      if (thresholds[row] == null || thresholds[row].length != this.matrixW) {
+        throw new IllegalArgumentException("thresholds must be rectangular");
+      }
+      for (int col = 0; col < this.matrixW; ++col) {
+        int rank = thresholds[row][col];
+        if (rank < 0 || rank >= cells || seen[rank]) {
+          throw new IllegalArgumentException("thresholds must hold each rank once");
+        }
+        seen[rank] = true;
+        this.limits[row * this.matrixW + col] = (2 * rank + 1) * MAX_VAL;
+      }
+    }
+    this.levels = levels;
+    this.color = color;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Return the number of levels each channel is dithered to.
+   *
+   * @return the number of levels
+   */
+  public int getLevels() {
+    return this.levels;
+  }
+
+  /**
+   * Return whether each channel is dithered to its own levels rather than the pixel being turned
+   * grey first.
+   *
+   * @return true for color output
+   */
+  public boolean isColor() {
+    return this.color;
+  }
+
+  /**
+   * Apply this dither to an Image, reporting progress to the given monitor and giving up if it is
+   * cancelled. Planar input produces planar output, with each band written straight into its
+   * planes.
+   *
+   * @param input   the given Image
+   * @param monitor receives progress and says when to stop
+   * @return a new Image after applying this dither
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled
+   */
+  @Override
+  public Image apply(Image input, ProgressMonitor monitor) {
+    if (input instanceof PlanarRGBArray) {
+      return this.applyToPlanes(input, monitor);
+    }
+    return super.apply(input, monitor);
+  }
+
+  /**
+   * Return the number of threads this dither runs on.
+   *
+   * @return the number of threads to use, or 0 for one per core
+   */
+  @Override
+  protected int getParallelism() {
+    return this.parallelism;
+  }
+
+  /**
+   * Compute a rectangular region of the output of this dither as packed pixels.
+   *
+   * @param input the given Image
+   * @param x     the left edge of the region
+   * @param y     the top edge of the region
+   * @param w     the width of the region
+   * @param h     the height of the region
+   * @param dst   an array of at least w * h pixels to write the region into
+   */
+  @Override
+  protected void computeRegion(Image input, int x, int y, int w, int h, int[] dst) {
+    input.getPackedRegion(x, y, w, h, dst);
+    if (!this.color) {
+      GREYSCALE.transformPixels(dst, 0, w * h);
+    }
+    int twiceCells = 2 * this.limits.length;
+    for (int row = 0; row < h; ++row) {
+      int matrixRow = ((y + row) % this.matrixH) * this.matrixW;
+      for (int col = 0; col < w; ++col) {
+        int limit = this.limits[matrixRow + (x + col) % this.matrixW];
+        int i = row * w + col;
+        if (this.color) {
+          dst[i] = PackedRGBArray.pack(
+                  this.quantize(PackedRGBArray.unpack(dst[i], 0), limit, twiceCells),
+                  this.quantize(PackedRGBArray.unpack(dst[i], 1), limit, twiceCells),
+                  this.quantize(PackedRGBArray.unpack(dst[i], 2), limit, twiceCells));
+        } else {
+          int grey = this.quantize(PackedRGBArray.unpack(dst[i], 0), limit, twiceCells);
+          dst[i] = PackedRGBArray.pack(grey, grey, grey);
+        }
+      }
+    }
+  }
+
+  /**
+   * Round a channel value down or up to one of the levels. A value is rounded up when the fraction
+   * of the way it is from the level below to the level above is more than (rank + 1/2) / cells for
+   * the rank of its cell.
+   *
+   * @param value      the channel value, from 0 to 255
+   * @param limit      (2 * rank + 1) * MAX_VAL for the cell over the pixel
+   * @param twiceCells twice the number of cells in the matrix
+   * @return the value of the level, from 0 to 255
+   */
+  private int quantize(int value, int limit, int twiceCells) {
+    int scaled = value * (this.levels - 1);
+    int level = scaled / MAX_VAL;
+    // the remainder is the fraction of the way to the next level, in 1/MAX_VAL
+    int scaledRemainder = (scaled - level * MAX_VAL) * twiceCells;
+    level += scaledRemainder > limit ? 1 : 0;
+    // the nearest whole number to level * MAX_VAL / (levels - 1)
+    return (2 * level * MAX_VAL + this.levels - 1) / (2 * (this.levels - 1));
+  }
+}
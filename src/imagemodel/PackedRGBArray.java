@@ -0,0 +1,306 @@
+package imagemodel;
+
+/**
+ * A class that stores an image as a single int array with one 0xRRGGBB value per pixel, in row
+ * major order. This takes a quarter of the memory of an equivalent RGBArray and keeps every row
+ * contiguous. Like RGBArray, all values are clamped between 0 and 255 and the data is immutable
+ * after construction.
+ */
+public class PackedRGBArray implements Image {
+  /**
+   * The packed pixel values of this image, one 0xRRGGBB int per pixel in row major order.
+   */
+  protected final int[] pixels;
+  private final int width;
+  private final int height;
+
+  /**
+   * The Maximum and Minimum a pixel value can be.
+   */
+  protected static final int MAX_VAL = 255;
+  protected static final int MIN_VAL = 0;
+
+  /**
+   * The number of channels this PackedRGBArray has.
+   */
+  protected static final int NUM_CHANNELS = 3;
+
+  /**
+   * Constructs a new image from a copy of the given packed pixels. Only the low 24 bits of each
+   * pixel are kept.
+   *
+   * @param width  width of the image in pixels
+   * @param height height of the image in pixels
+   * @param pixels one 0xRRGGBB value per pixel in row major order
+   * @throws IllegalArgumentException for null pixels, nonpositive dimensions, or a pixel count
+   *                                  that does not match the dimensions
+   */
+  public PackedRGBArray(int width, int height, int[] pixels) throws IllegalArgumentException {
+    this(width, height, validateAndCopy(width, height, pixels), true);
+  }
+
+  /**
+   * Constructs a new image from 3 channel RGB data. Values outside of 0 and 255 are clamped.
+   *
+   * @param data all of the pixel values for all of the channels
+   * @throws IllegalArgumentException for null, empty, malformed data, or wrong number of channels
+   */
+  public PackedRGBArray(int[][][] data) throws IllegalArgumentException {
+    if (data == null) {
+      throw new IllegalArgumentException("argument cannot be null");
+    }
+    if (!(data.length != 0 && data[0].length != 0)) {
+      throw new IllegalArgumentException("data must have nonzero dimensions");
+    }
+    this.height = data.length;
+    this.width = data[0].length;
+    this.pixels = new int[this.width * this.height];
+    for (int y = 0; y < this.height; ++y) {
+      if (data[y].length != this.width) {
+        throw new IllegalArgumentException("data has inconsistent dimensions");
+      }
+      for (int x = 0; x < this.width; ++x) {
+        if (data[y][x].length != NUM_CHANNELS) {
+          throw new IllegalArgumentException("Error: Invalid Number of Channels.");
+        }
+        this.pixels[y * this.width + x] = pack(data[y][x][0], data[y][x][1], data[y][x][2]);
+      }
+    }
+  }
+
+  /**
+   * Constructs a packed copy of any other Image.
+   *
+   * @param img the image to copy
+   * @throws IllegalArgumentException if img is null
+   */
+  public PackedRGBArray(Image img) throws IllegalArgumentException {
+    if (img == null) {
+      throw new IllegalArgumentException("argument cannot be null");
+    }
+    this.width = img.getWidth();
+    this.height = img.getHeight();
+    if (img instanceof PackedRGBArray) {
+      this.pixels = ((PackedRGBArray) img).pixels.clone();
+      return;
+    }
+    this.pixels = new int[this.width * this.height];
+    img.getPackedRegion(0, 0, this.width, this.height, this.pixels);
+  }
+
+  /**
+   * Wraps the given packed pixels without copying them. Used by effects in this package that build
+   * a fresh array and hand it over, so no other reference to the array may be kept by the caller.
+   *
+   * @param width   width of the image in pixels
+   * @param height  height of the image in pixels
+   * @param pixels  one already clamped 0xRRGGBB value per pixel in row major order
+   * @param trusted marker distinguishing this constructor from the copying one
+   */
+  PackedRGBArray(int width, int height, int[] pixels, boolean trusted) {
+    this.width = width;
+    this.height = height;
+    this.pixels = pixels;
+  }
+
+  /**
+   * Packs three channel values into a single 0xRRGGBB int, clamping each to 0 and 255 first.
+   *
+   * @param r red channel value
+   * @param g green channel value
+   * @param b blue channel value
+   * @return the packed pixel
+   */
+  public static int pack(int r, int g, int b) {
+    return (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+  }
+
+  /**
+   * Extracts one channel value from a packed 0xRRGGBB pixel.
+   *
+   * @param pixel   the packed pixel
+   * @param channel 0 for red, 1 for green, 2 for blue
+   * @return the value of that channel between 0 and 255
+   */
+  public static int unpack(int pixel, int channel) {
+    return (pixel >> (16 - 8 * channel)) & MAX_VAL;
+  }
+
+  /**
+   * Floors values beyond MAX_VAL and ceilings values below MIN_VAL, in the same way the RGBArray
+   * constructor does.
+   *
+   * @param val a channel value
+   * @return val limited to between MIN_VAL and MAX_VAL
+   */
+  static int clamp(int val) {
+    if (val < MIN_VAL) {
+      return MIN_VAL;
+    }
+    return val >= MAX_VAL ? MAX_VAL : val;
+  }
+
+  /**
+   * Return the pixel value located at the given (x, y) and channel within this Image.
+   *
+   * @param x       the given x coordinate
+   * @param y       the given y coordinate
+   * @param channel the given channel
+   * @return the pixel value of the given chanel at given (x, y)
+   * @throws IllegalArgumentException if given location is not in bounds
+   */
+  @Override
+  public int getVal(int x, int y, int channel) throws IllegalArgumentException {
+    if (!this.isValidLocation(x, y) || channel < 0 || channel >= NUM_CHANNELS) {
+      throw new IllegalArgumentException("location out of bounds");
+    }
+    return unpack(this.pixels[y * this.width + x], channel);
+  }
+
+  /**
+   * Return the pixel value located at the given (x, y) and channel within this Image without
+   * checking that the location is in bounds.
+   *
+   * @param x       the given x coordinate, already known to be in bounds
+   * @param y       the given y coordinate, already known to be in bounds
+   * @param channel the given channel, already known to be in bounds
+   * @return the pixel value of the given chanel at given (x, y)
+   */
+  @Override
+  public int getValUnchecked(int x, int y, int channel) {
+    return unpack(this.pixels[y * this.width + x], channel);
+  }
+
+  /**
+   * Copy a rectangle of this Image into the given array as packed 0xRRGGBB pixels in row major
+   * order.
+   *
+   * @param x   the left edge of the rectangle
+   * @param y   the top edge of the rectangle
+   * @param w   the width of the rectangle
+   * @param h   the height of the rectangle
+   * @param dst an array of at least w * h pixels to copy the rectangle into
+   * @throws IllegalArgumentException if the rectangle is not inside this Image or dst is too small
+   */
+  @Override
+  public void getPackedRegion(int x, int y, int w, int h, int[] dst)
+          throws IllegalArgumentException {
+    Regions.check(this, x, y, w, h, dst);
+    for (int row = 0; row < h; ++row) {
+      System.arraycopy(this.pixels, (y + row) * this.width + x, dst, row * w, w);
+    }
+  }
+
+  /**
+   * Copy a rectangle of one channel of this Image into the given array in row major order.
+   *
+   * @param x       the left edge of the rectangle
+   * @param y       the top edge of the rectangle
+   * @param w       the width of the rectangle
+   * @param h       the height of the rectangle
+   * @param channel the channel to copy
+   * @param dst     an array of at least w * h values to copy the rectangle into
+   * @throws IllegalArgumentException if the rectangle is not inside this Image, the channel is not
+   *                                  valid, or dst is too small
+   */
+  @Override
+  public void getChannelRegion(int x, int y, int w, int h, int channel, int[] dst)
+          throws IllegalArgumentException {
+    Regions.check(this, x, y, w, h, channel, dst);
+    int shift = 16 - 8 * channel;
+    for (int row = 0; row < h; ++row) {
+      int start = (y + row) * this.width + x;
+      for (int col = 0; col < w; ++col) {
+        dst[row * w + col] = (this.pixels[start + col] >> shift) & MAX_VAL;
+      }
+    }
+  }
+
+  /**
+   * Return a copy of this Image in int[][][] 3 channel RGB value format.
+   *
+   * @return an int[][][] representation of this Image
+   */
+  @Override
+  public int[][][] getDataClone() {
+    int[][][] output = new int[this.height][this.width][NUM_CHANNELS];
+    for (int y = 0; y < this.height; ++y) {
+      for (int x = 0; x < this.width; ++x) {
+        int pixel = this.pixels[y * this.width + x];
+        output[y][x][0] = unpack(pixel, 0);
+        output[y][x][1] = unpack(pixel, 1);
+        output[y][x][2] = unpack(pixel, 2);
+      }
+    }
+    return output;
+  }
+
+  /**
+   * Return a copy of this Image as packed 0xRRGGBB pixels in row major order.
+   *
+   * @return the packed pixels of this Image
+   */
+  public int[] getPackedClone() {
+    return this.pixels.clone();
+  }
+
+  /**
+   * Return the width of this Image.
+   *
+   * @return width
+   */
+  @Override
+  public int getWidth() {
+    return this.width;
+  }
+
+  /**
+   * Return the height of this Image.
+   *
+   * @return height
+   */
+  @Override
+  public int getHeight() {
+    return this.height;
+  }
+
+  /**
+   * A helper method that checks if the given (x, y) is inside of this Image.
+   *
+   * @param x the given x coordinate
+   * @param y the given y coordinate
+   * @return true if (x, y) is a valid location inside of this Image; false otherwise
+   */
+  @Override
+  public boolean isValidLocation(int x, int y) {
+    return x >= 0 && x < this.width && y >= 0 && y < this.height;
+  }
+
+  /**
+   * Checks the arguments of the public packed constructor and copies the pixels so later changes
+   * by the caller can't reach this image.
+   *
+   * @param width  width of the image in pixels
+   * @param height height of the image in pixels
+   * @param pixels one 0xRRGGBB value per pixel in row major order
+   * @return a masked copy of pixels
+   * @throws IllegalArgumentException if any argument is invalid
+   */
+  private static int[] validateAndCopy(int width, int height, int[] pixels)
+          throws IllegalArgumentException {
+    if (pixels == null) {
+      throw new IllegalArgumentException("argument cannot be null");
+    }
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("data must have nonzero dimensions");
+    }
+    if ((long) width * height != pixels.length) {
+      throw new IllegalArgumentException("data has inconsistent dimensions");
+    }
+    int[] copy = new int[pixels.length];
+    for (int i = 0; i < pixels.length; ++i) {
+      copy[i] = pixels[i] & 0xFFFFFF;
+    }
+    return copy;
+  }
+}
@@ -0,0 +1,247 @@
+package imagemodel;
+
+/**
+ * A class that stores an image as three separate byte planes, one each for red, green and blue,
+ * in row major order. Every channel value only takes a single byte, so this is the most compact
+ * in-memory image, and effects can stream over one whole plane at a time. Like RGBArray, all
+ * values are clamped between 0 and 255 and the data is immutable after construction.
+ */
+public class PlanarRGBArray implements Image {
+  /**
+   * The red, green and blue planes of this image. Values are unsigned bytes.
+   */
+  protected final byte[][] planes;
+  private final int width;
+  private final int height;
+
+  /**
+   * The number of channels this PlanarRGBArray has.
+   */
+  protected static final int NUM_CHANNELS = 3;
+
+  /**
+   * Constructs a new image from 3 channel RGB data. Values outside of 0 and 255 are clamped.
+   *
+   * @param data all of the pixel values for all of the channels
+   * @throws IllegalArgumentException for null, empty, malformed data, or wrong number of channels
+   */
+  public PlanarRGBArray(int[][][] data) throws IllegalArgumentException {
+    if (data == null) {
+      throw new IllegalArgumentException("argument cannot be null");
+    }
+    if (!(data.length != 0 && data[0].length != 0)) {
+      throw new IllegalArgumentException("data must have nonzero dimensions");
+    }
+    this.height = data.length;
+    this.width = data[0].length;
+    this.planes = new byte[NUM_CHANNELS][this.width * this.height];
+    for (int y = 0; y < this.height; ++y) {
+      if (data[y].length != this.width) {
+        throw new IllegalArgumentException("data has inconsistent dimensions");
+      }
+      for (int x = 0; x < this.width; ++x) {
+        if (data[y][x].length != NUM_CHANNELS) {
+          throw new IllegalArgumentException("Error: Invalid Number of Channels.");
+        }
+        for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+          this.planes[channel][y * this.width + x] =
+                  (byte) PackedRGBArray.clamp(data[y][x][channel]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Constructs a planar copy of any other Image.
+   *
+   * @param img the image to copy
+   * @throws IllegalArgumentException if img is null
+   */
+  public PlanarRGBArray(Image img) throws IllegalArgumentException {
+    if (img == null) {
+      throw new IllegalArgumentException("argument cannot be null");
+    }
+    this.width = img.getWidth();
+    this.height = img.getHeight();
+    this.planes = new byte[NUM_CHANNELS][];
+    if (img instanceof PlanarRGBArray) {
+      for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+        this.planes[channel] = ((PlanarRGBArray) img).planes[channel].clone();
+      }
+      return;
+    }
+    for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+      this.planes[channel] = new byte[this.width * this.height];
+    }
+    int[] row = new int[this.width];
+    for (int y = 0; y < this.height; ++y) {
+      img.getPackedRegion(0, y, this.width, 1, row);
+      for (int x = 0; x < this.width; ++x) {
+        this.planes[0][y * this.width + x] = (byte) (row[x] >> 16);
+        this.planes[1][y * this.width + x] = (byte) (row[x] >> 8);
+        this.planes[2][y * this.width + x] = (byte) row[x];
+      }
+    }
+  }
+
+  /**
+   * Wraps the given planes without copying them. Used by effects in this package that fill fresh
+   * planes and hand them over, so no other reference to the planes may be kept by the caller.
+   *
+   * @param width  width of the image in pixels
+   * @param height height of the image in pixels
+   * @param planes the red, green and blue planes, each width * height long
+   */
+  PlanarRGBArray(int width, int height, byte[][] planes) {
+    this.width = width;
+    this.height = height;
+    this.planes = planes;
+  }
+
+  /**
+   * Return the pixel value located at the given (x, y) and channel within this Image.
+   *
+   * @param x       the given x coordinate
+   * @param y       the given y coordinate
+   * @param channel the given channel
+   * @return the pixel value of the given chanel at given (x, y)
+   * @throws IllegalArgumentException if given location is not in bounds
+   */
+  @Override
+  public int getVal(int x, int y, int channel) throws IllegalArgumentException {
+    if (!this.isValidLocation(x, y) || channel < 0 || channel >= NUM_CHANNELS) {
+      throw new IllegalArgumentException("location out of bounds");
+    }
+    return this.planes[channel][y * this.width + x] & 0xFF;
+  }
+
+  /**
+   * Return the pixel value located at the given (x, y) and channel within this Image without
+   * checking that the location is in bounds.
+   *
+   * @param x       the given x coordinate, already known to be in bounds
+   * @param y       the given y coordinate, already known to be in bounds
+   * @param channel the given channel, already known to be in bounds
+   * @return the pixel value of the given chanel at given (x, y)
+   */
+  @Override
+  public int getValUnchecked(int x, int y, int channel) {
+    return this.planes[channel][y * this.width + x] & 0xFF;
+  }
+
+  /**
+   * Copy a rectangle of this Image into the given array as packed 0xRRGGBB pixels in row major
+   * order.
+   *
+   * @param x   the left edge of the rectangle
+   * @param y   the top edge of the rectangle
+   * @param w   the width of the rectangle
+   * @param h   the height of the rectangle
+   * @param dst an array of at least w * h pixels to copy the rectangle into
+   * @throws IllegalArgumentException if the rectangle is not inside this Image or dst is too small
+   */
+  @Override
+  public void getPackedRegion(int x, int y, int w, int h, int[] dst)
+          throws IllegalArgumentException {
+    Regions.check(this, x, y, w, h, dst);
+    byte[] red = this.planes[0];
+    byte[] green = this.planes[1];
+    byte[] blue = this.planes[2];
+    for (int row = 0; row < h; ++row) {
+      int start = (y + row) * this.width + x;
+      for (int col = 0; col < w; ++col) {
+        dst[row * w + col] = ((red[start + col] & 0xFF) << 16)
+                | ((green[start + col] & 0xFF) << 8) | (blue[start + col] & 0xFF);
+      }
+    }
+  }
+
+  /**
+   * Copy a rectangle of one channel of this Image into the given array in row major order.
+   *
+   * @param x       the left edge of the rectangle
+   * @param y       the top edge of the rectangle
+   * @param w       the width of the rectangle
+   * @param h       the height of the rectangle
+   * @param channel the channel to copy
+   * @param dst     an array of at least w * h values to copy the rectangle into
+   * @throws IllegalArgumentException if the rectangle is not inside this Image, the channel is not
+   *                                  valid, or dst is too small
+   */
+  @Override
+  public void getChannelRegion(int x, int y, int w, int h, int channel, int[] dst)
+          throws IllegalArgumentException {
+    Regions.check(this, x, y, w, h, channel, dst);
+    byte[] plane = this.planes[channel];
+    for (int row = 0; row < h; ++row) {
+      int start = (y + row) * this.width + x;
+      for (int col = 0; col < w; ++col) {
+        dst[row * w + col] = plane[start + col] & 0xFF;
+      }
+    }
+  }
+
+  /**
+   * Return a copy of this Image in int[][][] 3 channel RGB value format.
+   *
+   * @return an int[][][] representation of this Image
+   */
+  @Override
+  public int[][][] getDataClone() {
+    int[][][] output = new int[this.height][this.width][NUM_CHANNELS];
+    for (int y = 0; y < this.height; ++y) {
+      for (int x = 0; x < this.width; ++x) {
+        for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+          output[y][x][channel] = this.planes[channel][y * this.width + x] & 0xFF;
+        }
+      }
+    }
+    return output;
+  }
+
+  /**
+   * Return a copy of one channel of this Image as unsigned bytes in row major order.
+   *
+   * @param channel 0 for red, 1 for green, 2 for blue
+   * @return a copy of the plane for that channel
+   * @throws IllegalArgumentException if channel is not valid
+   */
+  public byte[] getPlaneClone(int channel) throws IllegalArgumentException {
+    if (channel < 0 || channel >= NUM_CHANNELS) {
+      throw new IllegalArgumentException("channel out of bounds");
+    }
+    return this.planes[channel].clone();
+  }
+
+  /**
+   * Return the width of this Image.
+   *
+   * @return width
+   */
+  @Override
+  public int getWidth() {
+    return this.width;
+  }
+
+  /**
+   * Return the height of this Image.
+   *
+   * @return height
+   */
+  @Override
+  public int getHeight() {
+    return this.height;
+  }
+
+  /**
+   * A helper method that checks if the given (x, y) is inside of this Image.
+   *
+   * @param x the given x coordinate
+   * @param y the given y coordinate
+   * @return true if (x, y) is a valid location inside of this Image; false otherwise
+   */
+  @Override
+  public boolean isValidLocation(int x, int y) {
+    return x >= 0 && x < this.width && y >= 0 && y < this.height;
+  }
+}
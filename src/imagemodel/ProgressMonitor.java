@@ -0,0 +1,76 @@
+package imagemodel;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Lets a long running ImageEffect report how far along it is and find out whether it should stop.
+ * Effects call step from inside their row loops, which gives up on the effect by throwing a
+ * CancellationException once it has been cancelled.
+ */
+public interface ProgressMonitor {
+  /**
+   * A monitor that is never cancelled and ignores progress, for effects run synchronously.
+   */
+  ProgressMonitor NONE = new ProgressMonitor() {
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public void setProgress(double fraction) {
+      // nobody is watching
+    }
+  };
+
+  /**
+   * Whether the effect being monitored should stop.
+   *
+   * @return true if it has been cancelled; false otherwise
+   */
+  boolean isCancelled();
+
+  /**
+   * Reports how much of the effect is done.
+   *
+   * @param fraction the fraction of the work done so far, between 0 and 1
+   */
+  void setProgress(double fraction);
+
+  /**
+   * Reports progress, after checking that the effect has not been cancelled.
+   *
+   * @param fraction the fraction of the work done so far, between 0 and 1
+   * @throws CancellationException if the effect has been cancelled
+   */
+  default void step(double fraction) throws CancellationException {
+    if (this.isCancelled()) {
+      throw new CancellationException("effect cancelled");
+    }
+    this.setProgress(fraction);
+  }
+
+  /**
+   * Returns a monitor for one part of an effect, for example a second effect it applies first.
+   * Progress from 0 to 1 reported to the part is reported to this monitor as progress from start
+   * to end, and the part is cancelled whenever this monitor is.
+   *
+   * @param start the progress of this monitor when the part starts
+   * @param end   the progress of this monitor when the part is done
+   * @return a monitor for the part
+   */
+  default ProgressMonitor part(double start, double end) {
+    ProgressMonitor whole = this;
+    return new ProgressMonitor() {
+      @Override
+      public boolean isCancelled() {
+        return whole.isCancelled();
+      }
+
+      @Override
+      public void setProgress(double fraction) {
+        whole.setProgress(start + fraction * (end - start));
+      }
+    };
+  }
+}
@@ -2,7 +2,8 @@ package imagemodel;
 
 /**
  * A class that stores an image formatted in 3 channels with values between 255 and 0. The
- * constructor will clampAndValidateDimConsistency any values that are outside of those bounds.
+ * constructor will clampAndValidateDimConsistency any values that are outside of those bounds. The
+ * data is copied on construction, so later changes to the given array can't reach this image.
  */
 public class RGBArray implements Image {
   /**
@@ -55,6 +56,68 @@ public class RGBArray implements Image {
     }
   }
 
+  /**
+   * Return the pixel value located at the given (x, y) and channel within this Image without
+   * checking that the location is in bounds.
+   *
+   * @param x       the given x coordinate, already known to be in bounds
+   * @param y       the given y coordinate, already known to be in bounds
+   * @param channel the given channel, already known to be in bounds
+   * @return the pixel value of the given chanel at given (x, y)
+   */
+  @Override
+  public int getValUnchecked(int x, int y, int channel) {
+    return this.data[y][x][channel];
+  }
+
+  /**
+   * Copy a rectangle of this Image into the given array as packed 0xRRGGBB pixels in row major
+   * order.
+   *
+   * @param x   the left edge of the rectangle
+   * @param y   the top edge of the rectangle
+   * @param w   the width of the rectangle
+   * @param h   the height of the rectangle
+   * @param dst an array of at least w * h pixels to copy the rectangle into
+   * @throws IllegalArgumentException if the rectangle is not inside this Image or dst is too small
+   */
+  @Override
+  public void getPackedRegion(int x, int y, int w, int h, int[] dst)
+          throws IllegalArgumentException {
+    Regions.check(this, x, y, w, h, dst);
+    for (int row = 0; row < h; ++row) {
+      int[][] dataRow = this.data[y + row];
+      for (int col = 0; col < w; ++col) {
+        int[] pixel = dataRow[x + col];
+        dst[row * w + col] = (pixel[0] << 16) | (pixel[1] << 8) | pixel[2];
+      }
+    }
+  }
+
+  /**
+   * Copy a rectangle of one channel of this Image into the given array in row major order.
+   *
+   * @param x       the left edge of the rectangle
+   * @param y       the top edge of the rectangle
+   * @param w       the width of the rectangle
+   * @param h       the height of the rectangle
+   * @param channel the channel to copy
+   * @param dst     an array of at least w * h values to copy the rectangle into
+   * @throws IllegalArgumentException if the rectangle is not inside this Image, the channel is not
+   *                                  valid, or dst is too small
+   */
+  @Override
+  public void getChannelRegion(int x, int y, int w, int h, int channel, int[] dst)
+          throws IllegalArgumentException {
+    Regions.check(this, x, y, w, h, channel, dst);
+    for (int row = 0; row < h; ++row) {
+      int[][] dataRow = this.data[y + row];
+      for (int col = 0; col < w; ++col) {
+        dst[row * w + col] = dataRow[x + col][channel];
+      }
+    }
+  }
+
   /**
    * Return a copy of this Image in int[][][] 3 channel RGB value format.
    *
@@ -67,9 +130,7 @@ public class RGBArray implements Image {
     int[][][] output = new int[h][w][NUM_CHANNELS];
     for (int y = 0; y < h; ++y) {
       for (int x = 0; x < w; ++x) {
-        for (int i = 0; i < 3; ++i) {
-          output[y][x][i] = this.getVal(x, y, i);
-        }
+        System.arraycopy(this.data[y][x], 0, output[y][x], 0, NUM_CHANNELS);
       }
     }
     return output;
@@ -108,15 +169,16 @@ public class RGBArray implements Image {
   }
 
   /**
-   * Floors values beyond MAX_VAL and ceilings values below MIN_VAL. For optimization it
-   * also validates dimension consistency while iterating.
+   * Floors values beyond MAX_VAL and ceilings values below MIN_VAL into a copy of the data. For
+   * optimization it also validates dimension consistency while iterating.
    *
    * @param data all of the pixel values for all of the channels
-   * @return the input data with out of bound values clamped to MAX_VAL and MIN_VAL
+   * @return a copy of the input data with out of bound values clamped to MAX_VAL and MIN_VAL
    * @throws IllegalArgumentException if data has inconsistent dimensions
    */
   private int[][][] clampAndValidateDimConsistency(int[][][] data)
           throws IllegalArgumentException {
+    int[][][] copy = new int[data.length][data[0].length][NUM_CHANNELS];
     for (int y = 0; y < data.length; ++y) {
       if (data[y].length != data[0].length) {
         throw new IllegalArgumentException("data has inconsistent dimensions");
@@ -126,15 +188,16 @@ public class RGBArray implements Image {
           throw new IllegalArgumentException("Error: Invalid Number of Channels.");
         }
         for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+          copy[y][x][channel] = data[y][x][channel];
           if (data[y][x][channel] < MIN_VAL) {
-            data[y][x][channel] = MIN_VAL;
+            copy[y][x][channel] = MIN_VAL;
           }
           if (data[y][x][channel] >= MAX_VAL) {
-            data[y][x][channel] = MAX_VAL;
+            copy[y][x][channel] = MAX_VAL;
           }
         }
       }
     }
-    return data;
+    return copy;
   }
 }
@@ -0,0 +1,112 @@
+package imagemodel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * A History that keeps the images before and after every step by reference. Images are immutable,
+ * so undo and redo only move references between two stacks, and an image is never copied. This is
+ * the fastest history, but every step keeps a whole image alive.
+ */
+public class ReferenceHistory implements History {
+  private final Stack<Image> previousHistory;
+  private final Stack<Image> subsequentHistory;
+
+  /**
+   * Constructs an empty history.
+   */
+  public ReferenceHistory() {
+    this.previousHistory = new Stack<>();
+    this.subsequentHistory = new Stack<>();
+  }
+
+  /**
+   * Records a step by keeping the image before it. Steps that could be redone are dropped.
+   *
+   * @param previous the image before the step
+   * @param effect   the effect that produced current from previous, or null if a new image was
+   *                 loaded
+   * @param current  the image after the step
+   * @throws IllegalArgumentException if previous or current is null
+   */
+  @Override
+  public void record(Image previous, ImageEffect effect, Image current)
+          throws IllegalArgumentException {
+    if (previous == null || current == null) {
+      throw new IllegalArgumentException("Illegal null arg");
+    }
+    this.previousHistory.push(previous);
+    this.subsequentHistory.clear();
+  }
+
+  /**
+   * Steps back from the given current image, keeping it to redo later.
+   *
+   * @param current the current image of the model
+   * @return the image before the most recent step, or null if there is nothing to undo
+   */
+  @Override
+  public Image undo(Image current) {
+    if (this.previousHistory.empty()) {
+      return null;
+    }
+    this.subsequentHistory.push(current);
+    return this.previousHistory.pop();
+  }
+
+  /**
+   * Steps forward from the given current image, keeping it to undo later.
+   *
+   * @param current the current image of the model
+   * @return the image after the most recently undone step, or null if there is nothing to redo
+   */
+  @Override
+  public Image redo(Image current) {
+    if (this.subsequentHistory.empty()) {
+      return null;
+    }
+    this.previousHistory.push(current);
+    return this.subsequentHistory.pop();
+  }
+
+  /**
+   * Returns the estimated bytes of pixel values held for each step, for steps that can be undone
+   * from oldest to newest followed by steps that can be redone from nearest to furthest.
+   *
+   * @return the bytes held for each step
+   */
+  @Override
+  public List<Long> getStepFootprints() {
+    List<Long> footprints = new ArrayList<>();
+    for (Image img : this.previousHistory) {
+      footprints.add(footprint(img));
+    }
+    for (int i = this.subsequentHistory.size() - 1; i >= 0; --i) {
+      footprints.add(footprint(this.subsequentHistory.get(i)));
+    }
+    return footprints;
+  }
+
+  /**
+   * Estimates the bytes of heap the pixel values of an image take from how it stores them.
+   * Off-heap images take none. Lazily computed images keep their tiles within a budget of their
+   * own and spill the rest to disk themselves, so they are counted as none too.
+   *
+   * @param img the image to estimate
+   * @return the estimated number of bytes of pixel values on the heap
+   */
+  static long footprint(Image img) {
+    if (img instanceof MappedRGBArray || img instanceof TiledImage) {
+      return 0;
+    }
+    long pixels = (long) img.getWidth() * img.getHeight();
+    if (img instanceof PlanarRGBArray) {
+      return pixels * 3;
+    }
+    if (img instanceof RGBArray) {
+      return pixels * 3 * Integer.BYTES;
+    }
+    return pixels * Integer.BYTES;
+  }
+}
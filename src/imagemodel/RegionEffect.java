@@ -0,0 +1,283 @@
+package imagemodel;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * An ImageEffect whose output at any location only depends on the input pixels in a small
+ * neighborhood around that location. Any rectangular region of the output can therefore be computed
+ * on its own, which lets the output be produced a band of rows at a time and written straight into
+ * a WritableImage without ever holding a full frame on the heap, or be computed lazily one tile at
+ * a time as a TiledImage.
+ *
+ * <p>Bands don't depend on each other either, so an effect can override getParallelism to have
+ * them computed on several threads at once. The output is the same whichever threads compute it.
+ */
+public abstract class RegionEffect implements ImageEffect {
+  /**
+   * The number of output pixels computed at a time when writing into a WritableImage.
+   */
+  private static final int BAND_PIXELS = 1 << 16;
+
+  /**
+   * Compute a rectangular region of the output of this effect as packed 0xRRGGBB pixels with every
+   * channel already clamped between 0 and 255.
+   *
+   * @param input the Image this effect is applied to
+   * @param x     the left edge of the region
+   * @param y     the top edge of the region
+   * @param w     the width of the region
+   * @param h     the height of the region
+   * @param dst   an array of at least w * h pixels to write the region into in row major order
+   */
+  protected abstract void computeRegion(Image input, int x, int y, int w, int h, int[] dst);
+
+  /**
+   * Apply this effect to an Image. Tiled input produces a tiled output whose tiles are only
+   * computed when read, off-heap input produces off-heap output, and otherwise the output is
+   * packed.
+   *
+   * @param input the given Image
+   * @return a new Image after applying this effect
+   */
+  @Override
+  public Image apply(Image input) {
+    return this.apply(input, ProgressMonitor.NONE);
+  }
+
+  /**
+   * Apply this effect to an Image a band of rows at a time, reporting progress after each band. A
+   * tiled output is returned straight away, since none of it is computed until it is read.
+   *
+   * @param input   the given Image
+   * @param monitor receives progress and says when to stop
+   * @return a new Image after applying this effect
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled
+   */
+  @Override
+  public Image apply(Image input, ProgressMonitor monitor) {
+    if (input instanceof TiledImage) {
+      return ((TiledImage) input).withSource(
+          (x, y, w, h, dst) -> this.computeRegion(input, x, y, w, h, dst));
+    }
+    int w = input.getWidth();
+    int h = input.getHeight();
+    if (input instanceof MappedRGBArray) {
+      MappedRGBArray output = new MappedRGBArray(w, h);
+      this.applyInto(input, output, monitor);
+      output.freeze();
+      return output;
+    }
+    int[] output = new int[w * h];
+    int bandRows = this.getBandRows(w, h);
+    this.forEachBand((h + bandRows - 1) / bandRows, monitor, i -> {
+      int y = i * bandRows;
+      int rows = Math.min(bandRows, h - y);
+      int[] band = new int[rows * w];
+      this.computeRegion(input, 0, y, w, rows, band);
+      System.arraycopy(band, 0, output, y * w, rows * w);
+    });
+    return new PackedRGBArray(w, h, output, true);
+  }
+
+  /**
+   * Apply this effect to an Image a band of rows at a time like apply, but unpack each band
+   * straight into the channel planes of a planar output, so no packed copy of the whole output is
+   * ever made. Subclasses use this to give planar output for planar input.
+   *
+   * @param input   the given Image
+   * @param monitor receives progress and says when to stop
+   * @return a new planar Image after applying this effect
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled
+   */
+  protected PlanarRGBArray applyToPlanes(Image input, ProgressMonitor monitor) {
+    int w = input.getWidth();
+    int h = input.getHeight();
+    byte[][] planes = new byte[3][w * h];
+    int bandRows = this.getBandRows(w, h);
+    this.forEachBand((h + bandRows - 1) / bandRows, monitor, i -> {
+      int y = i * bandRows;
+      int rows = Math.min(bandRows, h - y);
+      int[] band = new int[rows * w];
+      this.computeRegion(input, 0, y, w, rows, band);
+      for (int j = 0; j < rows * w; ++j) {
+        planes[0][y * w + j] = (byte) (band[j] >> 16);
+        planes[1][y * w + j] = (byte) (band[j] >> 8);
+        planes[2][y * w + j] = (byte) band[j];
+      }
+    });
+    return new PlanarRGBArray(w, h, planes);
+  }
+
+  /**
+   * A RegionEffect only depends on its input, so it is deterministic.
+   *
+   * @return true
+   */
+  @Override
+  public boolean isDeterministic() {
+    return true;
+  }
+
+  /**
+   * Apply this effect to an Image and write the output into the given WritableImage a band of rows
+   * at a time.
+   *
+   * @param input  the given Image
+   * @param output the image to write into, with the same dimensions as input
+   * @throws IllegalArgumentException if either arg is null or their dimensions differ
+   */
+  public void applyInto(Image input, WritableImage output) throws IllegalArgumentException {
+    this.applyInto(input, output, ProgressMonitor.NONE);
+  }
+
+  /**
+   * Apply this effect to an Image and write the output into the given WritableImage a band of rows
+   * at a time, reporting progress after each band.
+   *
+   * @param input   the given Image
+   * @param output  the image to write into, with the same dimensions as input
+   * @param monitor receives progress and says when to stop
+   * @throws IllegalArgumentException if any arg is null or the dimensions differ
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled, in which case
+   *                                                    output is only partly written
+   */
+  public void applyInto(Image input, WritableImage output, ProgressMonitor monitor)
+          throws IllegalArgumentException {
+    if (input == null || output == null || monitor == null) {
+      throw new IllegalArgumentException("Illegal null arg");
+    }
+    int w = input.getWidth();
+    int h = input.getHeight();
+    if (output.getWidth() != w || output.getHeight() != h) {
+      throw new IllegalArgumentException("input and output dimensions must match");
+    }
+    int bandRows = this.getBandRows(w, h);
+    this.forEachBand((h + bandRows - 1) / bandRows, monitor, i -> {
+      int y = i * bandRows;
+      int rows = Math.min(bandRows, h - y);
+      int[] band = new int[rows * w];
+      this.computeRegion(input, 0, y, w, rows, band);
+      // a WritableImage need not allow several writers at once
+      synchronized (output) {
+        output.setPackedRows(y, rows, band);
+      }
+    });
+  }
+
+  /**
+   * Return the number of rows in each band of the output. By default a band holds about
+   * BAND_PIXELS pixels, and effects that read far around each pixel can use taller bands so less
+   * of what they read is shared with the neighboring bands.
+   *
+   * @param w the width of the output
+   * @param h the height of the output
+   * @return the number of rows in a band, between 1 and h
+   */
+  protected int getBandRows(int w, int h) {
+    return Math.max(1, Math.min(h, BAND_PIXELS / w));
+  }
+
+  /**
+   * Return the number of threads this effect computes bands of its output on. 1 computes them one
+   * after another on the calling thread, and 0 uses the common ForkJoinPool, which has a thread for
+   * each core. RegionEffects compute bands one after another unless they override this.
+   *
+   * @return the number of threads to use, or 0 to pick automatically
+   */
+  protected int getParallelism() {
+    return 1;
+  }
+
+  /**
+   * Run a task for each of a number of independent bands, on as many threads as getParallelism
+   * allows. Progress is reported and cancellation checked before each band is started.
+   *
+   * @param numBands the number of bands
+   * @param monitor  receives progress and says when to stop
+   * @param band     computes the band with the index it is given
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled
+   */
+  protected void forEachBand(int numBands, ProgressMonitor monitor, IntConsumer band) {
+    int parallelism = this.getParallelism();
+    ForkJoinPool pool = parallelism == 0 ? ForkJoinPool.commonPool() : null;
+    if (numBands < 2 || parallelism == 1 || (pool != null && pool.getParallelism() < 2)) {
+      for (int i = 0; i < numBands; ++i) {
+        monitor.step((double) i / numBands);
+        band.accept(i);
+      }
+      monitor.step(1);
+      return;
+    }
+    AtomicInteger done = new AtomicInteger();
+    RecursiveAction all = new Bands(0, numBands, i -> {
+      monitor.step((double) done.get() / numBands);
+      band.accept(i);
+      done.incrementAndGet();
+    });
+    if (pool == null) {
+      pool = new ForkJoinPool(parallelism);
+      try {
+        pool.submit(all).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        all.cancel(true);
+        throw new IllegalStateException("interrupted while applying effect", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw (Error) e.getCause();
+      } finally {
+        pool.shutdown();
+      }
+    } else {
+      pool.invoke(all);
+    }
+    monitor.step(1);
+  }
+
+  /**
+   * A range of bands that splits itself in half until each half is one band, so idle threads can
+   * steal the other halves.
+   */
+  private static final class Bands extends RecursiveAction {
+    /**
+     * ForkJoinTasks are Serializable, though Bands are never serialized.
+     */
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+    private final IntConsumer band;
+
+    /**
+     * Constructs the task for the bands from (inclusive) to (exclusive).
+     *
+     * @param from the first band
+     * @param to   one past the last band
+     * @param band computes the band with the index it is given
+     */
+    Bands(int from, int to, IntConsumer band) {
+      this.from = from;
+      this.to = to;
+      this.band = band;
+    }
+
+    /**
+     * Compute the single band in range, or split the range and compute both halves.
+     */
+    @Override
+    protected void compute() {
+      if (this.to - this.from == 1) {
+        this.band.accept(this.from);
+        return;
+      }
+      int mid = (this.from + this.to) >>> 1;
+      invokeAll(new Bands(this.from, mid, this.band), new Bands(mid, this.to, this.band));
+    }
+  }
+}
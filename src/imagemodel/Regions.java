@@ -0,0 +1,64 @@
+package imagemodel;
+
+/**
+ * Shared bounds checks for the bulk region accessors of Image implementations.
+ */
+final class Regions {
+  /**
+   * The number of channels an Image has.
+   */
+  private static final int NUM_CHANNELS = 3;
+
+  /**
+   * No instances, only static helpers.
+   */
+  private Regions() {
+  }
+
+  /**
+   * Check that a rectangle lies entirely inside an Image and fits in the destination array.
+   *
+   * @param img the image the rectangle is read from
+   * @param x   the left edge of the rectangle
+   * @param y   the top edge of the rectangle
+   * @param w   the width of the rectangle
+   * @param h   the height of the rectangle
+   * @param dst the array the rectangle is copied into
+   * @throws IllegalArgumentException if the rectangle is out of bounds or dst is too small
+   */
+  static void check(Image img, int x, int y, int w, int h, int[] dst)
+          throws IllegalArgumentException {
+    if (dst == null) {
+      throw new IllegalArgumentException("argument cannot be null");
+    }
+    if (x < 0 || y < 0 || w < 0 || h < 0
+            || x > img.getWidth() - w || y > img.getHeight() - h) {
+      throw new IllegalArgumentException("region out of bounds");
+    }
+    if (dst.length < (long) w * h) {
+      throw new IllegalArgumentException("destination array is too small");
+    }
+  }
+
+  /**
+   * Check that a rectangle of one channel lies entirely inside an Image and fits in the
+   * destination array.
+   *
+   * @param img     the image the rectangle is read from
+   * @param x       the left edge of the rectangle
+   * @param y       the top edge of the rectangle
+   * @param w       the width of the rectangle
+   * @param h       the height of the rectangle
+   * @param channel the channel the rectangle is read from
+   * @param dst     the array the rectangle is copied into
+   * @throws IllegalArgumentException if the rectangle or channel is out of bounds or dst is too
+   *                                  small
+   */
+  static void check(Image img, int x, int y, int w, int h, int channel, int[] dst)
+          throws IllegalArgumentException {
+    if (channel < 0 || channel >= NUM_CHANNELS) {
+      throw new IllegalArgumentException("channel out of bounds");
+    }
+    check(img, x, y, w, h, dst);
+  }
+}
@@ -0,0 +1,183 @@
+package imagemodel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A History that stores the effect applied at each step instead of the image it produced, and
+ * rebuilds past images by replaying those effects from the nearest checkpoint. Checkpoints are
+ * kept by reference every checkpointInterval steps, and at any step whose image can't be
+ * recomputed: a newly loaded image, or the output of an effect that is not deterministic.
+ *
+ * <p>The checkpoint interval trades memory against undo latency. An interval of 1 keeps every
+ * image like ReferenceHistory, while an interval of n keeps about one image in n and takes up to
+ * n - 1 effects to rebuild a state. Redo replays only the one effect of the step being redone.
+ */
+public class ReplayHistory implements History {
+  /**
+   * The default number of steps between checkpoints.
+   */
+  public static final int DEFAULT_CHECKPOINT_INTERVAL = 8;
+
+  private final int checkpointInterval;
+
+  /**
+   * Every state of the image in order. The state the model is currently in is at position.
+   */
+  private final List<State> timeline;
+  private int position;
+
+  /**
+   * Constructs an empty history with the default checkpoint interval.
+   */
+  public ReplayHistory() {
+    this(DEFAULT_CHECKPOINT_INTERVAL);
+  }
+
+  /**
+   * Constructs an empty history.
+   *
+   * @param checkpointInterval the most steps to replay to rebuild any state
+   * @throws IllegalArgumentException if checkpointInterval is not positive
+   */
+  public ReplayHistory(int checkpointInterval) throws IllegalArgumentException {
+    if (checkpointInterval <= 0) {
+      throw new IllegalArgumentException("checkpoint interval must be positive");
+    }
+    this.checkpointInterval = checkpointInterval;
+    this.timeline = new ArrayList<>();
+    this.position = -1;
+  }
+
+  /**
+   * Records a step by its effect, or by keeping the image after it as a checkpoint if it can't be
+   * replayed or the last checkpoint is checkpointInterval steps back. Steps that could be redone
+   * are dropped.
+   *
+   * @param previous the image before the step
+   * @param effect   the effect that produced current from previous, or null if a new image was
+   *                 loaded
+   * @param current  the image after the step
+   * @throws IllegalArgumentException if previous or current is null
+   */
+  @Override
+  public void record(Image previous, ImageEffect effect, Image current)
+          throws IllegalArgumentException {
+    if (previous == null || current == null) {
+      throw new IllegalArgumentException("Illegal null arg");
+    }
+    this.timeline.subList(this.position + 1, this.timeline.size()).clear();
+    if (this.timeline.isEmpty()) {
+      this.timeline.add(new State(previous, null));
+      this.position = 0;
+    }
+    boolean replayable = effect != null && effect.isDeterministic()
+            && this.position - this.lastCheckpoint(this.position) + 1 < this.checkpointInterval;
+    this.timeline.add(replayable ? new State(null, effect) : new State(current, null));
+    ++this.position;
+  }
+
+  /**
+   * Steps back by rebuilding the state before the current one from the nearest checkpoint. The
+   * position only moves once the image is rebuilt, so a replay that throws leaves it unchanged.
+   *
+   * @param current the current image of the model
+   * @return the image before the most recent step, or null if there is nothing to undo
+   */
+  @Override
+  public Image undo(Image current) {
+    if (this.position <= 0) {
+      return null;
+    }
+    Image previous = this.rebuild(this.position - 1);
+    --this.position;
+    return previous;
+  }
+
+  /**
+   * Steps forward by applying the effect of the step being redone to the current image, or by
+   * returning its checkpoint. The position only moves once the image is made, so a replay that
+   * throws leaves it unchanged.
+   *
+   * @param current the current image of the model
+   * @return the image after the most recently undone step, or null if there is nothing to redo
+   */
+  @Override
+  public Image redo(Image current) {
+    if (this.position < 0 || this.position >= this.timeline.size() - 1) {
+      return null;
+    }
+    State state = this.timeline.get(this.position + 1);
+    Image next = state.checkpoint != null ? state.checkpoint : state.effect.apply(current);
+    ++this.position;
+    return next;
+  }
+
+  /**
+   * Returns the estimated bytes of pixel values held for each step, for steps that can be undone
+   * from oldest to newest followed by steps that can be redone from nearest to furthest. A step
+   * that is replayed holds nothing.
+   *
+   * @return the bytes held for each step
+   */
+  @Override
+  public List<Long> getStepFootprints() {
+    List<Long> footprints = new ArrayList<>();
+    for (int i = 0; i < this.timeline.size(); ++i) {
+      if (i != this.position) {
+        Image checkpoint = this.timeline.get(i).checkpoint;
+        footprints.add(checkpoint == null ? 0 : ReferenceHistory.footprint(checkpoint));
+      }
+    }
+    return footprints;
+  }
+
+  /**
+   * Rebuilds a state by replaying effects from the nearest checkpoint at or before it.
+   *
+   * @param index the position of the state in the timeline
+   * @return the image of that state
+   */
+  private Image rebuild(int index) {
+    int from = this.lastCheckpoint(index);
+    Image img = this.timeline.get(from).checkpoint;
+    for (int i = from + 1; i <= index; ++i) {
+      img = this.timeline.get(i).effect.apply(img);
+    }
+    return img;
+  }
+
+  /**
+   * Finds the nearest checkpoint at or before a state. The first state is always a checkpoint.
+   *
+   * @param index the position of the state in the timeline
+   * @return the position of the checkpoint
+   */
+  private int lastCheckpoint(int index) {
+    while (this.timeline.get(index).checkpoint == null) {
+      --index;
+    }
+    return index;
+  }
+
+  /**
+   * One state of the image: either a checkpoint image, or the effect that produces it from the
+   * state before.
+   */
+  private static final class State {
+    private final Image checkpoint;
+    private final ImageEffect effect;
+
+    /**
+     * Constructs a state.
+     *
+     * @param checkpoint the image of this state, or null if it is replayed
+     * @param effect     the effect that produces this state from the one before, or null if it is a
+     *                   checkpoint
+     */
+    private State(Image checkpoint, ImageEffect effect) {
+      this.checkpoint = checkpoint;
+      this.effect = effect;
+    }
+  }
+}
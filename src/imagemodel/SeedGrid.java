@@ -0,0 +1,120 @@
+package imagemodel;
+
+/**
+ * Finds the seed nearest to a pixel among many seeds by bucketing the seeds into a uniform grid of
+ * square cells, which hold about one seed each on average. A search looks through rings of cells
+ * around the cell of the pixel, from the inside out, and stops once the next ring is too far away
+ * to hold anything nearer than the nearest seed found so far. It finds exactly the seed that
+ * comparing the pixel to every seed would, so a search costs about as much for millions of seeds
+ * as for a few.
+ */
+final class SeedGrid {
+  /**
+   * The side of each cell, in pixels.
+   */
+  private final int cell;
+  private final int gridW;
+  private final int gridH;
+
+  /**
+   * The seeds in cell i are cellSeeds[cellStart[i]] to cellSeeds[cellStart[i + 1] - 1], in order of
+   * index. Their columns and rows are kept in the same order, so the seeds of neighboring cells
+   * are next to each other in memory.
+   */
+  private final int[] cellStart;
+  private final int[] cellSeeds;
+  private final int[] cellSeedX;
+  private final int[] cellSeedY;
+
+  /**
+   * Constructs a grid over the given seeds.
+   *
+   * @param seedX  the column of each seed
+   * @param seedY  the row of each seed
+   * @param count  the number of seeds, at least 1
+   * @param width  the width of the image the seeds are in
+   * @param height the height of the image the seeds are in
+   */
+  SeedGrid(int[] seedX, int[] seedY, int count, int width, int height) {
+    this.cell = Math.max(1, (int) Math.sqrt((double) width * height / count));
+    this.gridW = (width + this.cell - 1) / this.cell;
+    this.gridH = (height + this.cell - 1) / this.cell;
+    // a counting sort of the seeds by cell, which keeps them in order of index within a cell
+    this.cellStart = new int[this.gridW * this.gridH + 1];
+    for (int seed = 0; seed < count; ++seed) {
+      ++this.cellStart[this.cellOf(seedX[seed], seedY[seed]) + 1];
+    }
+    for (int i = 0; i < this.gridW * this.gridH; ++i) {
+      this.cellStart[i + 1] += this.cellStart[i];
+    }
+    int[] next = this.cellStart.clone();
+    this.cellSeeds = new int[count];
+    this.cellSeedX = new int[count];
+    this.cellSeedY = new int[count];
+    for (int seed = 0; seed < count; ++seed) {
+      int i = next[this.cellOf(seedX[seed], seedY[seed])]++;
+      this.cellSeeds[i] = seed;
+      this.cellSeedX[i] = seedX[seed];
+      this.cellSeedY[i] = seedY[seed];
+    }
+  }
+
+  /**
+   * Return the seed nearest to a pixel, or the one with the lowest index among the nearest if
+   * several are as near. Squared distances are compared, which are exact.
+   *
+   * @param x the column of the pixel
+   * @param y the row of the pixel
+   * @return the index of the nearest seed
+   */
+  int nearest(int x, int y) {
+    int cellX = x / this.cell;
+    int cellY = y / this.cell;
+    int best = -1;
+    long bestDist = Long.MAX_VALUE;
+    for (int ring = 0; ; ++ring) {
+      // every pixel in a cell of this ring is at least this far away along one axis
+      long gap = (long) (ring - 1) * this.cell + 1;
+      if (ring > 0 && best >= 0 && gap * gap > bestDist) {
+        return best;
+      }
+      int top = cellY - ring;
+      int bottom = cellY + ring;
+      int left = cellX - ring;
+      int right = cellX + ring;
+      if (top < 0 && left < 0 && bottom >= this.gridH && right >= this.gridW) {
+        return best;
+      }
+      for (int row = Math.max(0, top); row <= Math.min(this.gridH - 1, bottom); ++row) {
+        // the top and bottom rows of the ring are whole, the others only have their two ends
+        int step = row == top || row == bottom ? 1 : Math.max(1, right - left);
+        for (int col = left; col <= right; col += step) {
+          if (col < 0 || col >= this.gridW) {
+            continue;
+          }
+          int cellIndex = row * this.gridW + col;
+          for (int i = this.cellStart[cellIndex]; i < this.cellStart[cellIndex + 1]; ++i) {
+            long dx = x - this.cellSeedX[i];
+            long dy = y - this.cellSeedY[i];
+            long dist = dx * dx + dy * dy;
+            if (dist < bestDist || (dist == bestDist && this.cellSeeds[i] < best)) {
+              bestDist = dist;
+              best = this.cellSeeds[i];
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Return the cell a point is in.
+   *
+   * @param x the column of the point
+   * @param y the row of the point
+   * @return the row major index of its cell
+   */
+  private int cellOf(int x, int y) {
+    return y / this.cell * this.gridW + x / this.cell;
+  }
+}
@@ -11,11 +11,22 @@ public class Sharpen extends Filter {
    * A Sharpen's kernel is pre-defined.
    */
   public Sharpen() {
+    this(0);
+  }
+
+  /**
+   * Constructs a Sharpen class that convolves on the given number of threads.
+   *
+   * @param parallelism the number of threads to use, 1 to stay on the calling thread, or 0 for one
+   *                    per core
+   * @throws IllegalArgumentException if parallelism is negative
+   */
+  public Sharpen(int parallelism) throws IllegalArgumentException {
     super(new double[][]{
             {-0.125, -0.125, -0.125, -0.125, -0.125},
             {-0.125, 0.25, 0.25, 0.25, -0.125},
             {-0.125, 0.25, 1.0, 0.25, -0.125},
             {-0.125, 0.25, 0.25, 0.25, -0.125},
-            {-0.125, -0.125, -0.125, -0.125, -0.125}});
+            {-0.125, -0.125, -0.125, -0.125, -0.125}}, parallelism);
   }
 }
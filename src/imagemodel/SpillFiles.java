@@ -0,0 +1,106 @@
+package imagemodel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Opens temporary files for objects that spill data to disk, and closes and deletes each file once
+ * the object that owns it has been garbage collected. The file is unlinked as soon as it is opened
+ * where the platform allows, so only the open channel is left to release. Files of collected
+ * owners are released whenever another spill file is opened, and the rest when the JVM exits.
+ */
+final class SpillFiles {
+  /**
+   * Owners that have been collected show up here.
+   */
+  private static final ReferenceQueue<Object> COLLECTED = new ReferenceQueue<>();
+
+  /**
+   * Keeps the references themselves reachable until their files are released.
+   */
+  private static final Set<Spill> OPEN = Collections.synchronizedSet(new HashSet<>());
+
+  /**
+   * This class only has static methods.
+   */
+  private SpillFiles() {
+  }
+
+  /**
+   * Create a temporary file and open it for reading and writing until owner is garbage collected.
+   *
+   * @param owner  the object the file belongs to
+   * @param prefix the prefix of the name of the file
+   * @return a channel on the new empty file
+   * @throws IOException if the file can't be created or opened
+   */
+  static FileChannel open(Object owner, String prefix) throws IOException {
+    releaseCollected();
+    File file = File.createTempFile(prefix, ".bin");
+    FileChannel channel;
+    try {
+      channel = new RandomAccessFile(file, "rw").getChannel();
+    } catch (IOException e) {
+      file.delete();
+      throw e;
+    }
+    // reads and writes through the channel still work once the file is unlinked
+    if (!file.delete()) {
+      file.deleteOnExit();
+    }
+    OPEN.add(new Spill(owner, file, channel));
+    return channel;
+  }
+
+  /**
+   * Close and delete the files of every owner that has been collected so far.
+   */
+  static void releaseCollected() {
+    for (Reference<?> ref = COLLECTED.poll(); ref != null; ref = COLLECTED.poll()) {
+      Spill spill = (Spill) ref;
+      OPEN.remove(spill);
+      spill.release();
+    }
+  }
+
+  /**
+   * A temporary file, and the owner that keeps it open.
+   */
+  private static final class Spill extends PhantomReference<Object> {
+    private final File file;
+    private final FileChannel channel;
+
+    /**
+     * Constructs a reference to the owner of a file.
+     *
+     * @param owner   the object the file belongs to
+     * @param file    the file
+     * @param channel the open channel on the file
+     */
+    Spill(Object owner, File file, FileChannel channel) {
+      super(owner, COLLECTED);
+      this.file = file;
+      this.channel = channel;
+    }
+
+    /**
+     * Close the channel and delete the file if it is still there.
+     */
+    void release() {
+      try {
+        this.channel.close();
+      } catch (IOException e) {
+        // nothing else holds the file, so there is nothing left to do with it
+      }
+      this.file.delete();
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package imagemodel;
+
+/**
+ * Produces the pixels of a rectangular tile of an image on demand. Used by TiledImage to compute
+ * each tile the first time it is read.
+ */
+public interface TileSource {
+  /**
+   * Compute a rectangular region of an image as packed 0xRRGGBB pixels with every channel between
+   * 0 and 255.
+   *
+   * @param x   the left edge of the region
+   * @param y   the top edge of the region
+   * @param w   the width of the region
+   * @param h   the height of the region
+   * @param dst an array of at least w * h pixels to write the region into in row major order
+   */
+  void computeTile(int x, int y, int w, int h, int[] dst);
+}
@@ -0,0 +1,474 @@
+package imagemodel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A class that stores an image as square tiles of packed 0xRRGGBB pixels that are only computed
+ * when they are first read. Computed tiles are kept in a least recently used cache with a byte
+ * budget, and tiles pushed out of the cache are spilled to a temporary file and read back from it
+ * the next time they are needed.
+ *
+ * <p>Effects that can compute any region of their output (see RegionEffect) return a TiledImage
+ * when given one. Such chains of effects only ever compute the tiles that are actually read or
+ * saved, and each tile only touches a small working set. A TiledImage is immutable like every other
+ * Image: tiles are computed deterministically from their source and never change.
+ *
+ * <p>Tiles are computed outside of any lock, so threads reading different tiles never wait on each
+ * other; only the cache and the spill file are guarded. Two threads asking for the same missing
+ * tile at once may both compute it, and the first one to finish is kept. The spill file is closed
+ * and deleted once the TiledImage is garbage collected.
+ */
+public class TiledImage implements Image {
+  /**
+   * The default side length of a tile in pixels.
+   */
+  public static final int DEFAULT_TILE_SIZE = 256;
+
+  /**
+   * The default number of bytes of computed tiles to keep on the heap.
+   */
+  public static final long DEFAULT_CACHE_BYTES = 64L << 20;
+
+  /**
+   * The number of channels this TiledImage has.
+   */
+  private static final int NUM_CHANNELS = 3;
+
+  private final int width;
+  private final int height;
+  private final int tileSize;
+  private final int tilesPerRow;
+  private final long cacheBytes;
+  private final TileSource source;
+
+  /**
+   * Computed tiles on the heap by tile index, in least recently used order.
+   */
+  private final LinkedHashMap<Integer, int[]> cache;
+  private long cachedBytes;
+
+  /**
+   * Which tiles have been spilled to the spill file. Slots in the file are fixed by tile index.
+   */
+  private final boolean[] spilled;
+  private FileChannel spillFile;
+
+  /**
+   * Constructs a lazily computed image with the default tile size and cache budget.
+   *
+   * @param width  width of the image in pixels
+   * @param height height of the image in pixels
+   * @param source computes the pixels of each tile on demand
+   * @throws IllegalArgumentException for a null source or nonpositive dimensions
+   */
+  public TiledImage(int width, int height, TileSource source) throws IllegalArgumentException {
+    this(width, height, DEFAULT_TILE_SIZE, DEFAULT_CACHE_BYTES, source);
+  }
+
+  /**
+   * Constructs a lazily computed image.
+   *
+   * @param width      width of the image in pixels
+   * @param height     height of the image in pixels
+   * @param tileSize   side length of a tile in pixels
+   * @param cacheBytes number of bytes of computed tiles to keep on the heap before spilling
+   * @param source     computes the pixels of each tile on demand
+   * @throws IllegalArgumentException for a null source or nonpositive dimensions or budget
+   */
+  public TiledImage(int width, int height, int tileSize, long cacheBytes, TileSource source)
+          throws IllegalArgumentException {
+    if (source == null) {
+      throw new IllegalArgumentException("argument cannot be null");
+    }
+    if (width <= 0 || height <= 0 || tileSize <= 0) {
+      throw new IllegalArgumentException("data must have nonzero dimensions");
+    }
+    if (cacheBytes <= 0) {
+      throw new IllegalArgumentException("cache budget must be positive");
+    }
+    this.width = width;
+    this.height = height;
+    this.tileSize = tileSize;
+    this.tilesPerRow = (width + tileSize - 1) / tileSize;
+    this.cacheBytes = cacheBytes;
+    this.source = source;
+    this.cache = new LinkedHashMap<>(16, 0.75f, true);
+    this.cachedBytes = 0;
+    this.spilled = new boolean[this.tilesPerRow * ((height + tileSize - 1) / tileSize)];
+    this.spillFile = null;
+  }
+
+  /**
+   * Constructs a tiled view of another Image with the default tile size and cache budget. Tiles are
+   * copied from img as they are read.
+   *
+   * @param img the image to tile
+   * @throws IllegalArgumentException if img is null
+   */
+  public TiledImage(Image img) throws IllegalArgumentException {
+    this(img, DEFAULT_TILE_SIZE, DEFAULT_CACHE_BYTES);
+  }
+
+  /**
+   * Constructs a tiled view of another Image. Tiles are copied from img as they are read.
+   *
+   * @param img        the image to tile
+   * @param tileSize   side length of a tile in pixels
+   * @param cacheBytes number of bytes of computed tiles to keep on the heap before spilling
+   * @throws IllegalArgumentException if img is null or the tile size or budget is not positive
+   */
+  public TiledImage(Image img, int tileSize, long cacheBytes) throws IllegalArgumentException {
+    this(validateNotNull(img).getWidth(), img.getHeight(), tileSize, cacheBytes,
+        img::getPackedRegion);
+  }
+
+  /**
+   * Constructs a lazily computed image with the same size, tile size and cache budget as this one.
+   *
+   * @param source computes the pixels of each tile on demand
+   * @return a new TiledImage laid out like this one
+   */
+  TiledImage withSource(TileSource source) {
+    return new TiledImage(this.width, this.height, this.tileSize, this.cacheBytes, source);
+  }
+
+  /**
+   * Return the pixel value located at the given (x, y) and channel within this Image. Computes or
+   * reloads the tile holding that pixel if needed.
+   *
+   * @param x       the given x coordinate
+   * @param y       the given y coordinate
+   * @param channel the given channel
+   * @return the pixel value of the given chanel at given (x, y)
+   * @throws IllegalArgumentException if given location is not in bounds
+   */
+  @Override
+  public int getVal(int x, int y, int channel) throws IllegalArgumentException {
+    if (!this.isValidLocation(x, y) || channel < 0 || channel >= NUM_CHANNELS) {
+      throw new IllegalArgumentException("location out of bounds");
+    }
+    return this.getValUnchecked(x, y, channel);
+  }
+
+  /**
+   * Return the pixel value located at the given (x, y) and channel within this Image without
+   * checking that the location is in bounds. Computes or reloads the tile holding that pixel if
+   * needed.
+   *
+   * @param x       the given x coordinate, already known to be in bounds
+   * @param y       the given y coordinate, already known to be in bounds
+   * @param channel the given channel, already known to be in bounds
+   * @return the pixel value of the given chanel at given (x, y)
+   */
+  @Override
+  public int getValUnchecked(int x, int y, int channel) {
+    int tileX = x / this.tileSize;
+    int tileY = y / this.tileSize;
+    int[] tile = this.getTile(tileY * this.tilesPerRow + tileX);
+    int tileW = this.tileWidth(tileX);
+    int pixel = tile[(y - tileY * this.tileSize) * tileW + (x - tileX * this.tileSize)];
+    return PackedRGBArray.unpack(pixel, channel);
+  }
+
+  /**
+   * Copy a rectangle of this Image into the given array as packed 0xRRGGBB pixels in row major
+   * order. Each tile the rectangle overlaps is fetched once and copied a row slice at a time.
+   *
+   * @param x   the left edge of the rectangle
+   * @param y   the top edge of the rectangle
+   * @param w   the width of the rectangle
+   * @param h   the height of the rectangle
+   * @param dst an array of at least w * h pixels to copy the rectangle into
+   * @throws IllegalArgumentException if the rectangle is not inside this Image or dst is too small
+   */
+  @Override
+  public void getPackedRegion(int x, int y, int w, int h, int[] dst)
+          throws IllegalArgumentException {
+    Regions.check(this, x, y, w, h, dst);
+    if (w == 0 || h == 0) {
+      return;
+    }
+    for (int tileY = y / this.tileSize; tileY <= (y + h - 1) / this.tileSize; ++tileY) {
+      for (int tileX = x / this.tileSize; tileX <= (x + w - 1) / this.tileSize; ++tileX) {
+        int[] tile = this.getTile(tileY * this.tilesPerRow + tileX);
+        int tileW = this.tileWidth(tileX);
+        int left = tileX * this.tileSize;
+        int top = tileY * this.tileSize;
+        // the overlap of the tile and the rectangle, in image coordinates
+        int fromX = Math.max(x, left);
+        int toX = Math.min(x + w, left + tileW);
+        int fromY = Math.max(y, top);
+        int toY = Math.min(y + h, top + this.tileSize);
+        for (int row = fromY; row < toY; ++row) {
+          System.arraycopy(tile, (row - top) * tileW + (fromX - left),
+                  dst, (row - y) * w + (fromX - x), toX - fromX);
+        }
+      }
+    }
+  }
+
+  /**
+   * Copy a rectangle of one channel of this Image into the given array in row major order. Each
+   * tile the rectangle overlaps is fetched once and unpacked a row slice at a time.
+   *
+   * @param x       the left edge of the rectangle
+   * @param y       the top edge of the rectangle
+   * @param w       the width of the rectangle
+   * @param h       the height of the rectangle
+   * @param channel the channel to copy
+   * @param dst     an array of at least w * h values to copy the rectangle into
+   * @throws IllegalArgumentException if the rectangle is not inside this Image, the channel is not
+   *                                  valid, or dst is too small
+   */
+  @Override
+  public void getChannelRegion(int x, int y, int w, int h, int channel, int[] dst)
+          throws IllegalArgumentException {
+    Regions.check(this, x, y, w, h, channel, dst);
+    if (w == 0 || h == 0) {
+      return;
+    }
+    for (int tileY = y / this.tileSize; tileY <= (y + h - 1) / this.tileSize; ++tileY) {
+      for (int tileX = x / this.tileSize; tileX <= (x + w - 1) / this.tileSize; ++tileX) {
+        int[] tile = this.getTile(tileY * this.tilesPerRow + tileX);
+        int tileW = this.tileWidth(tileX);
+        int left = tileX * this.tileSize;
+        int top = tileY * this.tileSize;
+        // the overlap of the tile and the rectangle, in image coordinates
+        int fromX = Math.max(x, left);
+        int toX = Math.min(x + w, left + tileW);
+        int fromY = Math.max(y, top);
+        int toY = Math.min(y + h, top + this.tileSize);
+        for (int row = fromY; row < toY; ++row) {
+          int src = (row - top) * tileW + (fromX - left);
+          int out = (row - y) * w + (fromX - x);
+          for (int i = 0; i < toX - fromX; ++i) {
+            dst[out + i] = PackedRGBArray.unpack(tile[src + i], channel);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Return a copy of this Image in int[][][] 3 channel RGB value format. This computes every tile.
+   *
+   * @return an int[][][] representation of this Image
+   */
+  @Override
+  public int[][][] getDataClone() {
+    int[][][] output = new int[this.height][this.width][NUM_CHANNELS];
+    for (int index = 0; index < this.spilled.length; ++index) {
+      int tileX = index % this.tilesPerRow;
+      int tileY = index / this.tilesPerRow;
+      int tileW = this.tileWidth(tileX);
+      int[] tile = this.getTile(index);
+      for (int i = 0; i < tile.length; ++i) {
+        int y = tileY * this.tileSize + i / tileW;
+        int x = tileX * this.tileSize + i % tileW;
+        for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+          output[y][x][channel] = PackedRGBArray.unpack(tile[i], channel);
+        }
+      }
+    }
+    return output;
+  }
+
+  /**
+   * Return the width of this Image.
+   *
+   * @return width
+   */
+  @Override
+  public int getWidth() {
+    return this.width;
+  }
+
+  /**
+   * Return the height of this Image.
+   *
+   * @return height
+   */
+  @Override
+  public int getHeight() {
+    return this.height;
+  }
+
+  /**
+   * A helper method that checks if the given (x, y) is inside of this Image.
+   *
+   * @param x the given x coordinate
+   * @param y the given y coordinate
+   * @return true if (x, y) is a valid location inside of this Image; false otherwise
+   */
+  @Override
+  public boolean isValidLocation(int x, int y) {
+    return x >= 0 && x < this.width && y >= 0 && y < this.height;
+  }
+
+  /**
+   * Return the side length of the tiles of this Image.
+   *
+   * @return tile size in pixels
+   */
+  public int getTileSize() {
+    return this.tileSize;
+  }
+
+  /**
+   * Return the pixels of a tile, from the cache, the spill file, or by computing it.
+   *
+   * @param index the index of the tile in row major tile order
+   * @return the packed pixels of the tile
+   */
+  private int[] getTile(int index) {
+    int tileX = index % this.tilesPerRow;
+    int tileY = index / this.tilesPerRow;
+    int tileW = this.tileWidth(tileX);
+    int tileH = Math.min(this.tileSize, this.height - tileY * this.tileSize);
+    int[] tile;
+    synchronized (this) {
+      tile = this.cache.get(index);
+      if (tile != null) {
+        return tile;
+      }
+      if (this.spilled[index]) {
+        tile = new int[tileW * tileH];
+        this.readSpilled(index, tile);
+        return this.cacheTile(index, tile);
+      }
+    }
+    tile = new int[tileW * tileH];
+    this.source.computeTile(tileX * this.tileSize, tileY * this.tileSize, tileW, tileH, tile);
+    synchronized (this) {
+      return this.cacheTile(index, tile);
+    }
+  }
+
+  /**
+   * Add a tile to the cache unless another thread has cached it first, then spill tiles until the
+   * cache fits its budget again. The caller must hold the lock on this TiledImage.
+   *
+   * @param index the index of the tile
+   * @param tile  the pixels of the tile
+   * @return the cached pixels of the tile
+   */
+  private int[] cacheTile(int index, int[] tile) {
+    int[] cached = this.cache.get(index);
+    if (cached != null) {
+      return cached;
+    }
+    this.cache.put(index, tile);
+    this.cachedBytes += tile.length * 4L;
+    this.evict(index);
+    return tile;
+  }
+
+  /**
+   * Spill least recently used tiles until the cache fits its budget again. The tile that was just
+   * added always stays cached.
+   *
+   * @param keep the index of the tile that was just added
+   */
+  private void evict(int keep) {
+    Iterator<Map.Entry<Integer, int[]>> eldest = this.cache.entrySet().iterator();
+    while (this.cachedBytes > this.cacheBytes && eldest.hasNext()) {
+      Map.Entry<Integer, int[]> entry = eldest.next();
+      if (entry.getKey() == keep) {
+        continue;
+      }
+      if (!this.spilled[entry.getKey()]) {
+        this.writeSpilled(entry.getKey(), entry.getValue());
+      }
+      this.cachedBytes -= entry.getValue().length * 4L;
+      eldest.remove();
+    }
+  }
+
+  /**
+   * Write a tile into its slot in the spill file, creating the file first if needed. The caller
+   * must hold the lock on this TiledImage.
+   *
+   * @param index the index of the tile
+   * @param tile  the pixels of the tile
+   */
+  private void writeSpilled(int index, int[] tile) {
+    try {
+      if (this.spillFile == null) {
+        this.spillFile = SpillFiles.open(this, "tiles");
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(tile.length * 4);
+      buffer.asIntBuffer().put(tile);
+      long position = this.slotOffset(index);
+      while (buffer.hasRemaining()) {
+        position += this.spillFile.write(buffer, position);
+      }
+      this.spilled[index] = true;
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not spill image tile to disk", e);
+    }
+  }
+
+  /**
+   * Read a tile back from its slot in the spill file. The caller must hold the lock on this
+   * TiledImage.
+   *
+   * @param index the index of the tile
+   * @param tile  the array to read the pixels of the tile into
+   */
+  private void readSpilled(int index, int[] tile) {
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate(tile.length * 4);
+      long position = this.slotOffset(index);
+      while (buffer.hasRemaining()) {
+        int read = this.spillFile.read(buffer, position);
+        if (read < 0) {
+          throw new IOException("spill file is truncated");
+        }
+        position += read;
+      }
+      buffer.flip();
+      buffer.asIntBuffer().get(tile);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not reload image tile from disk", e);
+    }
+  }
+
+  /**
+   * Return the byte offset of the slot of a tile in the spill file.
+   *
+   * @param index the index of the tile
+   * @return the offset of its slot
+   */
+  private long slotOffset(int index) {
+    return (long) index * this.tileSize * this.tileSize * 4;
+  }
+
+  /**
+   * Return the width of the tiles in a column of tiles. Tiles in the last column may be narrower.
+   *
+   * @param tileX the column of the tile
+   * @return its width in pixels
+   */
+  private int tileWidth(int tileX) {
+    return Math.min(this.tileSize, this.width - tileX * this.tileSize);
+  }
+
+  /**
+   * Checks a constructor argument before it is used to chain to another constructor.
+   *
+   * @param img the argument to check
+   * @return img
+   * @throws IllegalArgumentException if img is null
+   */
+  private static Image validateNotNull(Image img) throws IllegalArgumentException {
+    if (img == null) {
+      throw new IllegalArgumentException("argument cannot be null");
+    }
+    return img;
+  }
+}
@@ -4,8 +4,22 @@ package imagemodel;
  * Transform is an ImageEffect
  * that can transform the color of an Image with its matrix.
  * A color transformation modifies the color of a pixel based on its own color.
+ *
+ * <p>The matrix rows are read once per run of pixels and the three channels are written out by
+ * hand rather than looped over, which leaves the JIT a straight line of arithmetic per pixel with
+ * no array lookups for intermediate values.
+ *
+ * <p>Since channel values are whole numbers from 0 to 255, every product of a matrix value and a
+ * channel value is worked out once, when the Transform is constructed, and kept in a table as its
+ * whole part and whether it has a fraction. Each product is added onto an int that is truncated
+ * toward zero after every add, and that gives the same int whatever the fraction is, as long as
+ * rounding the double sum can't carry it over a whole number. So transforming a pixel only takes
+ * table lookups and int adds. Tables are only used when no product comes within
+ * SAFE_FRACTION of a whole number (without being one) and the values stay far below where
+ * doubles lose those fractions, which holds for Greyscale, Sepia and any matrix with a few decimal
+ * places. Other matrices are multiplied out in doubles as before.
  */
-public class Transform implements ImageEffect {
+public class Transform extends RegionEffect {
 
   /**
    * The 2D double array matrix that modifies a pixel value by matrix multiplication.
@@ -18,6 +32,28 @@ public class Transform implements ImageEffect {
    */
   private static final int NUM_CHANNELS = 3;
 
+  /**
+   * The number of channel values.
+   */
+  private static final int NUM_VALS = 256;
+
+  /**
+   * How far from a whole number the fraction of each product in a table must be. Doubles below
+   * MAX_TABLE_SUM have more than enough precision that rounding never moves a sum this far.
+   */
+  private static final double SAFE_FRACTION = 0x1p-20;
+
+  /**
+   * The largest sum of the magnitudes of the products for one channel that tables are used for.
+   */
+  private static final double MAX_TABLE_SUM = 0x1p20;
+
+  /**
+   * For each output channel and input channel, NUM_VALS entries of twice the whole part (rounded
+   * down) of the product plus 1 if it has a fraction, or null if the matrix can't use tables.
+   */
+  private final int[] table;
+
   /**
    * The Default Constructor for a Transform
    * that takes a 2D double array input as matrix.
@@ -29,35 +65,201 @@ public class Transform implements ImageEffect {
     if (matrix == null) {
       throw new IllegalArgumentException("matrix can't be null");
     }
-    this.matrix = matrix;
+    // copied so the table always matches the matrix
+    this.matrix = matrix.clone();
     if (!this.validMatrix()) {
       throw new IllegalArgumentException("matrix must be " + NUM_CHANNELS + " by " + NUM_CHANNELS);
     }
+    for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+      this.matrix[channel] = matrix[channel].clone();
+    }
+    this.table = this.buildTable();
   }
 
   /**
-   * Apply this Transform to an Image.
+   * Apply this Transform to an Image, reporting progress to the given monitor and giving up if it
+   * is cancelled.
    *
-   * @param input the given Image
+   * @param input   the given Image
+   * @param monitor receives progress and says when to stop
    * @return a new Image after applying this Transform
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled
+   */
+  @Override
+  public Image apply(Image input, ProgressMonitor monitor) {
+    if (input instanceof PlanarRGBArray) {
+      return this.applyPlanar((PlanarRGBArray) input, monitor);
+    }
+    return super.apply(input, monitor);
+  }
+
+  /**
+   * Compute a rectangular region of the output of this Transform as packed pixels.
+   *
+   * @param input the given Image
+   * @param x     the left edge of the region
+   * @param y     the top edge of the region
+   * @param w     the width of the region
+   * @param h     the height of the region
+   * @param dst   an array of at least w * h pixels to write the region into
    */
   @Override
-  public Image apply(Image input) {
+  protected void computeRegion(Image input, int x, int y, int w, int h, int[] dst) {
+    input.getPackedRegion(x, y, w, h, dst);
+    this.transformPixels(dst, 0, w * h);
+  }
+
+  /**
+   * Transform packed pixels in place, clamping the results just as applying this Transform to an
+   * Image does.
+   *
+   * @param pixels packed 0xRRGGBB pixels
+   * @param from   the index of the first pixel to transform
+   * @param to     the index after the last pixel to transform
+   */
+  void transformPixels(int[] pixels, int from, int to) {
+    if (this.table != null) {
+      int[] table = this.table;
+      for (int i = from; i < to; ++i) {
+        int red = PackedRGBArray.unpack(pixels[i], 0);
+        int green = PackedRGBArray.unpack(pixels[i], 1);
+        int blue = PackedRGBArray.unpack(pixels[i], 2);
+        pixels[i] = PackedRGBArray.pack(lookup(table, 0, red, green, blue),
+                lookup(table, 1, red, green, blue), lookup(table, 2, red, green, blue));
+      }
+      return;
+    }
+    double[] toRed = this.matrix[0];
+    double[] toGreen = this.matrix[1];
+    double[] toBlue = this.matrix[2];
+    for (int i = from; i < to; ++i) {
+      int red = PackedRGBArray.unpack(pixels[i], 0);
+      int green = PackedRGBArray.unpack(pixels[i], 1);
+      int blue = PackedRGBArray.unpack(pixels[i], 2);
+      pixels[i] = PackedRGBArray.pack(transform(toRed, red, green, blue),
+              transform(toGreen, red, green, blue), transform(toBlue, red, green, blue));
+    }
+  }
+
+  /**
+   * Apply this Transform to a planar Image by streaming over its channel planes together,
+   * producing a planar Image. Gives the same values as the general path.
+   *
+   * @param input   the given planar Image
+   * @param monitor receives progress after each row and says when to stop
+   * @return a new planar Image after applying this Transform
+   */
+  private Image applyPlanar(PlanarRGBArray input, ProgressMonitor monitor) {
     int w = input.getWidth();
     int h = input.getHeight();
-    int[][][] output = new int[h][w][NUM_CHANNELS];
+    byte[][] output = new byte[NUM_CHANNELS][w * h];
+    double[] toRed = this.matrix[0];
+    double[] toGreen = this.matrix[1];
+    double[] toBlue = this.matrix[2];
+    int[] table = this.table;
+    byte[] reds = input.planes[0];
+    byte[] greens = input.planes[1];
+    byte[] blues = input.planes[2];
     for (int y = 0; y < h; ++y) {
-      for (int x = 0; x < w; ++x) {
-        for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
-          int new_val = 0;
-          for (int oldChannel = 0; oldChannel < NUM_CHANNELS; ++oldChannel) {
-            new_val += input.getVal(x, y, oldChannel) * this.matrix[channel][oldChannel];
+      monitor.step((double) y / h);
+      for (int i = y * w; i < (y + 1) * w; ++i) {
+        int red = reds[i] & 0xFF;
+        int green = greens[i] & 0xFF;
+        int blue = blues[i] & 0xFF;
+        if (table != null) {
+          output[0][i] = (byte) PackedRGBArray.clamp(lookup(table, 0, red, green, blue));
+          output[1][i] = (byte) PackedRGBArray.clamp(lookup(table, 1, red, green, blue));
+          output[2][i] = (byte) PackedRGBArray.clamp(lookup(table, 2, red, green, blue));
+        } else {
+          output[0][i] = (byte) PackedRGBArray.clamp(transform(toRed, red, green, blue));
+          output[1][i] = (byte) PackedRGBArray.clamp(transform(toGreen, red, green, blue));
+          output[2][i] = (byte) PackedRGBArray.clamp(transform(toBlue, red, green, blue));
+        }
+      }
+    }
+    monitor.step(1);
+    return new PlanarRGBArray(w, h, output);
+  }
+
+  /**
+   * Compute one channel of a transformed pixel. Each product is added onto an int, so the value is
+   * truncated after every channel is added in, and it is not clamped.
+   *
+   * @param row   the row of the matrix for the channel
+   * @param red   the red value of the pixel
+   * @param green the green value of the pixel
+   * @param blue  the blue value of the pixel
+   * @return the new channel value
+   */
+  private static int transform(double[] row, int red, int green, int blue) {
+    int new_val = 0;
+    new_val += red * row[0];
+    new_val += green * row[1];
+    new_val += blue * row[2];
+    return new_val;
+  }
+
+  /**
+   * Compute one channel of a transformed pixel from the table, giving the same value as
+   * transform does.
+   *
+   * @param table   the table of products
+   * @param channel the channel to compute
+   * @param red     the red value of the pixel
+   * @param green   the green value of the pixel
+   * @param blue    the blue value of the pixel
+   * @return the new channel value
+   */
+  private static int lookup(int[] table, int channel, int red, int green, int blue) {
+    int offset = channel * NUM_CHANNELS * NUM_VALS;
+    int new_val = add(0, table[offset + red]);
+    new_val = add(new_val, table[offset + NUM_VALS + green]);
+    return add(new_val, table[offset + 2 * NUM_VALS + blue]);
+  }
+
+  /**
+   * Add a product from the table onto an int and truncate toward zero. A sum with a fraction lies
+   * strictly between its whole part rounded down and the next whole number, so it truncates to
+   * the first if that is at least 0 and to the second otherwise.
+   *
+   * @param val   the int to add to
+   * @param entry the table entry for the product
+   * @return the truncated sum
+   */
+  private static int add(int val, int entry) {
+    int floor = val + (entry >> 1);
+    return floor + ((floor >> 31) & entry & 1);
+  }
+
+  /**
+   * Work out every product of a matrix value and a channel value for the table.
+   *
+   * @return the table, or null if a product could round differently in the sums
+   */
+  private int[] buildTable() {
+    int[] table = new int[NUM_CHANNELS * NUM_CHANNELS * NUM_VALS];
+    for (int channel = 0; channel < NUM_CHANNELS; ++channel) {
+      double total = 0;
+      for (int oldChannel = 0; oldChannel < NUM_CHANNELS; ++oldChannel) {
+        int offset = (channel * NUM_CHANNELS + oldChannel) * NUM_VALS;
+        for (int val = 0; val < NUM_VALS; ++val) {
+          // the same double product transform adds on
+          double product = val * this.matrix[channel][oldChannel];
+          double floor = Math.floor(product);
+          double fraction = product - floor;
+          if (Double.isNaN(fraction) || fraction != 0
+                  && (fraction < SAFE_FRACTION || fraction > 1 - SAFE_FRACTION)) {
+            return null;
           }
-          output[y][x][channel] = new_val;
+          table[offset + val] = (int) floor * 2 + (fraction == 0 ? 0 : 1);
         }
+        total += NUM_VALS * Math.abs(this.matrix[channel][oldChannel]);
+      }
+      if (!(total < MAX_TABLE_SUM)) {
+        return null;
       }
     }
-    return new RGBArray(output);
+    return table;
   }
 
   /**
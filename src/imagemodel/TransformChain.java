@@ -0,0 +1,115 @@
+package imagemodel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An ImageEffect that applies several Transforms one after another in a single pass over the
+ * Image. Every pixel is put through each Transform in turn and clamped between 0 and 255 after each
+ * one, exactly as applying them one at a time clamps each intermediate Image. That clamping is why
+ * the matrices can't just be multiplied together. No intermediate Image is ever made, so a chain
+ * of N Transforms costs one pass instead of N.
+ */
+public class TransformChain extends RegionEffect {
+  /**
+   * The number of channels this effect has.
+   */
+  private static final int NUM_CHANNELS = 3;
+
+  /**
+   * The Transforms in the order they are applied.
+   */
+  private final Transform[] transforms;
+
+  /**
+   * Constructs a chain of the given Transforms.
+   *
+   * @param transforms the Transforms in the order to apply them
+   * @throws IllegalArgumentException if transforms is null or empty or holds null
+   */
+  public TransformChain(List<Transform> transforms) throws IllegalArgumentException {
+    if (transforms == null || transforms.isEmpty() || transforms.contains(null)) {
+      throw new IllegalArgumentException("transforms must be a nonempty list of Transforms");
+    }
+    this.transforms = transforms.toArray(new Transform[0]);
+  }
+
+  /**
+   * Return the Transforms in the order they are applied.
+   *
+   * @return a copy of the list of Transforms
+   */
+  public List<Transform> getTransforms() {
+    return new ArrayList<>(Arrays.asList(this.transforms));
+  }
+
+  /**
+   * Apply this chain to an Image, reporting progress to the given monitor and giving up if it is
+   * cancelled.
+   *
+   * @param input   the given Image
+   * @param monitor receives progress and says when to stop
+   * @return a new Image after applying every Transform
+   * @throws java.util.concurrent.CancellationException if the monitor is cancelled
+   */
+  @Override
+  public Image apply(Image input, ProgressMonitor monitor) {
+    if (input instanceof PlanarRGBArray) {
+      return this.applyPlanar((PlanarRGBArray) input, monitor);
+    }
+    return super.apply(input, monitor);
+  }
+
+  /**
+   * Compute a rectangular region of the output of this chain as packed pixels.
+   *
+   * @param input the given Image
+   * @param x     the left edge of the region
+   * @param y     the top edge of the region
+   * @param w     the width of the region
+   * @param h     the height of the region
+   * @param dst   an array of at least w * h pixels to write the region into
+   */
+  @Override
+  protected void computeRegion(Image input, int x, int y, int w, int h, int[] dst) {
+    input.getPackedRegion(x, y, w, h, dst);
+    // each Transform goes over the whole region while it is still in cache
+    for (Transform transform : this.transforms) {
+      transform.transformPixels(dst, 0, w * h);
+    }
+  }
+
+  /**
+   * Apply this chain to a planar Image, producing a planar Image. Gives the same values as the
+   * general path.
+   *
+   * @param input   the given planar Image
+   * @param monitor receives progress after each row and says when to stop
+   * @return a new planar Image after applying every Transform
+   */
+  private Image applyPlanar(PlanarRGBArray input, ProgressMonitor monitor) {
+    int w = input.getWidth();
+    int h = input.getHeight();
+    byte[][] output = new byte[NUM_CHANNELS][w * h];
+    int[] row = new int[w];
+    for (int y = 0; y < h; ++y) {
+      monitor.step((double) y / h);
+      int from = y * w;
+      for (int i = 0; i < w; ++i) {
+        row[i] = ((input.planes[0][from + i] & 0xFF) << 16)
+                | ((input.planes[1][from + i] & 0xFF) << 8) | (input.planes[2][from + i] & 0xFF);
+      }
+      for (Transform transform : this.transforms) {
+        transform.transformPixels(row, 0, w);
+      }
+      for (int i = 0; i < w; ++i) {
+        output[0][from + i] = (byte) (row[i] >> 16);
+        output[1][from + i] = (byte) (row[i] >> 8);
+        output[2][from + i] = (byte) row[i];
+      }
+    }
+    monitor.step(1);
+    return new PlanarRGBArray(w, h, output);
+  }
+}
@@ -0,0 +1,26 @@
+package imagemodel;
+
+/**
+ * An Image whose pixels can be written while it is being produced, for example by an image decoder
+ * or an ImageEffect writing its output band by band. Whatever fills it freezes it before handing
+ * it out, and from then on it is immutable like every other Image.
+ */
+public interface WritableImage extends Image {
+  /**
+   * Overwrite whole rows of this Image with packed 0xRRGGBB pixels.
+   *
+   * @param y       the first row to write
+   * @param numRows the number of rows to write
+   * @param pixels  numRows * width packed pixels in row major order
+   * @throws IllegalArgumentException if the rows are out of bounds or pixels is too short
+   * @throws IllegalStateException    if this Image has been frozen
+   */
+  void setPackedRows(int y, int numRows, int[] pixels)
+          throws IllegalArgumentException, IllegalStateException;
+
+  /**
+   * Stop this Image from being written to again, once it has been filled. Freezing it more than
+   * once does nothing.
+   */
+  void freeze();
+}
@@ -8,10 +8,12 @@ import java.awt.Dimension;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.Hashtable;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
+import javax.swing.JDialog;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 import javax.swing.JLabel;
@@ -24,13 +26,16 @@ import javax.swing.JButton;
 import javax.swing.JSpinner;
 import javax.swing.JTextArea;
 import javax.swing.JScrollPane;
+import javax.swing.JProgressBar;
 import javax.swing.JOptionPane;
 import javax.swing.SpinnerNumberModel;
 import javax.swing.ImageIcon;
 import javax.swing.BorderFactory;
 import javax.swing.JFileChooser;
+import javax.swing.Timer;
 
 import imagecontroller.Features;
+import imagemodel.EffectTask;
 
 /**
  * A GUI view for an image editor using the Java Swing Framework. This view is constructed with a
@@ -39,10 +44,17 @@ import imagecontroller.Features;
  */
 public class ImageView extends JFrame {
   /**
-   * The Maximum and the Minimum numbers of seeds for Mosaic.
+   * The Mosaic seed slider has SEED_STEPS positions for each power of 10, up to 10^SEED_DIGITS
+   * seeds, and starts at about 2500 seeds.
    */
-  private static final int SEED_MAX = 15000;
-  private static final int SEED_INIT = 2500;
+  private static final int SEED_STEPS = 100;
+  private static final int SEED_DIGITS = 6;
+  private static final int SEED_INIT = 340;
+  /**
+   * The resolution of progress bars, and how often they are updated.
+   */
+  private static final int PROGRESS_STEPS = 1000;
+  private static final int PROGRESS_DELAY_MS = 100;
   /**
    * All Java Swing components this ImageView contains.
    */
@@ -283,34 +295,38 @@ public class ImageView extends JFrame {
   private void setMosaicSeedFrame(Features features) {
     mosaicSeedFrame =
             getUniversalFrame("Select the Number of Mosaic Seeds", 700, 200);
-    JSlider mosaicSeedSlider = new JSlider(JSlider.HORIZONTAL, 0, SEED_MAX, SEED_INIT);
+    JSlider mosaicSeedSlider =
+            new JSlider(JSlider.HORIZONTAL, 0, SEED_STEPS * SEED_DIGITS, SEED_INIT);
     mosaicSeedSlider.setPreferredSize(new Dimension(600, 100));
     Hashtable<Integer, JLabel> labelTable = new Hashtable<>();
-    labelTable.put(0, new JLabel("1"));
-    labelTable.put(2500, new JLabel("2500"));
-    labelTable.put(5000, new JLabel("5000"));
-    labelTable.put(7500, new JLabel("7500"));
-    labelTable.put(10000, new JLabel("10000"));
-    labelTable.put(12500, new JLabel("12500"));
-    labelTable.put(15000, new JLabel("15000"));
-    mosaicSeedSlider.setMajorTickSpacing(2500);
-    mosaicSeedSlider.setMinorTickSpacing(500);
+    for (int digits = 0; digits <= SEED_DIGITS; ++digits) {
+      int value = digits * SEED_STEPS;
+      labelTable.put(value, new JLabel(Integer.toString(seedsAt(value))));
+    }
+    mosaicSeedSlider.setMajorTickSpacing(SEED_STEPS);
+    mosaicSeedSlider.setMinorTickSpacing(SEED_STEPS / 10);
     mosaicSeedSlider.setPaintTicks(true);
     mosaicSeedSlider.setPaintLabels(true);
     mosaicSeedSlider.setLabelTable(labelTable);
+    JLabel mosaicSeedLabel = new JLabel(seedsAt(SEED_INIT) + " seeds");
+    mosaicSeedSlider.addChangeListener(
+            l -> mosaicSeedLabel.setText(seedsAt(mosaicSeedSlider.getValue()) + " seeds"));
+    JCheckBox mosaicFastCheckbox = new JCheckBox("Fast (approximate)?");
     JButton mosaicSeedButton = new JButton("Apply");
     mosaicSeedButton.addActionListener(l -> {
-      int seed = mosaicSeedSlider.getValue() == 0 ? 1 : mosaicSeedSlider.getValue();
+      int seed = seedsAt(mosaicSeedSlider.getValue());
+      mosaicSeedFrame.setVisible(false);
       try {
-        features.mosaic(seed);
-        imgPane.setIcon(new ImageIcon(features.outputImage()));
+        showProgress("Applying Mosaic",
+                features.mosaicAsync(seed, mosaicFastCheckbox.isSelected()), features);
       } catch (IllegalStateException e) {
         JOptionPane.showMessageDialog(this, e.getMessage(),
                 "Illegal State error", JOptionPane.ERROR_MESSAGE);
       }
-      mosaicSeedFrame.setVisible(false);
     });
     JPanel mosiacButtonPanel = new JPanel();
+    mosiacButtonPanel.add(mosaicSeedLabel);
+    mosiacButtonPanel.add(mosaicFastCheckbox);
     mosiacButtonPanel.add(mosaicSeedButton);
     mosiacButtonPanel.setLayout(new GridLayout());
     mosiacButtonPanel.setBorder(
@@ -323,6 +339,17 @@ public class ImageView extends JFrame {
     mosaicSeedFrame.add(mosiacPanel);
   }
 
+  /**
+   * Return the number of Mosaic seeds at a position of the seed slider, which goes up by a factor
+   * of 10 every SEED_STEPS positions.
+   *
+   * @param value the position of the slider
+   * @return the number of seeds, at least 1
+   */
+  private static int seedsAt(int value) {
+    return (int) Math.round(Math.pow(10, (double) value / SEED_STEPS));
+  }
+
   /**
    * A private wrapper method to setup the Checkerboard Frame.
    *
@@ -400,6 +427,57 @@ public class ImageView extends JFrame {
     rainbowFrame.add(rainbowPanel, BorderLayout.CENTER);
   }
 
+  /**
+   * Shows a dialog with the progress of an effect running in the background and a button to cancel
+   * it. The dialog is updated by a timer on the event dispatch thread, and the image is refreshed
+   * once the effect finishes.
+   *
+   * @param title    the title of the dialog
+   * @param task     the effect running in the background
+   * @param features the features from ImageView controller
+   */
+  private void showProgress(String title, EffectTask task, Features features) {
+    JDialog progressDialog = new JDialog(this, title, false);
+    progressDialog.setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+    JProgressBar progressBar = new JProgressBar(0, PROGRESS_STEPS);
+    progressBar.setStringPainted(true);
+    progressBar.setPreferredSize(new Dimension(400, 30));
+    JButton cancelButton = new JButton("Cancel");
+    cancelButton.addActionListener(l -> task.cancel(false));
+    JPanel progressPanel = new JPanel();
+    progressPanel.setLayout(new GridLayout(2, 1));
+    progressPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+    progressPanel.add(progressBar);
+    progressPanel.add(cancelButton);
+    progressDialog.add(progressPanel);
+    progressDialog.pack();
+    progressDialog.setLocationRelativeTo(this);
+
+    Timer timer = new Timer(PROGRESS_DELAY_MS, null);
+    timer.addActionListener(l -> {
+      progressBar.setValue((int) (task.getProgress() * PROGRESS_STEPS));
+      if (!task.isDone()) {
+        return;
+      }
+      timer.stop();
+      progressDialog.dispose();
+      if (task.isCancelled()) {
+        return;
+      }
+      try {
+        task.get();
+        imgPane.setIcon(new ImageIcon(features.outputImage()));
+      } catch (ExecutionException e) {
+        JOptionPane.showMessageDialog(this, e.getCause().getMessage(),
+                "Effect error", JOptionPane.ERROR_MESSAGE);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    timer.start();
+    progressDialog.setVisible(true);
+  }
+
   /**
    * Get a general-purpose JFrame with flow layout.
    *
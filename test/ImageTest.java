@@ -5,20 +5,52 @@ import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
 
 import imagecontroller.ControllerImpl;
 import imagecontroller.Features;
 import imagecontroller.ImageController;
 import imagecontroller.FileIOHandler;
 import imagecontroller.IOHandler;
+import imagemodel.BayerDither;
+import imagemodel.BlueNoiseDither;
+import imagemodel.Blur;
+import imagemodel.BoundedHistory;
+import imagemodel.CheckerBoard;
+import imagemodel.DeltaHistory;
+import imagemodel.Dither;
+import imagemodel.EffectTask;
+import imagemodel.Filter;
+import imagemodel.FusedFilter;
+import imagemodel.GaussianBlur;
+import imagemodel.Greyscale;
 import imagemodel.Image;
 import imagemodel.ImageEffect;
 import imagemodel.ImageModel;
+import imagemodel.MappedRGBArray;
 import imagemodel.ModelFacade;
+import imagemodel.Mosaic;
+import imagemodel.OrderedDither;
+import imagemodel.PackedRGBArray;
+import imagemodel.PlanarRGBArray;
+import imagemodel.ProgressMonitor;
 import imagemodel.RGBArray;
+import imagemodel.Rainbow;
+import imagemodel.ReferenceHistory;
+import imagemodel.ReplayHistory;
+import imagemodel.Sepia;
+import imagemodel.Sharpen;
+import imagemodel.TiledImage;
+import imagemodel.Transform;
+import imagemodel.TransformChain;
 
 import static java.lang.Math.abs;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -63,12 +95,24 @@ public class ImageTest {
       log.append("applyEffect\n");
     }
 
+    @Override
+    public EffectTask applyEffectAsync() {
+      log.append("applyEffectAsync\n");
+      return null;
+    }
+
     @Override
     public int[][][] outputImage() {
       log.append("outputImage\n");
       return output;
     }
 
+    @Override
+    public Image getImage() {
+      log.append("getImage\n");
+      return new RGBArray(output);
+    }
+
     @Override
     public int getWidth() {
       log.append("getWidth\n");
@@ -157,7 +201,7 @@ public class ImageTest {
       fail("shouldn't throw exception");
     }
 
-    assertEquals("loadImage imagemodel.RGBArray\n", mockLog.toString());
+    assertEquals("loadImage imagemodel.PackedRGBArray\n", mockLog.toString());
   }
 
   @Test
@@ -179,7 +223,7 @@ public class ImageTest {
     } catch (IOException e) {
       fail("should not throw exception");
     }
-    assertEquals("outputImage\ngetWidth\ngetHeight\n", mockLog.toString());
+    assertEquals("getImage\n", mockLog.toString());
   }
 
   @Test
@@ -212,12 +256,36 @@ public class ImageTest {
     assertEquals("loadEffect imagemodel.Dither\napplyEffect\n", mockLog.toString());
   }
 
+  @Test
+  public void bayerDither() {
+    features.bayerDither(8, 4, true);
+    assertEquals("loadEffect imagemodel.BayerDither\napplyEffect\n", mockLog.toString());
+  }
+
+  @Test
+  public void blueNoiseDither() {
+    features.blueNoiseDither(2, false);
+    assertEquals("loadEffect imagemodel.BlueNoiseDither\napplyEffect\n", mockLog.toString());
+  }
+
+  @Test
+  public void blurRadius() {
+    features.blur(25);
+    assertEquals("loadEffect imagemodel.GaussianBlur\napplyEffect\n", mockLog.toString());
+  }
+
   @Test
   public void mosaic() {
     features.mosaic(10);
     assertEquals("loadEffect imagemodel.Mosaic\napplyEffect\n", mockLog.toString());
   }
 
+  @Test
+  public void fastMosaic() {
+    features.mosaic(10, true);
+    assertEquals("loadEffect imagemodel.Mosaic\napplyEffect\n", mockLog.toString());
+  }
+
   @Test
   public void undo() {
     features.undo();
@@ -243,8 +311,8 @@ public class ImageTest {
     } catch (IOException e) {
       fail("should not throw exception");
     }
-    assertEquals("loadImage imagemodel.RGBArray\n"
-            + "outputImage\ngetWidth\ngetHeight\n", mockLog.toString());
+    assertEquals("loadImage imagemodel.PackedRGBArray\n"
+            + "getImage\n", mockLog.toString());
   }
 
   @Test
@@ -263,9 +331,9 @@ public class ImageTest {
     } catch (IOException e) {
       fail("should not throw exception");
     }
-    assertEquals("loadImage imagemodel.RGBArray\nloadEffect imagemodel.Greyscale\n"
+    assertEquals("loadImage imagemodel.PackedRGBArray\nloadEffect imagemodel.Greyscale\n"
             + "applyEffect\nloadEffect imagemodel.Mosaic\n"
-            + "applyEffect\noutputImage\ngetWidth\ngetHeight\n", mockLog.toString());
+            + "applyEffect\ngetImage\n", mockLog.toString());
   }
 
   @Test
@@ -281,8 +349,22 @@ public class ImageTest {
       fail("should not throw exception");
     }
     assertEquals("loadImage imagemodel.Rainbow\nloadEffect imagemodel.Greyscale\n"
-            + "applyEffect\nloadEffect imagemodel.Mosaic\napplyEffect\noutputImage\n"
-            + "getWidth\ngetHeight\n", mockLog.toString());
+            + "applyEffect\nloadEffect imagemodel.Mosaic\napplyEffect\ngetImage\n",
+            mockLog.toString());
+  }
+
+  @Test
+  public void scriptChainsColorTransforms() {
+    try {
+      features.executeScript(new StringReader("load rainbow 10 10 true\ngreyscale\nsepia\n"
+              + "save test_save.png\nsepia\nblur\ngreyscale\nsharpen\ndither\nsepia\n"));
+    } catch (IOException e) {
+      fail("should not throw exception");
+    }
+    assertEquals("loadImage imagemodel.Rainbow\nloadEffect imagemodel.TransformChain\n"
+            + "applyEffect\ngetImage\nloadEffect imagemodel.FusedFilter\napplyEffect\n"
+            + "loadEffect imagemodel.Sharpen\napplyEffect\nloadEffect imagemodel.Dither\n"
+            + "applyEffect\nloadEffect imagemodel.Sepia\napplyEffect\n", mockLog.toString());
   }
 
 
@@ -303,9 +385,1182 @@ public class ImageTest {
       }
     }
 
-    assertEquals("outputImage\ngetWidth\ngetHeight\n", mockLog.toString());
+    assertEquals("getImage\n", mockLog.toString());
+  }
+
+
+  // image representation tests
+  @Test
+  public void packedMatchesRGBArray() {
+    try {
+      Image expected = new RGBArray(imgDefaultIO.input("manhattan-small.png"));
+      Image packed = imgDefaultIO.inputImage("manhattan-small.png");
+      assertEquals(expected.getWidth(), packed.getWidth());
+      assertEquals(expected.getHeight(), packed.getHeight());
+      for (int y = 0; y < packed.getHeight(); ++y) {
+        for (int x = 0; x < packed.getWidth(); ++x) {
+          for (int channel = 0; channel < 3; ++channel) {
+            assertEquals(expected.getVal(x, y, channel), packed.getVal(x, y, channel));
+          }
+        }
+      }
+    } catch (IOException e) {
+      fail("Unexpected IOException");
+    }
+  }
+
+  @Test
+  public void planarEffectsMatchPacked() {
+    try {
+      Image packed = imgDefaultIO.inputImage("manhattan-small.png");
+      Image planar = new PlanarRGBArray(packed);
+      ImageEffect[] effects = {new Blur(), new Sharpen(), new Greyscale(), new Sepia()};
+      for (ImageEffect effect : effects) {
+        Image expected = effect.apply(packed);
+        Image actual = effect.apply(planar);
+        assertTrue(actual instanceof PlanarRGBArray);
+        for (int y = 0; y < actual.getHeight(); ++y) {
+          for (int x = 0; x < actual.getWidth(); ++x) {
+            for (int channel = 0; channel < 3; ++channel) {
+              assertEquals(expected.getVal(x, y, channel), actual.getVal(x, y, channel));
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      fail("Unexpected IOException");
+    }
+  }
+
+  @Test
+  public void separableFilterMatchesDirectSum() {
+    try {
+      Image input = new PlanarRGBArray(imgDefaultIO.inputImage("manhattan-small.png"));
+      double[] binomial = {1, 4, 6, 4, 1};
+      double[][] kernel = new double[5][5];
+      for (int i = 0; i < 5; ++i) {
+        for (int j = 0; j < 5; ++j) {
+          kernel[i][j] = binomial[i] * binomial[j] / 256;
+        }
+      }
+      Filter filter = new Filter(kernel);
+      // changing the array afterwards must not change the filter
+      kernel[2][2] = 0;
+      Image actual = filter.apply(input);
+      for (int y = 0; y < input.getHeight(); ++y) {
+        for (int x = 0; x < input.getWidth(); ++x) {
+          for (int channel = 0; channel < 3; ++channel) {
+            double sum = 0;
+            for (int i = 0; i < 5; ++i) {
+              for (int j = 0; j < 5; ++j) {
+                if (input.isValidLocation(x + j - 2, y + i - 2)) {
+                  sum += input.getVal(x + j - 2, y + i - 2, channel)
+                          * binomial[i] * binomial[j] / 256;
+                }
+              }
+            }
+            int expected = Math.max(0, Math.min(255, (int) sum));
+            assertEquals(expected, actual.getVal(x, y, channel));
+          }
+        }
+      }
+    } catch (IOException e) {
+      fail("Unexpected IOException");
+    }
+  }
+
+  @Test
+  public void fourierFilterMatchesDirectSum() {
+    Random random = new Random(14);
+    int size = 21;
+    double[][] uniform = new double[size][size];
+    double[][] noise = new double[size][size];
+    for (int i = 0; i < size; ++i) {
+      for (int j = 0; j < size; ++j) {
+        uniform[i][j] = 1.0 / (size * size);
+        noise[i][j] = random.nextDouble() / 100 - 0.002;
+      }
+    }
+    int[] pixels = new int[150 * 90];
+    for (int i = 0; i < pixels.length; ++i) {
+      pixels[i] = random.nextInt(1 << 24);
+    }
+    // flat areas make many sums land on whole numbers, where truncation is most sensitive
+    Image[] inputs = {new CheckerBoard(12), new PackedRGBArray(150, 90, pixels)};
+    for (double[][] kernel : new double[][][]{uniform, noise}) {
+      Filter filter = new Filter(kernel);
+      for (Image input : inputs) {
+        int[][][] data = input.getDataClone();
+        Image[] outputs = {filter.apply(input), filter.apply(new PlanarRGBArray(input)),
+            filter.apply(new TiledImage(input, 32, 1 << 20))};
+        for (int y = 0; y < data.length; ++y) {
+          for (int x = 0; x < data[0].length; ++x) {
+            for (int channel = 0; channel < 3; ++channel) {
+              double sum = 0;
+              for (int i = Math.max(0, size / 2 - y); i < size; ++i) {
+                for (int j = Math.max(0, size / 2 - x); j < size; ++j) {
+                  if (y + i - size / 2 < data.length && x + j - size / 2 < data[0].length) {
+                    sum += data[y + i - size / 2][x + j - size / 2][channel] * kernel[i][j];
+                  }
+                }
+              }
+              int expected = Math.max(0, Math.min(255, (int) sum));
+              for (Image actual : outputs) {
+                assertEquals(expected, actual.getVal(x, y, channel));
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void gaussianBlurMatchesRepeatedBoxBlurs() {
+    try {
+      Image input = imgDefaultIO.inputImage("manhattan-small.png");
+      int radius = 4;
+      int w = input.getWidth();
+      int h = input.getHeight();
+      // three box blurs summed window by window, rounding each average half up
+      int[][][] data = input.getDataClone();
+      int[][][] values = new int[h][w][3];
+      for (int y = 0; y < h; ++y) {
+        for (int x = 0; x < w; ++x) {
+          for (int channel = 0; channel < 3; ++channel) {
+            values[y][x][channel] = data[y][x][channel] << 8;
+          }
+        }
+      }
+      for (int pass = 0; pass < 6; ++pass) {
+        int[][][] next = new int[h][w][3];
+        for (int y = 0; y < h; ++y) {
+          for (int x = 0; x < w; ++x) {
+            for (int channel = 0; channel < 3; ++channel) {
+              long sum = 0;
+              int count = 0;
+              for (int d = -radius; d <= radius; ++d) {
+                int px = pass % 2 == 0 ? x + d : x;
+                int py = pass % 2 == 0 ? y : y + d;
+                if (px >= 0 && px < w && py >= 0 && py < h) {
+                  sum += values[py][px][channel];
+                  ++count;
+                }
+              }
+              next[y][x][channel] = (int) ((sum + count / 2) / count);
+            }
+          }
+        }
+        values = next;
+      }
+      GaussianBlur blur = new GaussianBlur(radius);
+      Image[] outputs = {blur.apply(input), blur.apply(new PlanarRGBArray(input)),
+          blur.apply(new TiledImage(input, 16, 1 << 20))};
+      assertTrue(outputs[1] instanceof PlanarRGBArray);
+      for (Image actual : outputs) {
+        for (int y = 0; y < h; ++y) {
+          for (int x = 0; x < w; ++x) {
+            for (int channel = 0; channel < 3; ++channel) {
+              assertEquals(Math.round(values[y][x][channel] / 256.0),
+                      actual.getVal(x, y, channel));
+            }
+          }
+        }
+      }
+      Image unchanged = new GaussianBlur(0).apply(input);
+      assertEquals(input.getVal(10, 10, 1), unchanged.getVal(10, 10, 1));
+    } catch (IOException e) {
+      fail("Unexpected IOException");
+    }
+  }
+
+  @Test
+  public void fixedPointFilterMatchesDirectSum() {
+    Random random = new Random(16);
+    int[] pixels = new int[120 * 80];
+    for (int i = 0; i < pixels.length; ++i) {
+      pixels[i] = random.nextInt(1 << 24);
+    }
+    Image input = new PackedRGBArray(120, 80, pixels);
+    int[][][] data = input.getDataClone();
+    double[][] ninths = new double[3][3];
+    for (double[] row : ninths) {
+      Arrays.fill(row, 1.0 / 9);
+    }
+    double[][] sharpen = {
+        {-0.125, -0.125, -0.125, -0.125, -0.125},
+        {-0.125, 0.25, 0.25, 0.25, -0.125},
+        {-0.125, 0.25, 1.0, 0.25, -0.125},
+        {-0.125, 0.25, 0.25, 0.25, -0.125},
+        {-0.125, -0.125, -0.125, -0.125, -0.125}};
+    // scaled to whole numbers these kernels sum exactly in ints, but ninths would have to be
+    // rounded, so it must keep summing in doubles to give the same results
+    double[][][] kernels = {sharpen, {{0.0625, 0.125, 0.0625}, {0.125, 0.25, 0.125},
+        {0.0625, 0.125, 0.0625}}, {{0.5, -0.75, 0.25}}, ninths};
+    for (double[][] kernel : kernels) {
+      Image actual = new Filter(kernel).apply(input);
+      int halfH = kernel.length / 2;
+      int halfW = kernel[0].length / 2;
+      for (int y = 0; y < 80; ++y) {
+        for (int x = 0; x < 120; ++x) {
+          for (int channel = 0; channel < 3; ++channel) {
+            double sum = 0;
+            for (int i = 0; i < kernel.length; ++i) {
+              for (int j = 0; j < kernel[0].length; ++j) {
+                if (input.isValidLocation(x + j - halfW, y + i - halfH)) {
+                  sum += data[y + i - halfH][x + j - halfW][channel] * kernel[i][j];
+                }
+              }
+            }
+            int expected = Math.max(0, Math.min(255, (int) sum));
+            assertEquals(expected, actual.getVal(x, y, channel));
+          }
+        }
+      }
+    }
+    // kernels that can't be scaled still construct
+    new Filter(new double[][]{{Double.NaN}});
+  }
+
+  @Test
+  public void transformTablesMatchDoubleArithmetic() {
+    // every pair of red and green values, and every blue value
+    int[] pixels = new int[1 << 16];
+    for (int i = 0; i < pixels.length; ++i) {
+      pixels[i] = i << 8 | (i * 7 & 0xFF);
+    }
+    Image input = new PackedRGBArray(256, 256, pixels);
+    double[][][] matrices = {
+        {{0.2126, 0.7152, 0.0722}, {0.2126, 0.7152, 0.0722}, {0.2126, 0.7152, 0.0722}},
+        {{0.393, 0.769, 0.189}, {0.349, 0.686, 0.168}, {0.272, 0.534, 0.131}},
+        {{-0.35, 1.2, 0.15}, {0.5, -1.75, 2.25}, {1, 0, -0.01}},
+        // products like 0.1 * 30 land just off whole numbers, so no tables for this one
+        {{0.1, 0.2, 0.7}, {1.0 / 3, 1.0 / 3, 1.0 / 3}, {0.3, -0.6, 1.3}}};
+    for (double[][] matrix : matrices) {
+      Image packed = new Transform(matrix).apply(input);
+      Image planar = new Transform(matrix).apply(new PlanarRGBArray(input));
+      for (int y = 0; y < 256; ++y) {
+        for (int x = 0; x < 256; ++x) {
+          for (int channel = 0; channel < 3; ++channel) {
+            int expected = 0;
+            for (int oldChannel = 0; oldChannel < 3; ++oldChannel) {
+              expected += input.getVal(x, y, oldChannel) * matrix[channel][oldChannel];
+            }
+            expected = Math.max(0, Math.min(255, expected));
+            assertEquals(expected, packed.getVal(x, y, channel));
+            assertEquals(expected, planar.getVal(x, y, channel));
+          }
+        }
+      }
+    }
   }
 
+  @Test
+  public void transformChainMatchesTransformsInTurn() {
+    Image input = new Rainbow(40, 30, true);
+    List<Transform> transforms = Arrays.asList(new Sepia(), new Sepia(),
+            new Transform(new double[][]{{1.5, -0.3, 0.1}, {0.1, 0.2, 0.7}, {0, 0, 2}}),
+            new Greyscale());
+    Image expected = input;
+    for (Transform transform : transforms) {
+      expected = transform.apply(expected);
+    }
+    ImageEffect chain = new TransformChain(transforms);
+    Image[] actuals = {chain.apply(input), chain.apply(new PlanarRGBArray(input))};
+    assertTrue(actuals[1] instanceof PlanarRGBArray);
+    for (Image actual : actuals) {
+      for (int y = 0; y < input.getHeight(); ++y) {
+        for (int x = 0; x < input.getWidth(); ++x) {
+          for (int channel = 0; channel < 3; ++channel) {
+            assertEquals(expected.getVal(x, y, channel), actual.getVal(x, y, channel));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void scriptComposesFiltersWhenUnclamped() {
+    try {
+      features.executeScript(new StringReader("load rainbow 10 10 true\nblur\nblur\n"
+              + "unclamped on\nblur\nsharpen\nunclamped off\nsharpen\nsharpen\n"));
+    } catch (IOException e) {
+      fail("should not throw exception");
+    }
+    assertEquals("loadImage imagemodel.Rainbow\nloadEffect imagemodel.Blur\napplyEffect\n"
+            + "loadEffect imagemodel.Blur\napplyEffect\nloadEffect imagemodel.Filter\n"
+            + "applyEffect\nloadEffect imagemodel.Sharpen\napplyEffect\n"
+            + "loadEffect imagemodel.Sharpen\napplyEffect\n", mockLog.toString());
+  }
+
+  @Test
+  public void composedFilters() {
+    int[] pixels = new int[120 * 90];
+    Random random = new Random(3);
+    for (int i = 0; i < pixels.length; ++i) {
+      pixels[i] = random.nextInt(1 << 24);
+    }
+    Image input = new PackedRGBArray(120, 90, pixels);
+    Filter identity = new Filter(new double[][]{{0, 0, 0}, {0, 1, 0}, {0, 0, 0}});
+    Filter shift = new Filter(new double[][]{{0, 0, 1}});
+    Filter[][] exact = {{identity, new Sharpen()}, {new Sharpen(), identity},
+        {new Filter(new double[][]{{0}}), new Blur()}, {shift, new Filter(new double[][]{{2.5}})}};
+    for (Filter[] pair : exact) {
+      assertTrue(Filter.composesExactly(pair[0], pair[1]));
+      Image expected = pair[1].apply(pair[0].apply(input));
+      Image actual = Filter.compose(pair[0], pair[1]).apply(input);
+      for (int y = 0; y < input.getHeight(); ++y) {
+        for (int x = 0; x < input.getWidth(); ++x) {
+          for (int channel = 0; channel < 3; ++channel) {
+            assertEquals(expected.getVal(x, y, channel), actual.getVal(x, y, channel));
+          }
+        }
+      }
+    }
+    assertTrue(!Filter.composesExactly(new Blur(), new Blur()));
+    assertTrue(!Filter.composesExactly(shift, new Blur()));
+    assertTrue(!Filter.composesExactly(identity, new Filter(new double[][]{{Double.NaN}})));
+
+    // away from the edges two blurs differ from one composed blur only by the truncation between
+    Image twice = new Blur().apply(new Blur().apply(input));
+    Image composed = Filter.compose(new Blur(), new Blur()).apply(input);
+    for (int y = 2; y < input.getHeight() - 2; ++y) {
+      for (int x = 2; x < input.getWidth() - 2; ++x) {
+        for (int channel = 0; channel < 3; ++channel) {
+          assertTrue(abs(twice.getVal(x, y, channel) - composed.getVal(x, y, channel)) <= 1);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void fusedFilterMatchesEffectsInTurn() {
+    int[] pixels = new int[300 * 200];
+    Random random = new Random(7);
+    for (int i = 0; i < pixels.length; ++i) {
+      pixels[i] = random.nextInt(1 << 24);
+    }
+    Image input = new PackedRGBArray(300, 200, pixels);
+    Filter[] filters = {new Blur(), new Sharpen(), new Filter(new double[][]{{0.1, 0.2, 0.3}})};
+    for (Filter filter : filters) {
+      List<Transform> before = Arrays.asList(new Greyscale(), new Sepia());
+      List<Transform> after = Arrays.<Transform>asList(new Sepia());
+      Image expected = input;
+      for (ImageEffect effect : new ImageEffect[]{new Greyscale(), new Sepia(), filter,
+          new Sepia()}) {
+        expected = effect.apply(expected);
+      }
+      ImageEffect fused = new FusedFilter(before, filter, after);
+      Image[] actuals = {fused.apply(input), fused.apply(new PlanarRGBArray(input))};
+      assertTrue(actuals[1] instanceof PlanarRGBArray);
+      for (int y = 0; y < input.getHeight(); ++y) {
+        for (int x = 0; x < input.getWidth(); ++x) {
+          for (int channel = 0; channel < 3; ++channel) {
+            assertEquals(expected.getVal(x, y, channel), actuals[0].getVal(x, y, channel));
+            assertEquals(expected.getVal(x, y, channel), actuals[1].getVal(x, y, channel));
+          }
+        }
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void emptyTransformChain() {
+    new TransformChain(new ArrayList<>());
+  }
+
+  @Test
+  public void mappedEffectsMatchPacked() {
+    try {
+      Image packed = imgDefaultIO.inputImage("manhattan-small.png");
+      Image mapped = new FileIOHandler(IMG_DIR, true).inputImage("manhattan-small.png");
+      assertTrue(mapped instanceof MappedRGBArray);
+      ImageEffect[] effects = {new Blur(), new Sepia(), new Dither(1)};
+      for (ImageEffect effect : effects) {
+        Image expected = effect.apply(packed);
+        Image actual = effect.apply(mapped);
+        assertTrue(actual instanceof MappedRGBArray);
+        for (int y = 0; y < actual.getHeight(); ++y) {
+          for (int x = 0; x < actual.getWidth(); ++x) {
+            for (int channel = 0; channel < 3; ++channel) {
+              assertEquals(expected.getVal(x, y, channel), actual.getVal(x, y, channel));
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      fail("Unexpected IOException");
+    }
+  }
+
+  @Test
+  public void mappedImagesAreFrozenOnceHandedOut() {
+    Image board = new CheckerBoard(2);
+    int[] row = new int[board.getWidth()];
+    MappedRGBArray filling = new MappedRGBArray(board.getWidth(), board.getHeight());
+    filling.setPackedRows(0, 1, row);
+    new ModelFacade().loadImage(filling);
+    MappedRGBArray[] handedOut = {filling, new MappedRGBArray(board),
+                                  (MappedRGBArray) new Sepia().apply(new MappedRGBArray(board)),
+                                  (MappedRGBArray) new Dither(1).apply(new MappedRGBArray(board))};
+    for (MappedRGBArray image : handedOut) {
+      try {
+        image.setPackedRows(0, 1, row);
+        fail("a frozen image should not be writable");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void tiledEffectsMatchPacked() {
+    try {
+      Image packed = imgDefaultIO.inputImage("manhattan-small.png");
+      // small tiles and a tiny cache force tiles to be spilled and reloaded
+      Image tiled = new TiledImage(packed, 16, 4096);
+      Image expected = new Sharpen().apply(new Blur().apply(packed));
+      Image actual = new Sharpen().apply(new Blur().apply(tiled));
+      assertTrue(actual instanceof TiledImage);
+      for (int pass = 0; pass < 2; ++pass) {
+        for (int y = 0; y < actual.getHeight(); ++y) {
+          for (int x = 0; x < actual.getWidth(); ++x) {
+            for (int channel = 0; channel < 3; ++channel) {
+              assertEquals(expected.getVal(x, y, channel), actual.getVal(x, y, channel));
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      fail("Unexpected IOException");
+    }
+  }
+
+  @Test
+  public void tiledLoadsStayTiled() {
+    try {
+      Image packed = imgDefaultIO.inputImage("manhattan-small.png");
+      Image tiled = new FileIOHandler(IMG_DIR, false, true).inputImage("manhattan-small.png");
+      assertTrue(tiled instanceof TiledImage);
+      Image expected = new Sepia().apply(new Blur().apply(packed));
+      Image actual = new Sepia().apply(new Blur().apply(tiled));
+      assertTrue(actual instanceof TiledImage);
+      for (int y = 0; y < actual.getHeight(); ++y) {
+        for (int x = 0; x < actual.getWidth(); ++x) {
+          for (int channel = 0; channel < 3; ++channel) {
+            assertEquals(expected.getVal(x, y, channel), actual.getVal(x, y, channel));
+          }
+        }
+      }
+    } catch (IOException e) {
+      fail("Unexpected IOException");
+    }
+  }
+
+  @Test
+  public void ioHandlerDefaultsUseArrays() throws IOException {
+    Image board = new CheckerBoard(2);
+    int[][][][] written = new int[1][][][];
+    // a handler written before Images could be read and written directly
+    IOHandler arrays = new IOHandler() {
+      @Override
+      public int[][][] input(String name) {
+        return board.getDataClone();
+      }
+
+      @Override
+      public void output(int[][][] imgData, int width, int height, String name) {
+        written[0] = imgData;
+      }
+    };
+    Image loaded = arrays.inputImage("board");
+    arrays.output(loaded, "board");
+    for (int y = 0; y < board.getHeight(); ++y) {
+      for (int x = 0; x < board.getWidth(); ++x) {
+        for (int channel = 0; channel < 3; ++channel) {
+          assertEquals(board.getVal(x, y, channel), loaded.getVal(x, y, channel));
+          assertEquals(board.getVal(x, y, channel), written[0][y][x][channel]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void regionsMatchGetVal() {
+    try {
+      Image packed = imgDefaultIO.inputImage("manhattan-small.png");
+      Image[] images = {packed, new RGBArray(packed.getDataClone()), new PlanarRGBArray(packed),
+                        new MappedRGBArray(packed), new TiledImage(packed, 16, 4096)};
+      // a rectangle that straddles several tiles and does not start at the origin
+      int x = 5;
+      int y = 7;
+      int w = 40;
+      int h = 33;
+      int[] pixels = new int[w * h];
+      int[] values = new int[w * h];
+      for (Image image : images) {
+        image.getPackedRegion(x, y, w, h, pixels);
+        for (int channel = 0; channel < 3; ++channel) {
+          image.getChannelRegion(x, y, w, h, channel, values);
+          for (int row = 0; row < h; ++row) {
+            for (int col = 0; col < w; ++col) {
+              int expected = packed.getVal(x + col, y + row, channel);
+              assertEquals(expected, PackedRGBArray.unpack(pixels[row * w + col], channel));
+              assertEquals(expected, values[row * w + col]);
+              assertEquals(expected, image.getValUnchecked(x + col, y + row, channel));
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      fail("Unexpected IOException");
+    }
+  }
+
+  @Test
+  public void tiledChannelRegionsMatchGetVal() {
+    int w = 50;
+    int h = 37;
+    int[] pixels = new int[w * h];
+    Random random = new Random(5);
+    for (int i = 0; i < pixels.length; ++i) {
+      pixels[i] = random.nextInt(1 << 24);
+    }
+    // tiles that don't divide the image, and a cache too small to hold them all
+    TiledImage tiled = new TiledImage(new PackedRGBArray(w, h, pixels), 7, 1024);
+    int[][] rectangles = {{0, 0, w, h}, {3, 5, 20, 11}, {43, 30, 7, 7}, {13, 0, 1, h}};
+    for (int[] rect : rectangles) {
+      int[] values = new int[rect[2] * rect[3]];
+      for (int channel = 0; channel < 3; ++channel) {
+        tiled.getChannelRegion(rect[0], rect[1], rect[2], rect[3], channel, values);
+        for (int row = 0; row < rect[3]; ++row) {
+          for (int col = 0; col < rect[2]; ++col) {
+            assertEquals(tiled.getVal(rect[0] + col, rect[1] + row, channel),
+                    values[row * rect[2] + col]);
+          }
+        }
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void regionOutOfBounds() {
+    new PackedRGBArray(new int[][][]{{{1, 2, 3}}}).getPackedRegion(0, 0, 2, 1, new int[2]);
+  }
+
+  @Test
+  public void historyKeepsImagesByReference() {
+    ImageModel model = new ModelFacade();
+    Image first = new PackedRGBArray(new int[][][]{{{1, 2, 3}}});
+    model.loadImage(first);
+    model.loadEffect(new Greyscale());
+    model.applyEffect();
+    Image second = model.getImage();
+    assertTrue(model.undo());
+    assertSame(first, model.getImage());
+    assertTrue(model.redo());
+    assertSame(second, model.getImage());
+  }
+
+  @Test
+  public void deltaHistoryMatchesReferenceHistory() {
+    try {
+      Image packed = imgDefaultIO.inputImage("manhattan-small.png");
+      DeltaHistory deltas = new DeltaHistory();
+      ImageModel[] models = {new ModelFacade(new ReferenceHistory()), new ModelFacade(deltas)};
+      for (ImageModel model : models) {
+        model.loadImage(packed);
+        model.loadEffect(new Greyscale());
+        model.applyEffect();
+        // reloading the same image changes nothing
+        model.loadImage(model.getImage());
+        // a keyframe, since the dimensions change
+        model.loadImage(new CheckerBoard(3));
+        model.undo();
+        model.undo();
+        model.redo();
+        model.undo();
+        model.undo();
+      }
+      for (int pass = 0; pass < 4; ++pass) {
+        assertEquals(models[0].getWidth(), models[1].getWidth());
+        assertEquals(models[0].getHeight(), models[1].getHeight());
+        for (int y = 0; y < models[0].getHeight(); ++y) {
+          for (int x = 0; x < models[0].getWidth(); ++x) {
+            for (int channel = 0; channel < 3; ++channel) {
+              assertEquals(models[0].getImage().getVal(x, y, channel),
+                      models[1].getImage().getVal(x, y, channel));
+            }
+          }
+        }
+        for (ImageModel model : models) {
+          model.redo();
+        }
+      }
+      // the step that changed nothing has a tiny difference
+      List<Long> footprints = deltas.getStepFootprints();
+      assertEquals(3, footprints.size());
+      assertTrue(footprints.get(1) * 10 < footprints.get(0));
+    } catch (IOException e) {
+      fail("Unexpected IOException");
+    }
+  }
+
+  @Test
+  public void boundedHistorySpillsAndDrops() {
+    try {
+      Image packed = imgDefaultIO.inputImage("manhattan-small.png");
+      long imageBytes = (long) packed.getWidth() * packed.getHeight() * 4;
+      // room for a little more than one packed image in memory
+      BoundedHistory spilling = new BoundedHistory(imageBytes + 1,
+              BoundedHistory.Overflow.SPILL);
+      BoundedHistory dropping = new BoundedHistory(imageBytes + 1,
+              BoundedHistory.Overflow.DROP);
+      ImageModel[] models = {new ModelFacade(new ReferenceHistory()), new ModelFacade(spilling),
+                             new ModelFacade(dropping)};
+      for (ImageModel model : models) {
+        model.loadImage(packed);
+        model.loadEffect(new Blur());
+        model.applyEffect();
+        model.loadEffect(new Sepia());
+        model.applyEffect();
+        model.applyEffect();
+      }
+      assertTrue(spilling.getSpilledBytes() > 0);
+      assertTrue(spilling.getFootprint() <= imageBytes + 1);
+      assertEquals(3, spilling.getStepFootprints().size());
+      assertEquals(1, dropping.getStepFootprints().size());
+      assertEquals(imageBytes, (long) dropping.getStepFootprints().get(0));
+
+      // everything can be undone from the spill file, and redone again
+      for (int step = 0; step < 3; ++step) {
+        assertTrue(models[0].undo());
+        assertTrue(models[1].undo());
+        assertEquals(step == 0, models[2].undo());
+        for (int y = 0; y < packed.getHeight(); ++y) {
+          for (int x = 0; x < packed.getWidth(); ++x) {
+            for (int channel = 0; channel < 3; ++channel) {
+              assertEquals(models[0].getImage().getVal(x, y, channel),
+                      models[1].getImage().getVal(x, y, channel));
+            }
+          }
+        }
+      }
+      assertTrue(models[1].redo());
+      assertTrue(models[1].redo());
+      assertTrue(models[1].redo());
+      assertTrue(!models[1].redo());
+      // undoing then loading a new image drops every spilled step
+      models[1].undo();
+      models[1].undo();
+      models[1].undo();
+      models[1].loadImage(packed);
+      assertEquals(0, spilling.getSpilledBytes());
+    } catch (IOException e) {
+      fail("Unexpected IOException");
+    }
+  }
+
+  @Test
+  public void boundedHistoryReusesSpillSpace() {
+    Image image = new CheckerBoard(8);
+    long imageBytes = (long) image.getWidth() * image.getHeight() * 4;
+    BoundedHistory spilling = new BoundedHistory(imageBytes + 1, BoundedHistory.Overflow.SPILL);
+    ImageModel model = new ModelFacade(spilling);
+    model.loadImage(image);
+    model.loadEffect(new Sepia());
+    for (int step = 0; step < 4; ++step) {
+      model.applyEffect();
+    }
+    // every step is spilled again and again, but only ever takes up the space of one image each
+    long bound = 4L * image.getWidth() * image.getHeight() * 3;
+    for (int cycle = 0; cycle < 20; ++cycle) {
+      for (int step = 0; step < 4; ++step) {
+        assertTrue(model.undo());
+      }
+      for (int step = 0; step < 4; ++step) {
+        assertTrue(model.redo());
+      }
+      assertTrue(spilling.getSpilledBytes() <= bound);
+    }
+    // applying an effect after undoing forgets the steps that could be redone, and their space
+    model.undo();
+    model.undo();
+    model.applyEffect();
+    assertTrue(spilling.getSpilledBytes() <= bound);
+  }
+
+  @Test
+  public void boundedHistoryKeepsOffHeapStepsOffHeap() {
+    MappedRGBArray loaded = new MappedRGBArray(new CheckerBoard(8));
+    BoundedHistory spilling = new BoundedHistory(1, BoundedHistory.Overflow.SPILL);
+    ImageModel model = new ModelFacade(spilling);
+    model.loadImage(loaded);
+    model.loadEffect(new Dither(1));
+    model.applyEffect();
+    Image dithered = model.getImage();
+    assertTrue(dithered instanceof MappedRGBArray);
+    model.applyEffect();
+    // off-heap steps take no heap, so they stay where they are instead of being spilled
+    assertEquals(0, spilling.getFootprint());
+    assertEquals(0, spilling.getSpilledBytes());
+    assertTrue(model.undo());
+    assertSame(dithered, model.getImage());
+    assertTrue(model.undo());
+    assertSame(loaded, model.getImage());
+    assertEquals(0, spilling.getSpilledBytes());
+  }
+
+  @Test
+  public void replayHistoryMatchesReferenceHistory() {
+    try {
+      Image packed = imgDefaultIO.inputImage("manhattan-small.png");
+      ReplayHistory replay = new ReplayHistory(3);
+      ImageModel[] models = {new ModelFacade(new ReferenceHistory()), new ModelFacade(replay)};
+      ImageEffect[] effects = {new Blur(), new Mosaic(50), new Sharpen(), new Sepia(),
+                               new Greyscale(), new Dither()};
+      for (ImageModel model : models) {
+        model.loadImage(packed);
+        for (ImageEffect effect : effects) {
+          model.loadEffect(effect);
+          model.applyEffect();
+        }
+      }
+      // only every third state is kept, counting the loaded image
+      long checkpoints = 0;
+      for (long bytes : replay.getStepFootprints()) {
+        checkpoints += bytes > 0 ? 1 : 0;
+      }
+      assertEquals(2, checkpoints);
+      for (int pass = 0; pass < 2; ++pass) {
+        for (int step = 0; step < effects.length; ++step) {
+          for (ImageModel model : models) {
+            assertTrue(pass == 0 ? model.undo() : model.redo());
+          }
+          for (int y = 0; y < packed.getHeight(); ++y) {
+            for (int x = 0; x < packed.getWidth(); ++x) {
+              for (int channel = 0; channel < 3; ++channel) {
+                assertEquals(models[0].getImage().getVal(x, y, channel),
+                        models[1].getImage().getVal(x, y, channel));
+              }
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      fail("Unexpected IOException");
+    }
+  }
+
+  @Test
+  public void replayHistoryKeepsPositionWhenReplayFails() {
+    boolean[] failing = {false};
+    ImageEffect effect = new ImageEffect() {
+      @Override
+      public Image apply(Image input) {
+        if (failing[0]) {
+          throw new IllegalStateException("replay failed");
+        }
+        return new Sepia().apply(input);
+      }
+
+      @Override
+      public boolean isDeterministic() {
+        return true;
+      }
+    };
+    Image first = new CheckerBoard(2);
+    Image second = effect.apply(first);
+    Image third = effect.apply(second);
+    ReplayHistory replay = new ReplayHistory(10);
+    replay.record(first, effect, second);
+    replay.record(second, effect, third);
+    failing[0] = true;
+    try {
+      replay.undo(third);
+      fail("the replay should have thrown");
+    } catch (IllegalStateException e) {
+      // the history should still be at the third image
+    }
+    failing[0] = false;
+    Image undone = replay.undo(third);
+    assertEquals(second.getVal(0, 0, 0), undone.getVal(0, 0, 0));
+    assertSame(first, replay.undo(undone));
+    assertEquals(null, replay.undo(first));
+    failing[0] = true;
+    try {
+      replay.redo(first);
+      fail("the replay should have thrown");
+    } catch (IllegalStateException e) {
+      // the history should still be at the first image
+    }
+    failing[0] = false;
+    assertEquals(second.getVal(0, 0, 0), replay.redo(first).getVal(0, 0, 0));
+  }
+
+  @Test
+  public void deltaHistoryKeepsStepWhenDecodingFails() {
+    boolean[] failing = {false};
+    Image first = new CheckerBoard(2);
+    int[] pixels = new int[first.getWidth() * first.getHeight()];
+    new Sepia().apply(first).getPackedRegion(0, 0, first.getWidth(), first.getHeight(), pixels);
+    Image second = new PackedRGBArray(first.getWidth(), first.getHeight(), pixels) {
+      @Override
+      public void getPackedRegion(int x, int y, int w, int h, int[] dst) {
+        if (failing[0]) {
+          throw new IllegalStateException("read failed");
+        }
+        super.getPackedRegion(x, y, w, h, dst);
+      }
+    };
+    DeltaHistory delta = new DeltaHistory();
+    delta.record(first, new Sepia(), second);
+    failing[0] = true;
+    try {
+      delta.undo(second);
+      fail("the decode should have thrown");
+    } catch (IllegalStateException e) {
+      // the step should still be there to undo
+    }
+    failing[0] = false;
+    Image undone = delta.undo(second);
+    for (int y = 0; y < first.getHeight(); ++y) {
+      for (int x = 0; x < first.getWidth(); ++x) {
+        for (int channel = 0; channel < 3; ++channel) {
+          assertEquals(first.getVal(x, y, channel), undone.getVal(x, y, channel));
+        }
+      }
+    }
+    assertEquals(null, delta.undo(undone));
+    failing[0] = true;
+    try {
+      delta.redo(second);
+      fail("the decode should have thrown");
+    } catch (IllegalStateException e) {
+      // the step should still be there to redo
+    }
+    failing[0] = false;
+    assertEquals(second.getVal(1, 0, 0), delta.redo(undone).getVal(1, 0, 0));
+  }
+
+  @Test
+  public void mosaicMatchesNearestSeedSearch() {
+    int w = 97;
+    int h = 61;
+    int[] pixels = new int[w * h];
+    Random random = new Random(4);
+    for (int i = 0; i < pixels.length; ++i) {
+      pixels[i] = random.nextInt(1 << 24);
+    }
+    Image input = new PackedRGBArray(w, h, pixels);
+    for (int numOfSeeds : new int[]{1, 7, 500, 20000}) {
+      Image actual = new Mosaic(numOfSeeds, 42).apply(input);
+      // place the seeds the same way and compare every pixel with every seed
+      List<int[]> seeds = new ArrayList<>();
+      boolean[] taken = new boolean[w * h];
+      Random rand = new Random(42);
+      for (int i = 0; i < numOfSeeds; ++i) {
+        int x = rand.nextInt(w);
+        int y = rand.nextInt(h);
+        if (!taken[y * w + x]) {
+          taken[y * w + x] = true;
+          seeds.add(new int[]{x, y});
+        }
+      }
+      int[] clusters = new int[w * h];
+      long[][] sums = new long[seeds.size()][4];
+      for (int y = 0; y < h; ++y) {
+        for (int x = 0; x < w; ++x) {
+          int best = 0;
+          for (int seed = 1; seed < seeds.size(); ++seed) {
+            int[] a = seeds.get(seed);
+            int[] b = seeds.get(best);
+            if ((x - a[0]) * (x - a[0]) + (y - a[1]) * (y - a[1])
+                    < (x - b[0]) * (x - b[0]) + (y - b[1]) * (y - b[1])) {
+              best = seed;
+            }
+          }
+          clusters[y * w + x] = best;
+          for (int channel = 0; channel < 3; ++channel) {
+            sums[best][channel] += input.getVal(x, y, channel);
+          }
+          ++sums[best][3];
+        }
+      }
+      for (int y = 0; y < h; ++y) {
+        for (int x = 0; x < w; ++x) {
+          long[] sum = sums[clusters[y * w + x]];
+          for (int channel = 0; channel < 3; ++channel) {
+            assertEquals(sum[channel] / sum[3], actual.getVal(x, y, channel));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void fastMosaicNearlyMatchesExact() {
+    int w = 97;
+    int h = 61;
+    int[] pixels = new int[w * h];
+    Random random = new Random(4);
+    for (int i = 0; i < pixels.length; ++i) {
+      pixels[i] = random.nextInt(1 << 24);
+    }
+    Image input = new PackedRGBArray(w, h, pixels);
+    for (int numOfSeeds : new int[]{1, 7, 500, 20000}) {
+      Mosaic fast = new Mosaic(numOfSeeds, 42, true);
+      assertTrue(fast.isFast());
+      Image actual = fast.apply(input);
+      Image again = new Mosaic(numOfSeeds, 42, true).apply(input);
+      Image exact = new Mosaic(numOfSeeds, 42).apply(input);
+      int[] actualPixels = new int[w * h];
+      int[] againPixels = new int[w * h];
+      int[] exactPixels = new int[w * h];
+      actual.getPackedRegion(0, 0, w, h, actualPixels);
+      again.getPackedRegion(0, 0, w, h, againPixels);
+      exact.getPackedRegion(0, 0, w, h, exactPixels);
+      int same = 0;
+      for (int i = 0; i < w * h; ++i) {
+        assertEquals(actualPixels[i], againPixels[i]);
+        same += actualPixels[i] == exactPixels[i] ? 1 : 0;
+      }
+      // a pixel given the wrong seed also changes the average color of two clusters
+      assertTrue(same >= 0.95 * w * h);
+    }
+  }
+
+  @Test
+  public void mosaicIsRepeatable() {
+    Image checkerBoard = new CheckerBoard(8);
+    Mosaic mosaic = new Mosaic(20);
+    Image first = mosaic.apply(checkerBoard);
+    Image second = new Mosaic(20, mosaic.getRandomSeed()).apply(checkerBoard);
+    for (int y = 0; y < first.getHeight(); ++y) {
+      for (int x = 0; x < first.getWidth(); ++x) {
+        for (int channel = 0; channel < 3; ++channel) {
+          assertEquals(first.getVal(x, y, channel), second.getVal(x, y, channel));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void asyncEffectMatchesSync() throws Exception {
+    Image packed = imgDefaultIO.inputImage("manhattan-small.png");
+    ImageModel sync = new ModelFacade();
+    ImageModel async = new ModelFacade();
+    for (ImageModel model : new ImageModel[]{sync, async}) {
+      model.loadImage(packed);
+      model.loadEffect(new Mosaic(100, 42));
+    }
+    sync.applyEffect();
+    EffectTask task = async.applyEffectAsync();
+    Image result = task.get();
+    assertTrue(task.isDone());
+    assertEquals(1, task.getProgress(), 0);
+    assertSame(result, async.getImage());
+    for (int y = 0; y < packed.getHeight(); ++y) {
+      for (int x = 0; x < packed.getWidth(); ++x) {
+        for (int channel = 0; channel < 3; ++channel) {
+          assertEquals(sync.getImage().getVal(x, y, channel), result.getVal(x, y, channel));
+        }
+      }
+    }
+    assertTrue(async.undo());
+    assertSame(packed, async.getImage());
+  }
+
+  @Test
+  public void cancelledEffectLeavesModelUnchanged() throws Exception {
+    Image packed = imgDefaultIO.inputImage("manhattan-small.png");
+    ImageModel model = new ModelFacade();
+    model.loadImage(packed);
+    model.loadEffect(new Mosaic(15000));
+    EffectTask task = model.applyEffectAsync();
+    assertTrue(task.cancel(true));
+    assertTrue(task.isCancelled());
+    try {
+      task.get();
+      fail("Expected CancellationException");
+    } catch (CancellationException e) {
+      // expected
+    }
+    assertSame(packed, model.getImage());
+    assertTrue(!model.undo());
+  }
+
+  @Test(expected = CancellationException.class)
+  public void effectsStopWhenCancelled() {
+    ProgressMonitor cancelled = new ProgressMonitor() {
+      @Override
+      public boolean isCancelled() {
+        return true;
+      }
+
+      @Override
+      public void setProgress(double fraction) {
+        fail("progress reported after cancel");
+      }
+    };
+    new Blur().apply(new CheckerBoard(4), cancelled);
+  }
+
+  @Test
+  public void parallelFilterMatchesSequential() {
+    // tall enough to be split into several bands
+    int w = 300;
+    int h = 700;
+    int[] pixels = new int[w * h];
+    Random random = new Random(11);
+    for (int i = 0; i < pixels.length; ++i) {
+      pixels[i] = random.nextInt(1 << 24);
+    }
+    Image packed = new PackedRGBArray(w, h, pixels);
+    Image planar = new PlanarRGBArray(packed);
+    ImageEffect[][] pairs = {{new Blur(1), new Blur(4)}, {new Sharpen(1), new Sharpen(0)}};
+    for (ImageEffect[] pair : pairs) {
+      for (Image input : new Image[]{packed, planar}) {
+        Image expected = pair[0].apply(input);
+        Image actual = pair[1].apply(input);
+        for (int y = 0; y < h; ++y) {
+          for (int x = 0; x < w; ++x) {
+            for (int channel = 0; channel < 3; ++channel) {
+              assertEquals(expected.getVal(x, y, channel), actual.getVal(x, y, channel));
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test(expected = CancellationException.class)
+  public void parallelEffectsStopWhenCancelled() {
+    ProgressMonitor cancelled = new ProgressMonitor() {
+      @Override
+      public boolean isCancelled() {
+        return true;
+      }
+
+      @Override
+      public void setProgress(double fraction) {
+        fail("progress reported after cancel");
+      }
+    };
+    new Sharpen(4).apply(new Rainbow(300, 700, true), cancelled);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeParallelism() {
+    new Blur(-1);
+  }
+
+  @Test
+  public void orderedDither() {
+    int[] pixels = new int[64 * 64];
+    Arrays.fill(pixels, 0x808080);
+    Image flat = new PackedRGBArray(64, 64, pixels);
+    // 128 is just past halfway, so half of each 4x4 tile is rounded up to white
+    Image bayer = new BayerDither(4, 2, false).apply(flat);
+    for (int tileY = 0; tileY < 64; tileY += 4) {
+      for (int tileX = 0; tileX < 64; tileX += 4) {
+        int white = 0;
+        for (int y = tileY; y < tileY + 4; ++y) {
+          for (int x = tileX; x < tileX + 4; ++x) {
+            white += bayer.getVal(x, y, 0) / 255;
+          }
+        }
+        assertEquals(8, white);
+      }
+    }
+    // a dark grey has an eighth of its pixels white, and none of them touch
+    Arrays.fill(pixels, 0x202020);
+    Image blue = new BlueNoiseDither(2, false).apply(new PackedRGBArray(64, 64, pixels));
+    for (int y = 0; y < 64; ++y) {
+      for (int x = 0; x < 64; ++x) {
+        if (blue.getVal(x, y, 0) == 255) {
+          assertEquals(0, blue.getVal((x + 1) % 64, y, 0));
+          assertEquals(0, blue.getVal(x, (y + 1) % 64, 0));
+        }
+      }
+    }
+
+    Random random = new Random(2);
+    for (int i = 0; i < pixels.length; ++i) {
+      pixels[i] = random.nextInt(1 << 24);
+    }
+    Image input = new PackedRGBArray(64, 64, pixels);
+    // 256 levels in color leave every value where it is
+    Image same = new BayerDither(16, 256, true).apply(input);
+    Image sequential = new OrderedDither(new int[][]{{0, 2}, {3, 1}}, 3, true, 1).apply(input);
+    Image parallel = new OrderedDither(new int[][]{{0, 2}, {3, 1}}, 3, true, 4).apply(
+            new PlanarRGBArray(input));
+    assertTrue(parallel instanceof PlanarRGBArray);
+    for (int y = 0; y < 64; ++y) {
+      for (int x = 0; x < 64; ++x) {
+        for (int channel = 0; channel < 3; ++channel) {
+          assertEquals(input.getVal(x, y, channel), same.getVal(x, y, channel));
+          assertEquals(sequential.getVal(x, y, channel), parallel.getVal(x, y, channel));
+          // 3 levels are 0, 128, and 255
+          int value = sequential.getVal(x, y, channel);
+          assertTrue(value == 0 || value == 128 || value == 255);
+        }
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void repeatedDitherRanks() {
+    new OrderedDither(new int[][]{{0, 1}, {1, 2}}, 2, false);
+  }
+
+  @Test
+  public void parallelDitherMatchesSequential() {
+    Random random = new Random(11);
+    int[][] sizes = {{600, 97}, {1, 50}, {2, 40}, {3, 30}, {700, 1}, {257, 9}};
+    for (int[] size : sizes) {
+      int[] pixels = new int[size[0] * size[1]];
+      for (int i = 0; i < pixels.length; ++i) {
+        pixels[i] = random.nextInt(1 << 24);
+      }
+      Image input = new PackedRGBArray(size[0], size[1], pixels);
+      Image expected = new Dither(1).apply(input);
+      for (int threads = 2; threads <= 5; ++threads) {
+        Image actual = new Dither(threads).apply(input);
+        for (int y = 0; y < input.getHeight(); ++y) {
+          for (int x = 0; x < input.getWidth(); ++x) {
+            assertEquals(expected.getVal(x, y, 0), actual.getVal(x, y, 0));
+          }
+        }
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeDitherParallelism() {
+    new Dither(-1);
+  }
+
+  @Test
+  public void rgbArrayCopiesData() {
+    int[][][] data = {{{1, 2, 3}}};
+    Image image = new RGBArray(data);
+    data[0][0][0] = 200;
+    assertEquals(1, image.getVal(0, 0, 0));
+  }
+
+  @Test
+  public void packedClamps() {
+    Image packed = new PackedRGBArray(new int[][][]{{{-5, 128, 300}}});
+    assertEquals(0, packed.getVal(0, 0, 0));
+    assertEquals(128, packed.getVal(0, 0, 1));
+    assertEquals(255, packed.getVal(0, 0, 2));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void packedOutOfBounds() {
+    new PackedRGBArray(new int[][][]{{{1, 2, 3}}}).getVal(1, 0, 0);
+  }
 
   // constructor tests
   @Test(expected = IllegalArgumentException.class)
@@ -431,6 +1686,54 @@ public class ImageTest {
     }
   }
 
+  @Test(expected = IllegalArgumentException.class)
+  public void badBlurRadius() {
+    controller = new ControllerImpl(
+            new StringReader("load manhattan-small.png\nblur -3"),
+            imgDefaultIO, new ModelFacade());
+    try {
+      controller.start();
+    } catch (IOException e) {
+      fail("Unexpected IOException");
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badUnclamped() {
+    controller = new ControllerImpl(
+            new StringReader("load manhattan-small.png\nunclamped maybe"),
+            imgDefaultIO, new ModelFacade());
+    try {
+      controller.start();
+    } catch (IOException e) {
+      fail("Unexpected IOException");
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badBayerSize() {
+    controller = new ControllerImpl(
+            new StringReader("load manhattan-small.png\nbayer 3 2 false"),
+            imgDefaultIO, new ModelFacade());
+    try {
+      controller.start();
+    } catch (IOException e) {
+      fail("Unexpected IOException");
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void badMosaicMode() {
+    controller = new ControllerImpl(
+            new StringReader("load manhattan-small.png\nmosaic 10 slow"),
+            imgDefaultIO, new ModelFacade());
+    try {
+      controller.start();
+    } catch (IOException e) {
+      fail("Unexpected IOException");
+    }
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void badArgs_2() {
     controller = new ControllerImpl(